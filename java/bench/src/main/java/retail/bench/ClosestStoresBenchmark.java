@@ -0,0 +1,53 @@
+package retail.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Retail.getClosestStores for a signed in customer. With precomputed rows
+ * it is a lookup of UserNearbyStores; without them it falls back to
+ * reading every store and parsing and comparing its coordinates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClosestStoresBenchmark extends RetailBenchmark {
+
+	// same as NearbyStores.RANGE
+	private static final double RANGE = 30.0;
+
+	@Param({"10", "100", "1000"})
+	public int stores;
+
+	@Param({"false", "true"})
+	public boolean precomputed;
+
+	protected void answers(FakeDatabase database) {
+		SignedIn.answers(database);
+		if(this.precomputed) {
+			database.answer("SELECT S.*, N.distance FROM UserNearbyStores", 7, Stores.nearbyRows(this.stores, RANGE));
+		}
+		database.answer("SELECT * FROM Store", 6, Stores.rows(this.stores));
+	}
+
+	protected void connected() throws Throwable {
+		SignedIn.console();
+		SignedIn.logIn(this.esql);
+		SignedIn.restoreConsole();
+	}
+
+	@Benchmark
+	public List<?> getClosestStores() throws Throwable {
+		return (List<?>) RetailHandles.GET_CLOSEST_STORES.invokeExact(this.esql);
+	}
+}
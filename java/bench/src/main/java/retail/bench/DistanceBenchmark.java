@@ -0,0 +1,36 @@
+package retail.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Retail.calculateDistance, called once per store by getClosestStores and
+ * checkIfStoreIsInRange.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceBenchmark extends RetailBenchmark {
+
+	// fields, not constants, so the JIT cannot fold the result
+	private double _userLatitude = 34.052235;
+	private double _userLongitude = -118.243683;
+	private double _storeLatitude = 33.953350;
+	private double _storeLongitude = -117.396156;
+
+	protected void answers(FakeDatabase database) {
+	}
+
+	@Benchmark
+	public double calculateDistance() throws Throwable {
+		return (double) RetailHandles.CALCULATE_DISTANCE.invokeExact(this.esql, this._storeLatitude, this._storeLongitude, this._userLatitude, this._userLongitude);
+	}
+}
@@ -0,0 +1,194 @@
+package retail.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * In-memory stand in for the Postgres driver, so the client side of Retail
+ * can be benchmarked without a database.
+ *
+ * Registered for jdbc:postgresql: URLs. Queries are answered with canned
+ * rows by matching the start of the SQL text, anything else returns no
+ * rows and updates do nothing. Connections, statements and result sets are
+ * dynamic proxies; their per call cost is part of every measurement, the
+ * 0 row cases of QueryResultBenchmark show how much.
+ */
+public class FakeDatabase implements Driver {
+
+	private static class Answer {
+		final String prefix;
+		final int columns;
+		final String[][] rows;
+
+		Answer(String prefix, int columns, String[][] rows) {
+			this.prefix = prefix;
+			this.columns = columns;
+			this.rows = rows;
+		}
+	}
+
+	private static final Method NEXT = method(ResultSet.class, "next");
+	private static final Method GET_STRING = method(ResultSet.class, "getString", int.class);
+	private static final Method GET_META_DATA = method(ResultSet.class, "getMetaData");
+	private static final Method GET_COLUMN_COUNT = method(ResultSetMetaData.class, "getColumnCount");
+	private static final Method CREATE_STATEMENT = method(Connection.class, "createStatement");
+	private static final Method EXECUTE_QUERY = method(Statement.class, "executeQuery", String.class);
+
+	private static final Answer NO_ROWS = new Answer("", 1, new String[0][]);
+
+	private final List<Answer> _answers = new ArrayList<Answer>();
+
+	private static Method method(Class<?> type, String name, Class<?>... parameters) {
+		try {
+			return type.getMethod(name, parameters);
+		} catch(NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Creates a fake database and registers it with DriverManager.
+	 */
+	public static FakeDatabase install() throws SQLException {
+		FakeDatabase database = new FakeDatabase();
+		DriverManager.registerDriver(database);
+		return database;
+	}
+
+	/**
+	 * Unregisters the fake database.
+	 */
+	public void uninstall() throws SQLException {
+		DriverManager.deregisterDriver(this);
+	}
+
+	/**
+	 * Answers queries starting with prefix (ignoring case) with rows.
+	 * Earlier answers win.
+	 */
+	public synchronized void answer(String prefix, int columns, String[][] rows) {
+		this._answers.add(new Answer(prefix.toUpperCase(), columns, rows));
+	}
+
+	private synchronized Answer find(String sql) {
+		for(Answer answer : this._answers) {
+			if(sql.regionMatches(true, 0, answer.prefix, 0, answer.prefix.length())) {
+				return answer;
+			}
+		}
+		return NO_ROWS;
+	}
+
+	public Connection connect(String url, Properties info) {
+		if(!acceptsURL(url)) {
+			return null;
+		}
+		return proxy(Connection.class, new InvocationHandler() {
+			public Object invoke(Object connection, Method method, Object[] args) {
+				if(method.equals(CREATE_STATEMENT)) {
+					return statement();
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	private Statement statement() {
+		return proxy(Statement.class, new InvocationHandler() {
+			public Object invoke(Object statement, Method method, Object[] args) {
+				if(method.equals(EXECUTE_QUERY)) {
+					return resultSet(find((String) args[0]));
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	private static ResultSet resultSet(final Answer answer) {
+		final ResultSetMetaData meta = proxy(ResultSetMetaData.class, new InvocationHandler() {
+			public Object invoke(Object meta, Method method, Object[] args) {
+				if(method.equals(GET_COLUMN_COUNT)) {
+					return answer.columns;
+				}
+				return defaultValue(method);
+			}
+		});
+		return proxy(ResultSet.class, new InvocationHandler() {
+			private int _row = -1;
+
+			public Object invoke(Object rs, Method method, Object[] args) {
+				if(method.equals(GET_STRING)) {
+					return answer.rows[this._row][(Integer) args[0] - 1];
+				}
+				if(method.equals(NEXT)) {
+					return ++this._row < answer.rows.length;
+				}
+				if(method.equals(GET_META_DATA)) {
+					return meta;
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(FakeDatabase.class.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+
+	// what an unanswered call returns: autocommit on, no results, no updates
+	private static Object defaultValue(Method method) {
+		Class<?> type = method.getReturnType();
+		if(type == boolean.class) {
+			return method.getName().equals("getAutoCommit");
+		}
+		if(type == int.class) {
+			return 0;
+		}
+		if(type == long.class) {
+			return 0L;
+		}
+		if(type == ResultSet.class) {
+			return resultSet(NO_ROWS);
+		}
+		return null;
+	}
+
+	public boolean acceptsURL(String url) {
+		return url.startsWith("jdbc:postgresql:");
+	}
+
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+		return new DriverPropertyInfo[0];
+	}
+
+	public int getMajorVersion() {
+		return 1;
+	}
+
+	public int getMinorVersion() {
+		return 0;
+	}
+
+	public boolean jdbcCompliant() {
+		return false;
+	}
+
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+}
@@ -0,0 +1,45 @@
+package retail.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Retail.LogIn: building the query, reading the user row and parsing it
+ * into a User. Prompts go to a null stream.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogInBenchmark extends RetailBenchmark {
+
+	protected void answers(FakeDatabase database) {
+		SignedIn.answers(database);
+	}
+
+	@Setup(Level.Trial)
+	public void console() throws Throwable {
+		SignedIn.console();
+	}
+
+	@TearDown(Level.Trial)
+	public void restoreConsole() {
+		SignedIn.restoreConsole();
+	}
+
+	@Benchmark
+	public Object logIn() throws Throwable {
+		RetailHandles.LOG_IN.invokeExact(this.esql);
+		return (Object) RetailHandles.CURRENT_USER.invokeExact(this.esql);
+	}
+}
@@ -0,0 +1,36 @@
+package retail.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Retail.executeQueryAndReturnResult turning a result set into
+ * List<List<String>>, for Store sized rows of 6 columns.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryResultBenchmark extends RetailBenchmark {
+
+	@Param({"0", "10", "100", "1000"})
+	public int rows;
+
+	protected void answers(FakeDatabase database) {
+		database.answer("SELECT * FROM Store", 6, Stores.rows(this.rows));
+	}
+
+	@Benchmark
+	public List<?> executeQueryAndReturnResult() throws Throwable {
+		return (List<?>) RetailHandles.EXECUTE_QUERY_AND_RETURN_RESULT.invokeExact(this.esql, "SELECT * FROM Store");
+	}
+}
@@ -0,0 +1,45 @@
+package retail.bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Base of the benchmarks that call into a Retail instance. Each benchmark
+ * thread gets its own Retail on a FakeDatabase with the canned answers
+ * the subclass sets up.
+ */
+@State(Scope.Thread)
+public abstract class RetailBenchmark {
+
+	protected FakeDatabase database;
+	protected Object esql;
+
+	/**
+	 * Registers the canned query results the benchmark needs.
+	 */
+	protected abstract void answers(FakeDatabase database);
+
+	/**
+	 * Prepares esql once it is connected, e.g. signs a user in. JMH does
+	 * not order @Setup methods across the class hierarchy, so subclasses
+	 * needing esql override this instead.
+	 */
+	protected void connected() throws Throwable {
+	}
+
+	@Setup(Level.Trial)
+	public void connect() throws Throwable {
+		this.database = FakeDatabase.install();
+		answers(this.database);
+		this.esql = RetailHandles.newRetail();
+		connected();
+	}
+
+	@TearDown(Level.Trial)
+	public void disconnect() throws Exception {
+		this.database.uninstall();
+	}
+}
@@ -0,0 +1,97 @@
+package retail.bench;
+
+import java.io.BufferedReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Method handles into Retail.
+ *
+ * Retail lives in the default package, which JMH benchmarks cannot be in
+ * and named packages cannot import. Its members are reached through
+ * static final method handles instead, which the JIT treats as constants
+ * and inlines like a direct call. Receivers are typed Object.
+ */
+final class RetailHandles {
+
+	static final Class<?> RETAIL = load("Retail");
+	static final Class<?> INPUT = load("Workload$Input");
+
+	/** (String dbname, String dbport, String user, String passwd) Object */
+	static final MethodHandle NEW_RETAIL;
+	/** (Object esql, double lat1, double long1, double lat2, double long2) double */
+	static final MethodHandle CALCULATE_DISTANCE;
+	/** (Object esql, String query) List */
+	static final MethodHandle EXECUTE_QUERY_AND_RETURN_RESULT;
+	/** (Object esql) List */
+	static final MethodHandle GET_CLOSEST_STORES;
+	/** (Object esql) void */
+	static final MethodHandle LOG_IN;
+	/** (Object esql) Object, the signed in User or null */
+	static final MethodHandle CURRENT_USER;
+	/** () Object, Retail.in */
+	static final MethodHandle IN;
+	/** (Object in, BufferedReader source, Map latencies) void */
+	static final MethodHandle REPLAY;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			NEW_RETAIL = lookup.findConstructor(RETAIL, MethodType.methodType(void.class, String.class, String.class, String.class, String.class))
+					.asType(MethodType.methodType(Object.class, String.class, String.class, String.class, String.class));
+			CALCULATE_DISTANCE = lookup.findVirtual(RETAIL, "calculateDistance", MethodType.methodType(double.class, double.class, double.class, double.class, double.class))
+					.asType(MethodType.methodType(double.class, Object.class, double.class, double.class, double.class, double.class));
+			EXECUTE_QUERY_AND_RETURN_RESULT = lookup.findVirtual(RETAIL, "executeQueryAndReturnResult", MethodType.methodType(List.class, String.class))
+					.asType(MethodType.methodType(List.class, Object.class, String.class));
+			GET_CLOSEST_STORES = lookup.findStatic(RETAIL, "getClosestStores", MethodType.methodType(List.class, RETAIL))
+					.asType(MethodType.methodType(List.class, Object.class));
+			LOG_IN = lookup.findStatic(RETAIL, "LogIn", MethodType.methodType(void.class, RETAIL))
+					.asType(MethodType.methodType(void.class, Object.class));
+			CURRENT_USER = lookup.findGetter(RETAIL, "current_user", load("User"))
+					.asType(MethodType.methodType(Object.class, Object.class));
+
+			// package private in Retail and Workload
+			Field in = RETAIL.getDeclaredField("in");
+			in.setAccessible(true);
+			IN = MethodHandles.lookup().unreflectGetter(in)
+					.asType(MethodType.methodType(Object.class));
+			Method replay = INPUT.getDeclaredMethod("replay", BufferedReader.class, Map.class);
+			replay.setAccessible(true);
+			REPLAY = MethodHandles.lookup().unreflect(replay)
+					.asType(MethodType.methodType(void.class, Object.class, BufferedReader.class, Map.class));
+		} catch(ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private RetailHandles() {
+	}
+
+	private static Class<?> load(String name) {
+		try {
+			return Class.forName(name);
+		} catch(ClassNotFoundException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Creates a Retail. Install a FakeDatabase first.
+	 */
+	static Object newRetail() throws Throwable {
+		return (Object) NEW_RETAIL.invokeExact("bench_DB", "5432", "bench", "");
+	}
+
+	/**
+	 * Makes the calling thread's Retail.in read from source.
+	 */
+	static void replayInput(BufferedReader source) throws Throwable {
+		Object in = (Object) IN.invokeExact();
+		REPLAY.invokeExact(in, source, (Map) null);
+	}
+}
@@ -0,0 +1,77 @@
+package retail.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+/**
+ * Console input and output for benchmarks of Retail's menu methods. The
+ * benchmark thread reads the same lines over and over, and the prompts
+ * Retail prints are dropped so they do not end up in the measurement.
+ */
+final class SignedIn {
+
+	static final String NAME = "Benchmark User";
+	static final String PASSWORD = "secret";
+	static final String[] USER = { "42", "customer  ", String.format("%.6f", Stores.USER_LATITUDE), String.format("%.6f", Stores.USER_LONGITUDE) };
+
+	private static final PrintStream STDOUT = System.out;
+
+	private SignedIn() {
+	}
+
+	private static class Repeat extends BufferedReader {
+		private final String[] _lines;
+		private int _next = 0;
+
+		Repeat(String... lines) {
+			super(new StringReader(""));
+			this._lines = lines;
+		}
+
+		public String readLine() {
+			String line = this._lines[this._next];
+			this._next = (this._next + 1) % this._lines.length;
+			return line;
+		}
+
+		public boolean ready() {
+			return true;
+		}
+	}
+
+	/**
+	 * Answers the LogIn query for the benchmark user.
+	 */
+	static void answers(FakeDatabase database) {
+		database.answer("SELECT userid, type, latitude, longitude FROM USERS", 4, new String[][] { USER });
+	}
+
+	/**
+	 * Makes the calling thread type the benchmark user's name and password
+	 * whenever Retail asks, and silences standard out.
+	 */
+	static void console() throws Throwable {
+		RetailHandles.replayInput(new Repeat(NAME, PASSWORD));
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {}
+			public void write(byte[] b, int off, int len) {}
+		}));
+	}
+
+	static void restoreConsole() {
+		System.setOut(STDOUT);
+	}
+
+	/**
+	 * Signs the benchmark user in to esql.
+	 */
+	static void logIn(Object esql) throws Throwable {
+		RetailHandles.LOG_IN.invokeExact(esql);
+		if((Object) RetailHandles.CURRENT_USER.invokeExact(esql) == null) {
+			throw new IOException("Benchmark user could not sign in");
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package retail.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The String.format SQL construction Retail uses for every statement,
+ * next to the same strings built with a StringBuilder, to see what the
+ * format parsing costs in time and bytes/op.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SqlFormatBenchmark {
+
+	private int _orderNumber = 1501;
+	private int _customerID = 42;
+	private int _storeID = 7;
+	private String _productName = "Hot Dog";
+	private int _unitsOrdered = 3;
+
+	// placeOrder
+	@Benchmark
+	public String formatOrderInsert() {
+		return String.format("INSERT INTO Orders(orderNumber, customerID, storeID, productName, unitsOrdered) VALUES (%d, %d, %d, '%s', %d);", this._orderNumber, this._customerID, this._storeID, this._productName, this._unitsOrdered);
+	}
+
+	@Benchmark
+	public String buildOrderInsert() {
+		return new StringBuilder(128)
+			.append("INSERT INTO Orders(orderNumber, customerID, storeID, productName, unitsOrdered) VALUES (")
+			.append(this._orderNumber).append(", ")
+			.append(this._customerID).append(", ")
+			.append(this._storeID).append(", '")
+			.append(this._productName).append("', ")
+			.append(this._unitsOrdered).append(");")
+			.toString();
+	}
+
+	// placeOrder, viewProducts and the manager checks
+	@Benchmark
+	public String formatProductSelect() {
+		return String.format("SELECT numberOfUnits FROM Product WHERE storeID = %d and productName = '%s';", this._storeID, this._productName);
+	}
+
+	@Benchmark
+	public String buildProductSelect() {
+		return new StringBuilder(96)
+			.append("SELECT numberOfUnits FROM Product WHERE storeID = ").append(this._storeID)
+			.append(" and productName = '").append(this._productName).append("';")
+			.toString();
+	}
+}
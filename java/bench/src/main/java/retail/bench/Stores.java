@@ -0,0 +1,60 @@
+package retail.bench;
+
+import java.util.Random;
+
+/**
+ * Store rows as Postgres returns them, with char(30) names blank padded.
+ */
+final class Stores {
+
+	// where the benchmark user lives
+	static final double USER_LATITUDE = 40.0;
+	static final double USER_LONGITUDE = -100.0;
+
+	private Stores() {
+	}
+
+	/**
+	 * storeID, name, latitude, longitude, managerID, dateEstablished for
+	 * count stores spread over the continental US. Always the same rows.
+	 */
+	static String[][] rows(int count) {
+		Random random = new Random(152);
+		String[][] rows = new String[count][];
+		for(int i = 0; i < count; i++) {
+			rows[i] = new String[] {
+				String.valueOf(i + 1),
+				String.format("%-30s", "Store" + (i + 1)),
+				String.format("%.6f", 25 + random.nextDouble() * 24),
+				String.format("%.6f", -125 + random.nextDouble() * 58),
+				String.valueOf(random.nextInt(100) + 1),
+				"2020-01-01"
+			};
+		}
+		return rows;
+	}
+
+	/**
+	 * The rows with the distance to the user appended, as read from
+	 * UserNearbyStores, keeping those in range.
+	 */
+	static String[][] nearbyRows(int count, double range) {
+		String[][] stores = rows(count);
+		int kept = 0;
+		String[][] rows = new String[count][];
+		for(String[] store : stores) {
+			double dLat = Double.parseDouble(store[2]) - USER_LATITUDE;
+			double dLon = Double.parseDouble(store[3]) - USER_LONGITUDE;
+			double distance = Math.sqrt(dLat * dLat + dLon * dLon);
+			if(distance <= range) {
+				String[] row = new String[7];
+				System.arraycopy(store, 0, row, 0, 6);
+				row[6] = String.valueOf(distance);
+				rows[kept++] = row;
+			}
+		}
+		String[][] result = new String[kept][];
+		System.arraycopy(rows, 0, result, 0, kept);
+		return result;
+	}
+}
@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# build the JMH benchmarks, Retail sources included
+mvn -q -f $DIR/../bench/pom.xml package || exit 1
+
+# run them with allocation profiling (gc.alloc.rate.norm is bytes/op)
+# extra JMH options are passed through, e.g. a benchmark name regexp:
+#   bench.sh ClosestStores -p stores=1000
+java -jar $DIR/../bench/target/benchmarks.jar -prof gc "$@"
@@ -5,9 +5,32 @@ export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 export PATH=$JAVA_HOME/bin:$PATH
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Retail.java $DIR/../src/User.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Retail $USER"_DB" $PGPORT $USER
+#Optional settings are passed as system properties through JAVA_OPTS:
+#  -Daudit.mode=group_commit    audit writer durability (sync, group_commit or async)
+#  -Djournal.dir=orders         append placed orders to a memory mapped journal
+#  -Dreplica.port=5433          send reports to a read-only replica on this port
+#  -Dreplica.maxLagMillis=5000  use the primary while the replica lags more than this
+#  -Drecord.file=session.log    record the session for replay with "java Workload"
+#  -Dinventory.mode=striped     reserve stock from in-memory counters, write back in batches (not with shard.ports)
+#  -Dinventory.leaseUnits=50    units of a product the counters lease from the database at a time
+#  -Dinventory.leaseMillis=30000  how long a lease outlives a process that stopped renewing it
+#  -Dshard.ports=5433,5434      spread store data over more databases (see sql/scripts/create_shard.sh)
+#  -Dshard.directoryRefreshMillis=5000  how long reads use the cached store to shard directory
+#  -Dshard.writeWaitMillis=120000  how long writes to a store wait for it to move
+#  -Dsearch.reloadSeconds=300   reload the product search index this often (0 for never)
+#  -DrecentOrders.customers=1000  customers whose latest orders are kept in memory (0 to turn off)
+#  -Dadmission.interactive=32   max concurrent interactive (login, order) queries per process
+#  -Dadmission.heavy=2          max concurrent reports, admin views and exports per process
+#  -Dadmission.heavyPerDatabase=4  max concurrent reports of all processes using the database (0 for no limit)
+#  -Dadmission.orderP99Millis=250  hold reports back while interactive p99 is above this
+#  -Dadmission.waitMillis=10000 give up on a report not admitted within this
+#  -Dquery.interactiveTimeoutMillis=5000  statement_timeout of interactive queries
+#  -Dquery.heavyTimeoutMillis=60000       statement_timeout of reports
+#  -DresultCache.entries=500    cache the results of shared read queries (0, the default, turns it off)
+#  -DresultCache.ttlSeconds=30  how long a cached result is used at most
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Retail $USER"_DB" $PGPORT $USER
 
@@ -0,0 +1,410 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps heavy report queries from starving interactive ones.
+ *
+ * Every statement Retail runs belongs to an operation of one of two
+ * classes. INTERACTIVE operations (logging in, ordering, single product
+ * lookups) and HEAVY operations (reports, admin views, exports, bulk
+ * updates) each have their own concurrency limit and statement_timeout.
+ * A heavy operation is also held back while the p99 latency of recent
+ * interactive operations is over its limit, and given up on with an
+ * error if that lasts longer than the admission wait.
+ *
+ * Heavy operations can run through watch(), which lets the user cancel
+ * them by pressing Enter: every statement of the operation is cancelled
+ * with Statement.cancel().
+ *
+ * The interactive limit is per process; Workload sessions in one JVM
+ * share it, other processes do not count against it. Heavy operations
+ * begun with a coordinating connection also take one of
+ * admission.heavyPerDatabase session advisory locks in that database, so
+ * that limit holds across every process using it. The p99 is always that
+ * of this process's interactive operations.
+ *
+ * statement_timeout is a setting of the connection, so it also applies to
+ * statements run outside any operation, such as SYNC audit rows, nearby
+ * store refreshes and order number blocks. Once an operation used a
+ * connection it rests at the interactive timeout: a heavy operation sets
+ * it back when it ends.
+ */
+public class AdmissionController {
+
+	public enum QueryClass { INTERACTIVE, HEAVY }
+
+	// interactive latencies considered for the p99, and for how long
+	private static final int WINDOW = 1000;
+	private static final long WINDOW_MILLIS = 60000;
+	private static final long POLL_MILLIS = 50;
+	// first key of the advisory locks of heavy slots, the second is the slot
+	private static final int HEAVY_LOCK = 0x48455659;
+
+	private static AdmissionController _shared = null;
+
+	private final Semaphore _interactive;
+	private final Semaphore _heavy;
+	private final long _interactiveTimeoutMillis;
+	private final long _heavyTimeoutMillis;
+	private final long _p99LimitMillis;
+	private final long _waitMillis;
+	private int _heavyPerDatabase = 0;
+
+	// statement_timeout last set on each connection
+	private final Map<Connection, Long> _timeouts = new WeakHashMap<Connection, Long>();
+
+	// recent interactive latencies and when they ended
+	private final long[] _latencies = new long[WINDOW];
+	private final long[] _endedAt = new long[WINDOW];
+	private int _next = 0;
+
+	private final ExecutorService _workers = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "heavy-query");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * One admitted operation. Statements made through it get the class'
+	 * statement_timeout and can be cancelled together.
+	 */
+	public class Operation {
+		private final QueryClass _class;
+		private final long _start = System.nanoTime();
+		private final List<Statement> _statements = new ArrayList<Statement>();
+		// connections given the heavy timeout, set back on end()
+		private final List<Connection> _connections = new ArrayList<Connection>();
+		private boolean _cancelled = false;
+		// advisory lock held for a heavy slot of the database, if any
+		private Connection _slotConnection = null;
+		private int _slot = -1;
+
+		Operation(QueryClass cls) {
+			this._class = cls;
+		}
+
+		/**
+		 * Creates a statement on connection for this operation.
+		 *
+		 * @throws java.sql.SQLException when the operation was cancelled
+		 */
+		public Statement statement(Connection connection) throws SQLException {
+			use(connection);
+			Statement stmt = connection.createStatement();
+			synchronized(this) {
+				if(this._cancelled) {
+					stmt.close();
+					throw new SQLException("Query cancelled");
+				}
+				this._statements.add(stmt);
+			}
+			return stmt;
+		}
+
+		/**
+		 * Gives connection the class' statement_timeout, for components that
+		 * run their own statements on it. Those are not cancelled with the
+		 * operation.
+		 */
+		public void use(Connection connection) throws SQLException {
+			if(this._class == QueryClass.HEAVY) {
+				synchronized(this) {
+					if(!this._connections.contains(connection)) {
+						this._connections.add(connection);
+					}
+				}
+				timeout(connection, _heavyTimeoutMillis);
+			} else {
+				timeout(connection, _interactiveTimeoutMillis);
+			}
+		}
+
+		public synchronized boolean cancelled() {
+			return this._cancelled;
+		}
+
+		/**
+		 * Cancels every statement of the operation that is still running.
+		 */
+		public synchronized void cancel() {
+			this._cancelled = true;
+			for(Statement stmt : this._statements) {
+				try {
+					stmt.cancel();
+				} catch(SQLException e) {
+					System.err.println("Could not cancel query: " + e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Closes the operation's statements, sets its connections back to
+		 * the interactive timeout and gives its slot back.
+		 */
+		public void end() {
+			synchronized(this) {
+				for(Statement stmt : this._statements) {
+					try {
+						stmt.close();
+					} catch(SQLException e) {
+						// ignored.
+					}
+				}
+				this._statements.clear();
+				for(Connection connection : this._connections) {
+					try {
+						timeout(connection, _interactiveTimeoutMillis);
+					} catch(SQLException e) {
+						System.err.println("Could not reset the statement timeout: " + e.getMessage());
+					}
+				}
+				this._connections.clear();
+			}
+			if(this._slotConnection != null) {
+				try {
+					slotLock(this._slotConnection, "pg_advisory_unlock", this._slot);
+				} catch(SQLException e) {
+					// held until the connection closes
+					System.err.println("Could not release report slot: " + e.getMessage());
+				}
+				this._slotConnection = null;
+			}
+			if(this._class == QueryClass.HEAVY) {
+				_heavy.release();
+			} else {
+				_interactive.release();
+				record((System.nanoTime() - this._start) / 1000000, System.currentTimeMillis());
+			}
+		}
+	}
+
+	/**
+	 * @param interactive max concurrent interactive operations
+	 * @param heavy max concurrent heavy operations
+	 * @param interactiveTimeoutMillis statement_timeout of interactive statements
+	 * @param heavyTimeoutMillis statement_timeout of heavy statements
+	 * @param p99LimitMillis interactive p99 above which heavy operations wait
+	 * @param waitMillis how long a heavy operation waits to be admitted
+	 */
+	public AdmissionController(int interactive, int heavy, long interactiveTimeoutMillis, long heavyTimeoutMillis, long p99LimitMillis, long waitMillis) {
+		this._interactive = new Semaphore(interactive, true);
+		this._heavy = new Semaphore(heavy, true);
+		this._interactiveTimeoutMillis = interactiveTimeoutMillis;
+		this._heavyTimeoutMillis = heavyTimeoutMillis;
+		this._p99LimitMillis = p99LimitMillis;
+		this._waitMillis = waitMillis;
+	}
+
+	/**
+	 * Returns the controller of this process, built on first use from the
+	 * admission.* and query.* system properties.
+	 */
+	public static synchronized AdmissionController shared() {
+		if(_shared == null) {
+			_shared = new AdmissionController(
+				Integer.parseInt(System.getProperty("admission.interactive", "32")),
+				Integer.parseInt(System.getProperty("admission.heavy", "2")),
+				Long.parseLong(System.getProperty("query.interactiveTimeoutMillis", "5000")),
+				Long.parseLong(System.getProperty("query.heavyTimeoutMillis", "60000")),
+				Long.parseLong(System.getProperty("admission.orderP99Millis", "250")),
+				Long.parseLong(System.getProperty("admission.waitMillis", "10000")));
+			_shared.heavyPerDatabase(Integer.parseInt(System.getProperty("admission.heavyPerDatabase", "4")));
+		}
+		return _shared;
+	}
+
+	/**
+	 * Sets how many heavy operations begun with a coordinating connection
+	 * may run at once across every process using the database, 0 for no
+	 * limit.
+	 */
+	public synchronized void heavyPerDatabase(int slots) {
+		this._heavyPerDatabase = slots;
+	}
+
+	/**
+	 * Admits an operation, waiting for a free slot of its class. Every
+	 * admitted operation must be ended with Operation.end().
+	 *
+	 * @throws java.sql.SQLException when a heavy operation could not be
+	 *         admitted within the admission wait
+	 */
+	public Operation begin(QueryClass cls) throws SQLException {
+		return begin(cls, null);
+	}
+
+	/**
+	 * Admits an operation like begin(cls). A heavy operation also waits for
+	 * one of the database's heavy slots, taken as a session advisory lock
+	 * on coordinator until the operation ends.
+	 *
+	 * @param coordinator connection to the database shared by every
+	 *        process, or null to only apply this process's limits
+	 */
+	public Operation begin(QueryClass cls, Connection coordinator) throws SQLException {
+		if(cls == QueryClass.INTERACTIVE) {
+			this._interactive.acquireUninterruptibly();
+			return new Operation(cls);
+		}
+
+		long deadline = System.currentTimeMillis() + this._waitMillis;
+		try {
+			while(p99(System.currentTimeMillis()) > this._p99LimitMillis) {
+				if(System.currentTimeMillis() >= deadline) {
+					throw new SQLException("Orders are running slow, reports are paused. Try again later");
+				}
+				Thread.sleep(POLL_MILLIS);
+			}
+			if(!this._heavy.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+				throw new SQLException("Too many reports running. Try again later");
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting to run the report");
+		}
+		Operation operation = new Operation(cls);
+		int slots;
+		synchronized(this) {
+			slots = this._heavyPerDatabase;
+		}
+		if(coordinator != null && slots > 0) {
+			try {
+				operation._slot = takeSlot(coordinator, slots, deadline);
+				operation._slotConnection = coordinator;
+			} catch(SQLException e) {
+				this._heavy.release();
+				throw e;
+			}
+		}
+		return operation;
+	}
+
+	// Takes a free heavy slot of the database, waiting until deadline
+	private static int takeSlot(Connection coordinator, int slots, long deadline) throws SQLException {
+		while(true) {
+			for(int slot = 0; slot < slots; slot++) {
+				if(slotLock(coordinator, "pg_try_advisory_lock", slot)) {
+					return slot;
+				}
+			}
+			if(System.currentTimeMillis() >= deadline) {
+				throw new SQLException("Too many reports running on the database. Try again later");
+			}
+			try {
+				Thread.sleep(POLL_MILLIS);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting to run the report");
+			}
+		}
+	}
+
+	private static boolean slotLock(Connection connection, String function, int slot) throws SQLException {
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(String.format("SELECT %s(%d, %d);", function, HEAVY_LOCK, slot));
+			return rs.next() && rs.getBoolean(1);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Runs work on a worker thread while the calling thread watches the
+	 * console. Pressing Enter cancels the operation's statements.
+	 *
+	 * @param console the console to watch, it is only read when a line is
+	 *        ready. Pass a reader that is not recorded, the line read here
+	 *        is not part of the session
+	 */
+	public <T> T watch(Operation operation, Callable<T> work, BufferedReader console) throws SQLException {
+		Future<T> result = this._workers.submit(work);
+		System.out.println("(press Enter to cancel)");
+		try {
+			while(true) {
+				try {
+					return result.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				} catch(java.util.concurrent.TimeoutException e) {
+					if(console.ready()) {
+						console.readLine();
+						operation.cancel();
+					}
+				}
+			}
+		} catch(InterruptedException e) {
+			operation.cancel();
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while running the report");
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw new SQLException(e.getCause().toString());
+		} catch(IOException e) {
+			operation.cancel();
+			throw new SQLException(e.getMessage());
+		}
+	}
+
+	// Sets statement_timeout on connection unless it already has this value
+	private void timeout(Connection connection, long millis) throws SQLException {
+		synchronized(this._timeouts) {
+			Long current = this._timeouts.get(connection);
+			if(current != null && current == millis) {
+				return;
+			}
+		}
+		Statement stmt = connection.createStatement();
+		try {
+			stmt.execute(String.format("SET statement_timeout = %d;", millis));
+		} finally {
+			stmt.close();
+		}
+		synchronized(this._timeouts) {
+			this._timeouts.put(connection, millis);
+		}
+	}
+
+	private synchronized void record(long latencyMillis, long now) {
+		this._latencies[this._next] = latencyMillis;
+		this._endedAt[this._next] = now;
+		this._next = (this._next + 1) % WINDOW;
+	}
+
+	/**
+	 * p99 latency in ms of the interactive operations of the last minute.
+	 */
+	public synchronized long p99(long now) {
+		long[] recent = new long[WINDOW];
+		int count = 0;
+		for(int i = 0; i < WINDOW; i++) {
+			if(this._endedAt[i] != 0 && now - this._endedAt[i] <= WINDOW_MILLIS) {
+				recent[count++] = this._latencies[i];
+			}
+		}
+		if(count == 0) {
+			return 0;
+		}
+		Arrays.sort(recent, 0, count);
+		return recent[(int) Math.ceil(0.99 * count) - 1];
+	}
+}
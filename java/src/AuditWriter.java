@@ -0,0 +1,295 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes ProductUpdates audit rows off the request path. Rows are put in a
+ * bounded queue and a background thread inserts them in batches, one
+ * multi-row INSERT per batch.
+ *
+ * Durability modes:
+ *   SYNC         - insert on the caller's thread before returning (old behavior)
+ *   GROUP_COMMIT - queue the row and wait until the batch holding it commits
+ *   ASYNC        - queue the row and return, batches are flushed every
+ *                  flush interval or when full. A failed batch is retried,
+ *                  and if it still fails the next call reports it
+ *
+ * A full queue blocks the caller until the writer catches up. updatedOn is
+ * taken from the database clock, moved back by how long the row waited in
+ * the queue.
+ */
+public class AuditWriter implements Runnable {
+
+	public enum Mode { SYNC, GROUP_COMMIT, ASYNC }
+
+	// times an ASYNC batch is retried before its rows are given up
+	private static final int RETRIES = 3;
+
+	// A single pending ProductUpdates row
+	private static class Entry {
+		int managerID;
+		int storeID;
+		String productName;
+		long recordedAt = System.nanoTime();
+		CountDownLatch done;
+		SQLException error;
+	}
+
+	private final Connection _connection;
+	private final Mode _mode;
+	private final BlockingQueue<Entry> _queue;
+	private final int _batchSize;
+	private final long _flushMillis;
+	private Thread _thread = null;
+	private volatile boolean _running = false;
+	// ASYNC rows given up since the last call, reported by the next one
+	private int _lost = 0;
+	private SQLException _lostError = null;
+
+	/**
+	 * @param connection connection used for the inserts. Must not be shared
+	 *                   with other threads unless mode is SYNC
+	 * @param mode durability mode
+	 * @param queueSize max number of rows waiting to be written
+	 * @param batchSize max number of rows per INSERT
+	 * @param flushMillis how long ASYNC mode waits to fill a batch
+	 */
+	public AuditWriter(Connection connection, Mode mode, int queueSize, int batchSize, long flushMillis) {
+		this._connection = connection;
+		this._mode = mode;
+		this._queue = new ArrayBlockingQueue<Entry>(queueSize);
+		this._batchSize = batchSize;
+		this._flushMillis = flushMillis;
+		if(mode != Mode.SYNC) {
+			this._running = true;
+			this._thread = new Thread(this, "audit-writer");
+			this._thread.setDaemon(true);
+			this._thread.start();
+		}
+	}
+
+	/**
+	 * Builds a writer from the audit.* system properties. SYNC reuses the
+	 * given connection, the other modes open a dedicated one.
+	 */
+	public static AuditWriter fromSystemProperties(String url, String user, String passwd, Connection shared) throws SQLException {
+		Mode mode = Mode.valueOf(System.getProperty("audit.mode", "sync").toUpperCase().replace('-', '_'));
+		int queueSize = Integer.parseInt(System.getProperty("audit.queue", "1024"));
+		int batchSize = Integer.parseInt(System.getProperty("audit.batch", "100"));
+		long flushMillis = Long.parseLong(System.getProperty("audit.flushMillis", "50"));
+
+		Connection connection = shared;
+		if(mode != Mode.SYNC) {
+			connection = DriverManager.getConnection(url, user, passwd);
+		}
+		return new AuditWriter(connection, mode, queueSize, batchSize, flushMillis);
+	}
+
+	public Mode mode() {
+		return this._mode;
+	}
+
+	/**
+	 * Records that a manager updated a product. The timestamp is the time
+	 * of this call, not when the row reaches the database.
+	 *
+	 * @throws java.sql.SQLException when the row could not be written (SYNC
+	 *         and GROUP_COMMIT), earlier ASYNC rows were lost or the writer
+	 *         is closed
+	 */
+	public void recordProductUpdate(int managerID, int storeID, String productName) throws SQLException {
+		Entry entry = new Entry();
+		entry.managerID = managerID;
+		entry.storeID = storeID;
+		entry.productName = productName;
+
+		if(this._mode == Mode.SYNC) {
+			List<Entry> batch = new ArrayList<Entry>(1);
+			batch.add(entry);
+			write(batch);
+			return;
+		}
+		if(!this._running) {
+			throw new SQLException("Audit writer is closed");
+		}
+		if(this._mode == Mode.GROUP_COMMIT) {
+			entry.done = new CountDownLatch(1);
+		}
+
+		try {
+			// blocks while the queue is full
+			this._queue.put(entry);
+			// close() drains the queue after stopping the writer, a row put
+			// after that is taken back here
+			if(!this._running && this._queue.remove(entry)) {
+				throw new SQLException("Audit writer is closed");
+			}
+			if(entry.done != null) {
+				entry.done.await();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while writing audit row");
+		}
+		if(entry.error != null) {
+			throw entry.error;
+		}
+		synchronized(this) {
+			if(this._lost > 0) {
+				String message = this._lost + " queued audit rows could not be written: " + this._lostError.getMessage();
+				this._lost = 0;
+				this._lostError = null;
+				throw new SQLException(message);
+			}
+		}
+	}
+
+	/**
+	 * Background loop. Takes whatever is queued (up to batch size) and
+	 * writes it. In ASYNC mode it lingers up to the flush interval to
+	 * build bigger batches.
+	 */
+	public void run() {
+		List<Entry> batch = new ArrayList<Entry>(this._batchSize);
+		while(this._running || !this._queue.isEmpty()) {
+			try {
+				Entry first = this._queue.poll(this._flushMillis, TimeUnit.MILLISECONDS);
+				if(first == null) {
+					continue;
+				}
+				batch.add(first);
+				this._queue.drainTo(batch, this._batchSize - batch.size());
+
+				if(this._mode == Mode.ASYNC) {
+					long deadline = System.currentTimeMillis() + this._flushMillis;
+					while(this._running && batch.size() < this._batchSize) {
+						long wait = deadline - System.currentTimeMillis();
+						if(wait <= 0) break;
+						Entry next = this._queue.poll(wait, TimeUnit.MILLISECONDS);
+						if(next == null) break;
+						batch.add(next);
+						this._queue.drainTo(batch, this._batchSize - batch.size());
+					}
+				}
+			} catch(InterruptedException e) {
+				// close() interrupts a lingering writer, drain what is left
+			}
+
+			if(batch.size() > 0) {
+				writeWithRetries(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	// Writes a batch, retrying an ASYNC batch nobody waits for. Failures
+	// are not printed here: GROUP_COMMIT callers get the error and lost
+	// ASYNC rows are reported once, by the next call or by close()
+	private void writeWithRetries(List<Entry> batch) {
+		int attempts = this._mode == Mode.ASYNC ? RETRIES + 1 : 1;
+		for(int attempt = 1; ; attempt++) {
+			try {
+				write(batch);
+				return;
+			} catch(SQLException e) {
+				if(attempt >= attempts) {
+					if(this._mode == Mode.ASYNC) {
+						synchronized(this) {
+							this._lost += batch.size();
+							this._lostError = e;
+						}
+					}
+					return;
+				}
+			}
+			try {
+				Thread.sleep(this._flushMillis * attempt);
+			} catch(InterruptedException e) {
+				// close() is waiting, retry right away
+			}
+		}
+	}
+
+	// Inserts the batch as one statement and releases any waiting callers
+	private void write(List<Entry> batch) throws SQLException {
+		long now = System.nanoTime();
+		StringBuilder query = new StringBuilder("INSERT INTO productupdates (managerid, storeid, productname, updatedon) VALUES ");
+		for(int i = 0; i < batch.size(); i++) {
+			Entry entry = batch.get(i);
+			if(i > 0) query.append(", ");
+			long waitedMillis = (now - entry.recordedAt) / 1000000;
+			query.append(String.format("(%d, %d, '%s', now() - interval '%d milliseconds')", entry.managerID, entry.storeID, entry.productName, waitedMillis));
+		}
+
+		SQLException error = null;
+		try {
+			Statement stmt = this._connection.createStatement();
+			stmt.executeUpdate(query.toString());
+			stmt.close();
+		} catch(SQLException e) {
+			error = e;
+		}
+
+		for(Entry entry : batch) {
+			entry.error = error;
+			if(entry.done != null) {
+				entry.done.countDown();
+			}
+		}
+		if(error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Flushes everything still queued and stops the background writer.
+	 * Callers still waiting then fail. The dedicated connection is closed,
+	 * a shared SYNC connection is left open.
+	 */
+	public void close() {
+		if(this._thread == null) {
+			return;
+		}
+		this._running = false;
+		this._thread.interrupt();
+		try {
+			this._thread.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this._thread = null;
+
+		// rows queued while the writer stopped
+		List<Entry> left = new ArrayList<Entry>();
+		this._queue.drainTo(left);
+		for(Entry entry : left) {
+			entry.error = new SQLException("Audit writer is closed");
+			if(entry.done != null) {
+				entry.done.countDown();
+			}
+		}
+		if(left.size() > 0 && this._mode == Mode.ASYNC) {
+			System.err.println(left.size() + " audit rows were queued after the writer closed and not written");
+		}
+		// lost rows no later call will report
+		synchronized(this) {
+			if(this._lost > 0) {
+				System.err.println(this._lost + " queued audit rows could not be written: " + this._lostError.getMessage());
+				this._lost = 0;
+				this._lostError = null;
+			}
+		}
+		try {
+			this._connection.close();
+		} catch(SQLException e) {
+			// ignored.
+		}
+	}
+}
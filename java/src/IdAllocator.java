@@ -0,0 +1,87 @@
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out keys from a database sequence in blocks.
+ *
+ * A block of ids is reserved with a single round trip
+ * (nextval over generate_series), after which next() is a lock free
+ * increment on the current block. Only the thread that finds the block
+ * used up goes back to the database. Because every id still comes from the
+ * sequence, allocators in other sessions and inserts relying on the column
+ * default never collide with it. Ids left in a block when the program exits
+ * are simply skipped, so blocks start at one id and double with each
+ * refill up to the block size: a session that places one order burns
+ * nothing, a busy one soon needs few round trips.
+ *
+ * Only order numbers are allocated this way. Supply request and update
+ * numbers still come from their column defaults, one nextval per insert.
+ */
+public class IdAllocator {
+
+	private static class Block {
+		final int[] ids;
+		final AtomicInteger next = new AtomicInteger(0);
+
+		Block(int[] ids) {
+			this.ids = ids;
+		}
+	}
+
+	private final Connection _connection;
+	private final String _sequence;
+	private final int _blockSize;
+	private int _nextSize = 1;
+	private volatile Block _block = new Block(new int[0]);
+
+	/**
+	 * @param connection connection used to reserve blocks
+	 * @param sequence name of the sequence
+	 * @param blockSize max number of ids reserved per round trip
+	 */
+	public IdAllocator(Connection connection, String sequence, int blockSize) {
+		this._connection = connection;
+		this._sequence = sequence;
+		this._blockSize = Math.max(1, blockSize);
+	}
+
+	/**
+	 * Returns the next unused id.
+	 *
+	 * @throws java.sql.SQLException when a new block could not be reserved
+	 */
+	public int next() throws SQLException {
+		while(true) {
+			Block block = this._block;
+			int index = block.next.getAndIncrement();
+			if(index < block.ids.length) {
+				return block.ids[index];
+			}
+			refill(block);
+		}
+	}
+
+	// Reserves a new block unless another thread already replaced this one
+	private synchronized void refill(Block used) throws SQLException {
+		if(this._block != used) {
+			return;
+		}
+		int size = this._nextSize;
+		this._nextSize = Math.min(size * 2, this._blockSize);
+		int[] ids = new int[size];
+		int count = 0;
+		Statement stmt = this._connection.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(String.format("SELECT nextval('%s') FROM generate_series(1, %d);", this._sequence, size));
+			while(rs.next() && count < ids.length) {
+				ids[count++] = rs.getInt(1);
+			}
+		} finally {
+			stmt.close();
+		}
+		this._block = new Block(ids);
+	}
+}
@@ -0,0 +1,470 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Write-behind stock counters for hot products.
+ *
+ * Each process leases blocks of a product's stock from the database
+ * (escrow) and keeps them in striped atomic counters, so concurrent orders
+ * for the same product reserve units with a CAS on different cache lines
+ * instead of queueing on the Product row lock or a database lock.
+ *
+ * The database stays authoritative. lease_inventory() (create_triggers.sql)
+ * hands out units that are in Product.numberOfUnits and not leased to
+ * another process, and records the lease in InventoryLeases. Only leasing
+ * a block takes the Product row lock; an order reserved from the lease is
+ * inserted with its PendingInventory row and no stock check. A background
+ * thread periodically moves all PendingInventory rows into
+ * Product.numberOfUnits with one set based statement, shrinking the
+ * leases by the units it applied. The same flush renews this process's
+ * leases and returns the ones it did not use since the last flush.
+ *
+ * A lease expires when it is not renewed for inventory.leaseMillis, e.g.
+ * after a crash, and is then freed by the next lease of the product. Its
+ * pending orders keep counting against the stock until they are applied,
+ * so no reserved unit is lost, applied twice or sold twice. A process that
+ * could not renew its leases for half that time renews them before it
+ * reserves again, and drops the ones that expired meanwhile.
+ *
+ * Stock changed by other code paths should be bracketed with flush() and
+ * invalidate(): the next lease is checked against the new stock.
+ *
+ * The counters read and write the home database only and cannot be used
+ * with ShardRouter shards.
+ */
+public class InventoryCounters implements Runnable {
+
+	public static final int RESERVED = 1;
+	public static final int INSUFFICIENT = 0;
+	public static final int NOT_FOUND = -1;
+
+	// reserve() retries with the product's current counter
+	private static final int RETRY = -2;
+
+	// longs per stripe, keeps each stripe on its own cache line
+	private static final int PAD = 8;
+
+	private static class Sku {
+		final int storeID;
+		final String productName;
+		final AtomicLongArray stripes;
+		// reserved units whose order did not commit or fail yet, carried
+		// over to the counter that replaces this one
+		final AtomicLong inFlight;
+		// reserved from since the last flush
+		volatile boolean used = true;
+		// lease given back, reservations go to the product's new counter
+		boolean retired = false;
+
+		Sku(int count, int storeID, String productName, AtomicLong inFlight) {
+			this.storeID = storeID;
+			this.productName = productName;
+			this.stripes = new AtomicLongArray(count * PAD);
+			this.inFlight = inFlight;
+		}
+	}
+
+	private final Connection _connection;
+	private final int _stripes;
+	private final long _flushMillis;
+	private final int _leaseUnits;
+	private final long _leaseMillis;
+	// this process in InventoryLeases and PendingInventory
+	private final String _owner = UUID.randomUUID().toString();
+	private final ConcurrentHashMap<String, Sku> _skus = new ConcurrentHashMap<String, Sku>();
+	// counters given back while orders reserved from them were in flight;
+	// guarded by _skus, like replacing a counter
+	private final Map<String, Sku> _retired = new HashMap<String, Sku>();
+	private final AtomicLong _pending = new AtomicLong(0);
+	private volatile long _renewedAt = System.currentTimeMillis();
+	private Thread _thread;
+	private volatile boolean _running = true;
+
+	/**
+	 * @param connection dedicated connection for leasing and flushing
+	 * @param flushMillis interval between write-behind flushes
+	 * @param leaseUnits units leased at a time, more when an order needs it
+	 * @param leaseMillis how long a lease lasts without being renewed
+	 */
+	public InventoryCounters(Connection connection, long flushMillis, int leaseUnits, long leaseMillis) throws SQLException {
+		this._connection = connection;
+		this._flushMillis = flushMillis;
+		this._leaseUnits = leaseUnits;
+		this._leaseMillis = leaseMillis;
+		int stripes = 1;
+		while(stripes < Runtime.getRuntime().availableProcessors()) {
+			stripes <<= 1;
+		}
+		this._stripes = stripes;
+
+		// apply anything a previous run did not get to
+		flush();
+
+		this._thread = new Thread(this, "inventory-flusher");
+		this._thread.setDaemon(true);
+		this._thread.start();
+	}
+
+	/**
+	 * Returns counters when -Dinventory.mode=striped is set, otherwise null.
+	 */
+	public static InventoryCounters fromSystemProperties(String url, String user, String passwd) throws SQLException {
+		if(!System.getProperty("inventory.mode", "direct").equalsIgnoreCase("striped")) {
+			return null;
+		}
+		long flushMillis = Long.parseLong(System.getProperty("inventory.flushMillis", "200"));
+		int leaseUnits = Integer.parseInt(System.getProperty("inventory.leaseUnits", "50"));
+		long leaseMillis = Long.parseLong(System.getProperty("inventory.leaseMillis", "30000"));
+		return new InventoryCounters(DriverManager.getConnection(url, user, passwd), flushMillis, leaseUnits, leaseMillis);
+	}
+
+	private static String key(int storeID, String productName) {
+		return storeID + "\t" + productName.trim();
+	}
+
+	/**
+	 * Takes units of a product out of the leased stock, leasing more when
+	 * the lease runs short.
+	 *
+	 * @return RESERVED, INSUFFICIENT or NOT_FOUND; after RESERVED call
+	 *         orderPlaced() or release()
+	 */
+	public int reserve(int storeID, String productName, int units) throws SQLException {
+		if(System.currentTimeMillis() - this._renewedAt > this._leaseMillis / 2 && !this._skus.isEmpty()) {
+			flush();
+		}
+		while(true) {
+			int result = reserve(counter(storeID, productName), units);
+			if(result != RETRY) {
+				return result;
+			}
+		}
+	}
+
+	private int reserve(Sku sku, int units) throws SQLException {
+		AtomicLongArray stripes = sku.stripes;
+		int mask = this._stripes - 1;
+		int start = (int) Thread.currentThread().getId() & mask;
+		// counted before the units leave the stripes, so a lease never misses them
+		sku.inFlight.addAndGet(units);
+		sku.used = true;
+
+		// fast path, any single stripe holding enough units
+		for(int i = 0; i < this._stripes; i++) {
+			int index = ((start + i) & mask) * PAD;
+			long value = stripes.get(index);
+			while(value >= units) {
+				if(stripes.compareAndSet(index, value, value - units)) {
+					return RESERVED;
+				}
+				value = stripes.get(index);
+			}
+		}
+
+		// slow path, gather the units spread over all stripes and lease
+		// more if they are not enough
+		synchronized(sku) {
+			if(sku.retired) {
+				sku.inFlight.addAndGet(-units);
+				return RETRY;
+			}
+			long total = 0;
+			for(int i = 0; i < this._stripes; i++) {
+				total += stripes.getAndSet(i * PAD, 0);
+			}
+			if(total < units) {
+				total = lease(sku, total, units);
+				if(total < 0) {
+					sku.inFlight.addAndGet(-units);
+					retire(sku);
+					return NOT_FOUND;
+				}
+			}
+			boolean reserved = total >= units;
+			if(reserved) {
+				total -= units;
+			} else {
+				sku.inFlight.addAndGet(-units);
+			}
+			stripes.addAndGet(start * PAD, total);
+			return reserved ? RESERVED : INSUFFICIENT;
+		}
+	}
+
+	// Leases more units for sku, which holds held units gathered from its
+	// stripes and is reserving units. Returns the units now held, which
+	// can be fewer than before when the stock went down, or -1 when the
+	// product does not exist.
+	private long lease(Sku sku, long held, int units) throws SQLException {
+		// the reservation being made is not in flight yet as far as the lease goes
+		long inFlight = sku.inFlight.get() - units;
+		synchronized(this._connection) {
+			Statement stmt = this._connection.createStatement();
+			try {
+				ResultSet rs = stmt.executeQuery(String.format("SELECT lease_inventory('%s', %d, '%s', %d, %d, %d, %d);",
+					this._owner, sku.storeID, sku.productName, inFlight, held, Math.max(this._leaseUnits, units - held), this._leaseMillis));
+				rs.next();
+				return rs.getLong(1);
+			} finally {
+				stmt.close();
+			}
+		}
+	}
+
+	/**
+	 * Gives back units of a reservation whose order was not placed.
+	 */
+	public void release(int storeID, String productName, int units) {
+		Sku sku;
+		synchronized(this._skus) {
+			String key = key(storeID, productName);
+			sku = this._skus.get(key);
+			if(sku == null) {
+				sku = this._retired.get(key);
+			}
+		}
+		if(sku == null) {
+			return;
+		}
+		synchronized(sku) {
+			// a retired counter's lease is going away with its units
+			if(!sku.retired) {
+				int index = ((int) Thread.currentThread().getId() & (this._stripes - 1)) * PAD;
+				sku.stripes.addAndGet(index, units);
+			}
+			sku.inFlight.addAndGet(-units);
+		}
+	}
+
+	/**
+	 * SQL that records a reserved order and its pending stock decrement.
+	 * It returns the orderTime the database set. On an error call release().
+	 */
+	public String orderStatement(int orderNumber, int customerID, int storeID, String productName, int units) {
+		return String.format("WITH P AS (INSERT INTO PendingInventory(orderNumber, storeID, productName, units, owner) VALUES (%d, %d, '%s', %d, '%s')) " +
+				"INSERT INTO Orders(orderNumber, customerID, storeID, productName, unitsOrdered) VALUES (%d, %d, %d, '%s', %d) RETURNING orderTime;",
+				orderNumber, storeID, productName, units, this._owner, orderNumber, customerID, storeID, productName, units);
+	}
+
+	/**
+	 * Notes that the order statement of a reservation committed, so its
+	 * units are pending in the database and the next flush has work.
+	 */
+	public void orderPlaced(int storeID, String productName, int units) {
+		synchronized(this._skus) {
+			String key = key(storeID, productName);
+			Sku sku = this._skus.get(key);
+			if(sku == null) {
+				sku = this._retired.get(key);
+			}
+			if(sku != null) {
+				sku.inFlight.addAndGet(-units);
+			}
+		}
+		this._pending.incrementAndGet();
+	}
+
+	/**
+	 * Gives back the lease of a product, so the next order leases again
+	 * against the stock in Product. Call flush() before changing
+	 * numberOfUnits elsewhere and this after.
+	 */
+	public void invalidate(int storeID, String productName) {
+		Sku sku = this._skus.get(key(storeID, productName));
+		if(sku != null) {
+			retire(sku);
+		}
+	}
+
+	/**
+	 * Gives back every lease, e.g. after a bulk stock change. Call flush()
+	 * before the change and this after.
+	 */
+	public void invalidateAll() {
+		for(Sku sku : this._skus.values()) {
+			retire(sku);
+		}
+	}
+
+	// Returns the counter of a product, a new one starts with no units
+	private Sku counter(int storeID, String productName) {
+		String key = key(storeID, productName);
+		Sku sku = this._skus.get(key);
+		if(sku != null) {
+			return sku;
+		}
+		synchronized(this._skus) {
+			sku = this._skus.get(key);
+			if(sku == null) {
+				// the new counter's lease also covers the orders still in
+				// flight from the one it replaces
+				Sku old = this._retired.remove(key);
+				sku = new Sku(this._stripes, storeID, productName.trim(), old != null ? old.inFlight : new AtomicLong(0));
+				this._skus.put(key, sku);
+			}
+			return sku;
+		}
+	}
+
+	// Takes a counter's units out of use, flush() then gives its lease back
+	private void retire(Sku sku) {
+		synchronized(sku) {
+			if(sku.retired) {
+				return;
+			}
+			sku.retired = true;
+			for(int i = 0; i < this._stripes; i++) {
+				sku.stripes.set(i * PAD, 0);
+			}
+		}
+		synchronized(this._skus) {
+			String key = key(sku.storeID, sku.productName);
+			if(this._skus.remove(key, sku)) {
+				this._retired.put(key, sku);
+			}
+		}
+	}
+
+	/**
+	 * Applies every pending decrement to Product in one statement, renews
+	 * this process's leases and gives back the ones not used since the
+	 * last flush.
+	 */
+	public synchronized void flush() throws SQLException {
+		this._pending.set(0);
+		long now = System.currentTimeMillis();
+		Set<String> leased = new HashSet<String>();
+		synchronized(this._connection) {
+			Statement stmt = this._connection.createStatement();
+			try {
+				stmt.executeUpdate(
+					"WITH D AS (DELETE FROM PendingInventory RETURNING storeID, productName, owner, units), " +
+					"S AS (SELECT storeID, productName, owner, SUM(units) AS units FROM D GROUP BY storeID, productName, owner), " +
+					"L AS (UPDATE InventoryLeases L SET units = L.units - S.units FROM S WHERE L.storeID = S.storeID AND L.productName = S.productName AND L.owner = S.owner) " +
+					// stock set below its pending orders by a direct change stops at 0
+					"UPDATE Product P SET numberOfUnits = GREATEST(P.numberOfUnits - T.units, 0) " +
+					"FROM (SELECT storeID, productName, SUM(units) AS units FROM S GROUP BY storeID, productName) T " +
+					"WHERE P.storeID = T.storeID AND P.productName = T.productName;");
+				ResultSet rs = stmt.executeQuery(String.format(
+					"UPDATE InventoryLeases SET expiresAt = now() + %d * interval '1 millisecond' WHERE owner = '%s' RETURNING storeID, productName;",
+					this._leaseMillis, this._owner));
+				while(rs.next()) {
+					leased.add(key(rs.getInt(1), rs.getString(2)));
+				}
+			} finally {
+				stmt.close();
+			}
+		}
+		this._renewedAt = now;
+
+		// give back leases that expired before they were renewed, and
+		// those of products not ordered since the last flush
+		for(Sku sku : this._skus.values()) {
+			if(!leased.contains(key(sku.storeID, sku.productName)) || !sku.used) {
+				retire(sku);
+			} else {
+				sku.used = false;
+			}
+		}
+
+		// drop the leases of retired counters with no orders in flight;
+		// their pending orders count against the stock until applied
+		List<String> returned = new ArrayList<String>();
+		synchronized(this._skus) {
+			Iterator<Map.Entry<String, Sku>> retired = this._retired.entrySet().iterator();
+			while(retired.hasNext()) {
+				Sku sku = retired.next().getValue();
+				if(sku.inFlight.get() == 0) {
+					retired.remove();
+					leased.add(key(sku.storeID, sku.productName));
+				}
+			}
+			for(String key : leased) {
+				if(!this._skus.containsKey(key) && !this._retired.containsKey(key)) {
+					String[] parts = key.split("\t", 2);
+					returned.add(String.format("(%s, '%s')", parts[0], parts[1]));
+				}
+			}
+			if(!returned.isEmpty()) {
+				StringBuilder keys = new StringBuilder();
+				for(String row : returned) {
+					keys.append(keys.length() > 0 ? ", " : "").append(row);
+				}
+				// held under _skus, so no counter takes the key over in between
+				synchronized(this._connection) {
+					Statement stmt = this._connection.createStatement();
+					try {
+						stmt.executeUpdate(String.format("DELETE FROM InventoryLeases WHERE owner = '%s' AND (storeID, productName) IN (%s);", this._owner, keys));
+					} finally {
+						stmt.close();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Background write-behind loop.
+	 */
+	public void run() {
+		while(this._running) {
+			try {
+				Thread.sleep(this._flushMillis);
+			} catch(InterruptedException e) {
+				// close() wakes us for a final flush
+			}
+			if(this._pending.get() > 0 || !this._skus.isEmpty()) {
+				try {
+					flush();
+				} catch(SQLException e) {
+					System.err.println("Inventory flush failed: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flushes pending decrements, gives back every lease and closes the
+	 * connection.
+	 */
+	public void close() {
+		this._running = false;
+		this._thread.interrupt();
+		try {
+			this._thread.join();
+			invalidateAll();
+			flush();
+			synchronized(this._connection) {
+				Statement stmt = this._connection.createStatement();
+				try {
+					stmt.executeUpdate(String.format("DELETE FROM InventoryLeases WHERE owner = '%s';", this._owner));
+				} finally {
+					stmt.close();
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(SQLException e) {
+			System.err.println("Inventory flush failed: " + e.getMessage());
+		}
+		try {
+			this._connection.close();
+		} catch(SQLException e) {
+			// ignored.
+		}
+	}
+}
@@ -0,0 +1,277 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Precomputes the stores within range of every user into the
+ * UserNearbyStores table, so "stores near me" is a keyed lookup instead of
+ * a distance computation against every store.
+ *
+ * A full rebuild loads user and store coordinates into primitive arrays and
+ * computes the distances in parallel on a fork/join pool. Single users
+ * (moved or created) and single stores (added or moved) are refreshed
+ * without touching anybody else's rows. A user with no store in range gets
+ * one row with storeID NONE, so an empty result is not computed again.
+ *
+ * Stores are only added or moved in the database directly; a trigger on
+ * Store queues them in NearbyStoresQueue and refreshQueuedStores() brings
+ * their rows up to date.
+ *
+ * Run periodically as a batch job with
+ *   java NearbyStores <dbname> <port> <user>
+ */
+public class NearbyStores {
+
+	// Same range as Retail's "stores within 30 miles"
+	public static final double RANGE = 30.0;
+
+	// storeID of the row of a user with no store in range
+	public static final int NONE = -1;
+
+	private static final int INSERT_BATCH = 1000;
+	private static final int USERS_PER_TASK = 1024;
+	// how often refreshQueuedStores() looks at the queue
+	private static final long QUEUE_CHECK_MILLIS = 1000;
+
+	private static volatile long queueCheckedAt = 0;
+
+	// shared by every rebuild, its worker threads are daemons
+	private static final ForkJoinPool POOL = new ForkJoinPool();
+
+	// Coordinates of a set of users or stores
+	private static class Points {
+		int[] ids;
+		double[] lat;
+		double[] lon;
+		int size;
+
+		Points(Connection connection, String query) throws SQLException {
+			this.ids = new int[256];
+			this.lat = new double[256];
+			this.lon = new double[256];
+			Statement stmt = connection.createStatement();
+			ResultSet rs = stmt.executeQuery(query);
+			while(rs.next()) {
+				if(this.size == this.ids.length) {
+					this.ids = Arrays.copyOf(this.ids, this.size * 2);
+					this.lat = Arrays.copyOf(this.lat, this.size * 2);
+					this.lon = Arrays.copyOf(this.lon, this.size * 2);
+				}
+				this.ids[this.size] = rs.getInt(1);
+				this.lat[this.size] = rs.getDouble(2);
+				this.lon[this.size] = rs.getDouble(3);
+				this.size++;
+			}
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Computes, for users [from, to), the stores in range. Each user's
+	 * matches are written as "(userID, storeID, distance)" tuples into the
+	 * user's slot of rows. With markEmpty, users without a match get the
+	 * NONE row, otherwise no row.
+	 */
+	private static class Compute extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Points _users;
+		private final Points _stores;
+		private final String[] _rows;
+		private final boolean _markEmpty;
+		private final int _from;
+		private final int _to;
+
+		Compute(Points users, Points stores, String[] rows, boolean markEmpty, int from, int to) {
+			this._users = users;
+			this._stores = stores;
+			this._rows = rows;
+			this._markEmpty = markEmpty;
+			this._from = from;
+			this._to = to;
+		}
+
+		protected void compute() {
+			if(this._to - this._from > USERS_PER_TASK) {
+				int mid = (this._from + this._to) >>> 1;
+				invokeAll(new Compute(this._users, this._stores, this._rows, this._markEmpty, this._from, mid),
+						new Compute(this._users, this._stores, this._rows, this._markEmpty, mid, this._to));
+				return;
+			}
+			double[] storeLat = this._stores.lat;
+			double[] storeLon = this._stores.lon;
+			int stores = this._stores.size;
+			double range2 = RANGE * RANGE;
+			StringBuilder row = new StringBuilder();
+			for(int u = this._from; u < this._to; u++) {
+				double lat = this._users.lat[u];
+				double lon = this._users.lon[u];
+				row.setLength(0);
+				for(int s = 0; s < stores; s++) {
+					double dLat = storeLat[s] - lat;
+					double dLon = storeLon[s] - lon;
+					double d2 = dLat * dLat + dLon * dLon;
+					if(d2 <= range2) {
+						if(row.length() > 0) row.append(", ");
+						row.append('(').append(this._users.ids[u]).append(", ").append(this._stores.ids[s]).append(", ").append(Math.sqrt(d2)).append(')');
+					}
+				}
+				if(row.length() == 0 && this._markEmpty) {
+					row.append('(').append(this._users.ids[u]).append(", ").append(NONE).append(", 0)");
+				}
+				this._rows[u] = row.length() > 0 ? row.toString() : null;
+			}
+		}
+	}
+
+	/**
+	 * Recomputes the table for every user.
+	 *
+	 * @return number of users processed
+	 */
+	public static int rebuildAll(Connection connection) throws SQLException {
+		Points users = new Points(connection, "SELECT userID, latitude, longitude FROM Users;");
+		Points stores = new Points(connection, "SELECT storeID, latitude, longitude FROM Store;");
+		String[] rows = new String[users.size];
+		POOL.invoke(new Compute(users, stores, rows, true, 0, users.size));
+		write(connection, "DELETE FROM UserNearbyStores;", rows, null);
+		return users.size;
+	}
+
+	/**
+	 * Recomputes the stores in range of one user, e.g. after the user
+	 * was created or moved.
+	 */
+	public static void refreshUser(Connection connection, int userID) throws SQLException {
+		Points user = new Points(connection, String.format("SELECT userID, latitude, longitude FROM Users WHERE userID = %d;", userID));
+		Points stores = new Points(connection, "SELECT storeID, latitude, longitude FROM Store;");
+		String[] rows = new String[user.size];
+		new Compute(user, stores, rows, true, 0, user.size).invoke();
+		write(connection, String.format("DELETE FROM UserNearbyStores WHERE userID = %d;", userID), rows, null);
+	}
+
+	/**
+	 * Recomputes which users have one store in range, e.g. after the
+	 * store was added or moved. Other stores' rows are left alone. Users
+	 * left without any row are computed again on their next lookup.
+	 */
+	public static void refreshStore(Connection connection, int storeID) throws SQLException {
+		Points users = new Points(connection, "SELECT userID, latitude, longitude FROM Users;");
+		Points store = new Points(connection, String.format("SELECT storeID, latitude, longitude FROM Store WHERE storeID = %d;", storeID));
+		String[] rows = new String[users.size];
+		POOL.invoke(new Compute(users, store, rows, false, 0, users.size));
+		write(connection, String.format("DELETE FROM UserNearbyStores WHERE storeID = %d;", storeID), rows,
+			String.format("DELETE FROM UserNearbyStores M WHERE M.storeID = %d AND EXISTS (SELECT 1 FROM UserNearbyStores N WHERE N.userID = M.userID AND N.storeID <> %d);", NONE, NONE));
+	}
+
+	/**
+	 * Refreshes the stores the Store trigger queued since the last call,
+	 * looking at the queue at most every QUEUE_CHECK_MILLIS. Stores not
+	 * refreshed because of an error are queued again.
+	 *
+	 * @return number of stores refreshed
+	 */
+	public static int refreshQueuedStores(Connection connection) throws SQLException {
+		long now = System.currentTimeMillis();
+		if(now - queueCheckedAt < QUEUE_CHECK_MILLIS) {
+			return 0;
+		}
+		queueCheckedAt = now;
+		List<Integer> stores = new ArrayList<Integer>();
+		Statement stmt = connection.createStatement();
+		try {
+			// taken off the queue first, so only one process refreshes a store
+			ResultSet rs = stmt.executeQuery("DELETE FROM NearbyStoresQueue RETURNING storeID;");
+			while(rs.next()) {
+				stores.add(rs.getInt(1));
+			}
+		} finally {
+			stmt.close();
+		}
+		int refreshed = 0;
+		try {
+			for(; refreshed < stores.size(); refreshed++) {
+				refreshStore(connection, stores.get(refreshed));
+			}
+		} finally {
+			if(refreshed < stores.size()) {
+				StringBuilder values = new StringBuilder();
+				for(int i = refreshed; i < stores.size(); i++) {
+					values.append(values.length() > 0 ? ", " : "").append('(').append(stores.get(i)).append(')');
+				}
+				stmt = connection.createStatement();
+				try {
+					stmt.executeUpdate("INSERT INTO NearbyStoresQueue (storeID) VALUES " + values + " ON CONFLICT (storeID) DO NOTHING;");
+				} finally {
+					stmt.close();
+				}
+			}
+		}
+		return refreshed;
+	}
+
+	// Replaces rows in one transaction: the delete, then multi-row inserts,
+	// then the after statement unless it is null
+	private static void write(Connection connection, String delete, String[] rows, String after) throws SQLException {
+		boolean autoCommit = connection.getAutoCommit();
+		boolean committed = false;
+		Statement stmt = connection.createStatement();
+		try {
+			connection.setAutoCommit(false);
+			stmt.executeUpdate(delete);
+			StringBuilder insert = new StringBuilder();
+			int batched = 0;
+			for(String row : rows) {
+				if(row == null) continue;
+				insert.append(insert.length() == 0 ? "INSERT INTO UserNearbyStores (userID, storeID, distance) VALUES " : ", ").append(row);
+				if(++batched == INSERT_BATCH) {
+					stmt.executeUpdate(insert.toString());
+					insert.setLength(0);
+					batched = 0;
+				}
+			}
+			if(insert.length() > 0) {
+				stmt.executeUpdate(insert.toString());
+			}
+			if(after != null) {
+				stmt.executeUpdate(after);
+			}
+			connection.commit();
+			committed = true;
+		} finally {
+			try {
+				if(!committed) {
+					connection.rollback();
+				}
+			} finally {
+				stmt.close();
+				connection.setAutoCommit(autoCommit);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length != 3) {
+			System.err.println("Usage: java NearbyStores <dbname> <port> <user>");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		Connection connection = DriverManager.getConnection(url, args[2], "");
+		long start = System.currentTimeMillis();
+		// the rebuild covers the queued stores
+		Statement stmt = connection.createStatement();
+		stmt.executeUpdate("DELETE FROM NearbyStoresQueue;");
+		stmt.close();
+		int users = rebuildAll(connection);
+		System.out.printf("Computed nearby stores for %d users in %d ms\n", users, System.currentTimeMillis() - start);
+		connection.close();
+	}
+}
@@ -0,0 +1,346 @@
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * In-memory column snapshot of Orders for ad hoc admin sales reports.
+ *
+ * Every column is a primitive array indexed by row. Product names are
+ * dictionary encoded into int codes and the hour of day is precomputed at
+ * load time. refresh() only fetches orders from shortly before the newest
+ * orderTime loaded, so repeated reports cost one small query. Order
+ * numbers are reserved in blocks and commit out of order, so they are not
+ * used as the watermark.
+ *
+ * Group-by queries scan the columns in parallel on a fork/join pool, each
+ * task aggregating into dense per-key arrays that are summed on the way up.
+ */
+public class OrderAnalytics {
+
+	public enum Dimension { STORE, PRODUCT, CUSTOMER, HOUR }
+
+	/**
+	 * Row filter. Fields left at their defaults match every order.
+	 */
+	public static class Filter {
+		public int storeID = -1;
+		public String productName = null;
+		public int customerID = -1;
+		public long fromMillis = Long.MIN_VALUE;
+		public long toMillis = Long.MAX_VALUE;
+	}
+
+	/**
+	 * One group of a query result.
+	 */
+	public static class Group {
+		public final String key;
+		public final long orders;
+		public final long units;
+
+		Group(String key, long orders, long units) {
+			this.key = key;
+			this.orders = orders;
+			this.units = units;
+		}
+	}
+
+	private static final int FETCH_SIZE = 10000;
+	// orders are read again from this long before the newest loaded
+	// orderTime, which is set when the inserting transaction starts, so
+	// transactions that commit later are picked up
+	private static final long OVERLAP_MILLIS = 10 * 60 * 1000;
+	private static final int MIN_SPLIT = 1 << 16;
+
+	// shared by every snapshot, its worker threads are daemons
+	private static final ForkJoinPool POOL = new ForkJoinPool();
+
+	// columns
+	private int _size = 0;
+	private int[] _storeID = new int[1024];
+	private int[] _product = new int[1024];
+	private int[] _customerID = new int[1024];
+	private long[] _orderTime = new long[1024];
+	private byte[] _hour = new byte[1024];
+	private int[] _units = new int[1024];
+
+	// product name dictionary
+	private final Map<String, Integer> _productCodes = new HashMap<String, Integer>();
+	private final List<String> _productNames = new ArrayList<String>();
+
+	private int _maxStoreID = 0;
+	private int _maxCustomerID = 0;
+	private long _lastOrderTime = Long.MIN_VALUE;
+	// orderNumber and orderTime of the loaded orders inside the overlap
+	private final Map<Integer, Long> _recent = new HashMap<Integer, Long>();
+
+	public synchronized int size() {
+		return this._size;
+	}
+
+	/**
+	 * Loads orders placed since the last refresh. Orders committed more
+	 * than OVERLAP_MILLIS after their orderTime was set are not picked up.
+	 *
+	 * @param connection connection to read Orders from, FETCH_SIZE rows at a
+	 *        time through a cursor
+	 * @return number of orders added
+	 */
+	public synchronized int refresh(Connection connection) throws SQLException {
+		boolean autoCommit = connection.getAutoCommit();
+		boolean committed = false;
+		Statement stmt = connection.createStatement();
+		int added = 0;
+		try {
+			// a cursor only lives inside a transaction
+			connection.setAutoCommit(false);
+			String where = "";
+			if(this._lastOrderTime != Long.MIN_VALUE) {
+				where = String.format(" WHERE ordertime >= '%s'", new Timestamp(this._lastOrderTime - OVERLAP_MILLIS));
+			}
+			stmt.execute("DECLARE analytics_cursor NO SCROLL CURSOR FOR SELECT ordernumber, storeid, productname, customerid, ordertime, unitsordered FROM orders" + where + " ORDER BY ordertime");
+			Calendar calendar = Calendar.getInstance();
+			int fetched;
+			do {
+				ResultSet rs = stmt.executeQuery("FETCH " + FETCH_SIZE + " FROM analytics_cursor");
+				fetched = 0;
+				while(rs.next()) {
+					fetched++;
+					int orderNumber = rs.getInt(1);
+					long orderTime = rs.getTimestamp(5).getTime();
+					if(this._recent.containsKey(orderNumber)) {
+						continue;
+					}
+					this._recent.put(orderNumber, orderTime);
+					if(this._size == this._storeID.length) {
+						grow();
+					}
+					int row = this._size;
+					int storeID = rs.getInt(2);
+					int customerID = rs.getInt(4);
+					calendar.setTimeInMillis(orderTime);
+
+					this._storeID[row] = storeID;
+					this._product[row] = productCode(rs.getString(3).trim());
+					this._customerID[row] = customerID;
+					this._orderTime[row] = orderTime;
+					this._hour[row] = (byte) calendar.get(Calendar.HOUR_OF_DAY);
+					this._units[row] = rs.getInt(6);
+
+					this._maxStoreID = Math.max(this._maxStoreID, storeID);
+					this._maxCustomerID = Math.max(this._maxCustomerID, customerID);
+					this._lastOrderTime = Math.max(this._lastOrderTime, orderTime);
+					this._size++;
+					added++;
+				}
+				rs.close();
+				// rows come in orderTime order, so the overlap only moves
+				// forward; pruning per batch keeps a cold load from tracking
+				// every order
+				pruneRecent();
+			} while(fetched == FETCH_SIZE);
+			stmt.execute("CLOSE analytics_cursor");
+			connection.commit();
+			committed = true;
+		} finally {
+			try {
+				if(!committed) {
+					// also drops the cursor
+					connection.rollback();
+				}
+			} finally {
+				stmt.close();
+				connection.setAutoCommit(autoCommit);
+			}
+		}
+		return added;
+	}
+
+	// Forgets the orders before the next overlap, they cannot be read again
+	private void pruneRecent() {
+		Iterator<Long> times = this._recent.values().iterator();
+		while(times.hasNext()) {
+			if(times.next() < this._lastOrderTime - OVERLAP_MILLIS) {
+				times.remove();
+			}
+		}
+	}
+
+	/**
+	 * Groups the matching orders by dim and returns order count and units
+	 * per group, most units first.
+	 */
+	public synchronized List<Group> query(Dimension dim, Filter filter) {
+		int domain;
+		switch(dim) {
+			case STORE: domain = this._maxStoreID + 1; break;
+			case PRODUCT: domain = this._productNames.size(); break;
+			case CUSTOMER: domain = this._maxCustomerID + 1; break;
+			default: domain = 24; break;
+		}
+
+		int product = -1;
+		if(filter.productName != null) {
+			Integer code = this._productCodes.get(filter.productName.trim());
+			if(code == null) {
+				return new ArrayList<Group>();
+			}
+			product = code;
+		}
+
+		// keep the per task arrays small compared to the rows they cover
+		int split = Math.max(MIN_SPLIT, domain * 4);
+		long[][] totals = POOL.invoke(new Scan(dim, domain, filter, product, 0, this._size, split));
+
+		List<Group> groups = new ArrayList<Group>();
+		for(int key = 0; key < domain; key++) {
+			if(totals[0][key] > 0) {
+				groups.add(new Group(label(dim, key), totals[0][key], totals[1][key]));
+			}
+		}
+		Collections.sort(groups, new Comparator<Group>() {
+			public int compare(Group a, Group b) {
+				return Long.compare(b.units, a.units);
+			}
+		});
+		return groups;
+	}
+
+	/**
+	 * Adds up the results of the same query on several snapshots, e.g. one
+	 * per shard, by group key. Most units first.
+	 */
+	public static List<Group> merge(List<List<Group>> results) {
+		Map<String, long[]> totals = new HashMap<String, long[]>();
+		for(List<Group> result : results) {
+			for(Group group : result) {
+				long[] total = totals.get(group.key);
+				if(total == null) {
+					total = new long[2];
+					totals.put(group.key, total);
+				}
+				total[0] += group.orders;
+				total[1] += group.units;
+			}
+		}
+		List<Group> groups = new ArrayList<Group>();
+		for(Map.Entry<String, long[]> total : totals.entrySet()) {
+			groups.add(new Group(total.getKey(), total.getValue()[0], total.getValue()[1]));
+		}
+		Collections.sort(groups, new Comparator<Group>() {
+			public int compare(Group a, Group b) {
+				return Long.compare(b.units, a.units);
+			}
+		});
+		return groups;
+	}
+
+	private String label(Dimension dim, int key) {
+		switch(dim) {
+			case PRODUCT: return this._productNames.get(key);
+			case HOUR: return String.format("%02d:00", key);
+			default: return String.valueOf(key);
+		}
+	}
+
+	private int productCode(String name) {
+		Integer code = this._productCodes.get(name);
+		if(code == null) {
+			code = this._productNames.size();
+			this._productNames.add(name);
+			this._productCodes.put(name, code);
+		}
+		return code;
+	}
+
+	private void grow() {
+		int capacity = this._storeID.length * 2;
+		this._storeID = Arrays.copyOf(this._storeID, capacity);
+		this._product = Arrays.copyOf(this._product, capacity);
+		this._customerID = Arrays.copyOf(this._customerID, capacity);
+		this._orderTime = Arrays.copyOf(this._orderTime, capacity);
+		this._hour = Arrays.copyOf(this._hour, capacity);
+		this._units = Arrays.copyOf(this._units, capacity);
+	}
+
+	/**
+	 * Aggregates rows [from, to) into {orders[], units[]} indexed by group key.
+	 */
+	private class Scan extends RecursiveTask<long[][]> {
+		private static final long serialVersionUID = 1L;
+
+		private final Dimension _dim;
+		private final int _domain;
+		private final Filter _filter;
+		private final int _productCode;
+		private final int _from;
+		private final int _to;
+		private final int _split;
+
+		Scan(Dimension dim, int domain, Filter filter, int product, int from, int to, int split) {
+			this._dim = dim;
+			this._domain = domain;
+			this._filter = filter;
+			this._productCode = product;
+			this._from = from;
+			this._to = to;
+			this._split = split;
+		}
+
+		protected long[][] compute() {
+			if(this._to - this._from > this._split) {
+				int mid = (this._from + this._to) >>> 1;
+				Scan left = new Scan(this._dim, this._domain, this._filter, this._productCode, this._from, mid, this._split);
+				Scan right = new Scan(this._dim, this._domain, this._filter, this._productCode, mid, this._to, this._split);
+				left.fork();
+				long[][] totals = right.compute();
+				long[][] other = left.join();
+				for(int key = 0; key < this._domain; key++) {
+					totals[0][key] += other[0][key];
+					totals[1][key] += other[1][key];
+				}
+				return totals;
+			}
+
+			long[] orders = new long[this._domain];
+			long[] units = new long[this._domain];
+			int storeID = this._filter.storeID;
+			int customerID = this._filter.customerID;
+			long fromMillis = this._filter.fromMillis;
+			long toMillis = this._filter.toMillis;
+			int[] keys;
+			switch(this._dim) {
+				case STORE: keys = _storeID; break;
+				case PRODUCT: keys = _product; break;
+				case CUSTOMER: keys = _customerID; break;
+				default: keys = null; break;
+			}
+
+			for(int row = this._from; row < this._to; row++) {
+				if(storeID >= 0 && _storeID[row] != storeID) continue;
+				if(this._productCode >= 0 && _product[row] != this._productCode) continue;
+				if(customerID >= 0 && _customerID[row] != customerID) continue;
+				long time = _orderTime[row];
+				if(time < fromMillis || time >= toMillis) continue;
+
+				int key = keys != null ? keys[row] : _hour[row];
+				orders[key]++;
+				units[key] += _units[row];
+			}
+			return new long[][] { orders, units };
+		}
+	}
+}
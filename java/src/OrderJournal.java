@@ -0,0 +1,383 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only journal of placed orders, stored as memory mapped segment
+ * files so other processes can tail orders without querying Postgres.
+ *
+ * Each segment is a fixed size file named after the journal offset of its
+ * first byte. A record is
+ *
+ *   int length | int orderNumber | int customerID | int storeID |
+ *   int unitsOrdered | long orderTime (epoch millis) |
+ *   short nameLength | productName bytes (UTF-8)
+ *
+ * where length counts the bytes after the length field. The length is
+ * written last, through the file channel rather than the mapping, so a
+ * reader seeing a non zero length sees a whole record. A length of 0 means
+ * nothing has been written there yet and -1 means the rest of the segment
+ * is unused and the next record starts the next segment.
+ *
+ * Several processes may append to one journal. Each append holds an
+ * exclusive FileLock on the current segment and first skips the records
+ * other processes appended. A process opens each journal once through
+ * fromSystemProperties(), since FileLocks do not exclude threads of the
+ * same process.
+ */
+public class OrderJournal {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SUFFIX = ".journal";
+	private static final int HEADER = 4;
+	private static final int FIXED = 4 + 4 + 4 + 4 + 8 + 2;
+	private static final int END_OF_SEGMENT = -1;
+
+	// journals opened by fromSystemProperties(), by directory
+	private static final Map<File, OrderJournal> _open = new HashMap<File, OrderJournal>();
+
+	private final File _dir;
+	private final int _segmentSize;
+	private long _base;
+	private RandomAccessFile _file;
+	private MappedByteBuffer _buffer;
+	private int _position;
+
+	/**
+	 * Opens the journal in dir, creating it when needed. Appends continue
+	 * after the last complete record of the newest segment. Use
+	 * fromSystemProperties() to share one instance in the process.
+	 *
+	 * @param dir directory holding the segment files
+	 * @param segmentSize size in bytes of each segment file
+	 */
+	public OrderJournal(File dir, int segmentSize) throws IOException {
+		this._dir = dir;
+		this._segmentSize = segmentSize;
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create journal directory " + dir);
+		}
+
+		long[] bases = segments(dir);
+		open(bases.length > 0 ? bases[bases.length - 1] : 0);
+		toEnd();
+	}
+
+	/**
+	 * Returns the journal described by the journal.dir and journal.segmentMB
+	 * system properties, opened once per process, or null when journal.dir
+	 * is not set.
+	 */
+	public static OrderJournal fromSystemProperties() throws IOException {
+		String dir = System.getProperty("journal.dir");
+		if(dir == null) {
+			return null;
+		}
+		int segmentMB = Integer.parseInt(System.getProperty("journal.segmentMB", "64"));
+		File file = new File(dir).getCanonicalFile();
+		synchronized(_open) {
+			OrderJournal journal = _open.get(file);
+			if(journal == null) {
+				journal = new OrderJournal(file, segmentMB * 1024 * 1024);
+				_open.put(file, journal);
+			}
+			return journal;
+		}
+	}
+
+	/**
+	 * Appends an order record.
+	 *
+	 * @return journal offset of the record
+	 */
+	public synchronized long append(int orderNumber, int customerID, int storeID, String productName, int unitsOrdered, long orderTime) throws IOException {
+		byte[] name = productName.trim().getBytes(UTF8);
+		int length = FIXED + name.length;
+		if(HEADER + length + HEADER > this._segmentSize) {
+			throw new IOException("Record does not fit in a journal segment");
+		}
+		while(true) {
+			FileChannel channel = this._file.getChannel();
+			FileLock lock = channel.lock();
+			try {
+				// skip what other processes appended
+				if(!toEnd()) {
+					continue;
+				}
+				// always leave room for the end of segment marker
+				if(this._position + HEADER + length + HEADER > this._segmentSize) {
+					publish(this._position, END_OF_SEGMENT);
+					roll();
+					continue;
+				}
+
+				long offset = this._base + this._position;
+				ByteBuffer record = this._buffer.duplicate();
+				record.position(this._position + HEADER);
+				record.putInt(orderNumber);
+				record.putInt(customerID);
+				record.putInt(storeID);
+				record.putInt(unitsOrdered);
+				record.putLong(orderTime);
+				record.putShort((short) name.length);
+				record.put(name);
+
+				publish(this._position, length);
+				this._position += HEADER + length;
+				return offset;
+			} finally {
+				// rolling closed the channel, which released the lock
+				if(channel.isOpen()) {
+					lock.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Journal offset the next record will be written at, unless another
+	 * process appends first.
+	 */
+	public synchronized long endOffset() throws IOException {
+		while(!toEnd()) {
+			// the segment had ended, skip through the next one too
+		}
+		return this._base + this._position;
+	}
+
+	// Writes the length field of a record. Writing it through the channel
+	// orders it after the record bytes stored through the mapping.
+	private void publish(int position, int length) throws IOException {
+		ByteBuffer field = ByteBuffer.allocate(HEADER);
+		field.putInt(length);
+		field.flip();
+		while(field.hasRemaining()) {
+			this._file.getChannel().write(field, position + field.position());
+		}
+	}
+
+	// Moves the append position past the records written so far. Returns
+	// false when it found the end of the segment and moved to the next one.
+	private boolean toEnd() throws IOException {
+		while(this._position + HEADER <= this._segmentSize) {
+			int length = this._buffer.getInt(this._position);
+			if(length == 0) {
+				return true;
+			}
+			if(length == END_OF_SEGMENT) {
+				roll();
+				return false;
+			}
+			this._position += HEADER + length;
+		}
+		return true;
+	}
+
+	/**
+	 * Forces written records to disk.
+	 */
+	public synchronized void flush() {
+		this._buffer.force();
+	}
+
+	/**
+	 * Flushes and closes the journal. A journal shared through
+	 * fromSystemProperties() is closed for the whole process.
+	 */
+	public synchronized void close() {
+		if(this._file == null) {
+			return;
+		}
+		flush();
+		try {
+			this._file.close();
+		} catch(IOException e) {
+			// ignored.
+		}
+		this._file = null;
+		this._buffer = null;
+		synchronized(_open) {
+			if(_open.get(this._dir) == this) {
+				_open.remove(this._dir);
+			}
+		}
+	}
+
+	// Maps the segment starting at base for appending
+	private void open(long base) throws IOException {
+		this._file = new RandomAccessFile(segmentFile(this._dir, base), "rw");
+		this._buffer = this._file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this._segmentSize);
+		this._base = base;
+		this._position = 0;
+	}
+
+	// Starts the next segment
+	private void roll() throws IOException {
+		this._buffer.force();
+		this._file.close();
+		open(this._base + this._segmentSize);
+	}
+
+	private static File segmentFile(File dir, long base) {
+		return new File(dir, String.format("%020d%s", base, SUFFIX));
+	}
+
+	// Sorted base offsets of all segments in dir
+	private static long[] segments(File dir) {
+		String[] names = dir.list();
+		if(names == null) {
+			return new long[0];
+		}
+		long[] bases = new long[names.length];
+		int count = 0;
+		for(String name : names) {
+			if(name.endsWith(SUFFIX)) {
+				bases[count++] = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+			}
+		}
+		bases = Arrays.copyOf(bases, count);
+		Arrays.sort(bases);
+		return bases;
+	}
+
+	private static MappedByteBuffer map(File dir, long base, int size, FileChannel.MapMode mode) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(dir, base), mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+		try {
+			return file.getChannel().map(mode, 0, size);
+		} finally {
+			// the mapping stays valid after the channel is closed
+			file.close();
+		}
+	}
+
+	/**
+	 * Sequential reader over the journal. Records are read in place from
+	 * the mapped segment, the returned Record is reused by the next call.
+	 * Readers are independent of the writer and may live in another process.
+	 */
+	public static class Reader {
+		private final File _dir;
+		private final int _segmentSize;
+		private long _base;
+		private MappedByteBuffer _buffer = null;
+		private int _position;
+		private final Record _record = new Record();
+
+		/**
+		 * @param dir journal directory
+		 * @param segmentSize segment size the journal was written with
+		 * @param offset journal offset of the first record to read, 0 for
+		 *               the oldest segment still on disk
+		 */
+		public Reader(File dir, int segmentSize, long offset) {
+			this._dir = dir;
+			this._segmentSize = segmentSize;
+			long[] bases = segments(dir);
+			if(offset == 0 && bases.length > 0) {
+				offset = bases[0];
+			}
+			this._base = offset - offset % segmentSize;
+			this._position = (int) (offset - this._base);
+		}
+
+		/**
+		 * Offset of the next record to be read. Store it to resume later.
+		 */
+		public long offset() {
+			return this._base + this._position;
+		}
+
+		/**
+		 * Returns the next record, or null when the reader has caught up
+		 * with the writer.
+		 */
+		public Record next() throws IOException {
+			while(true) {
+				if(this._buffer == null) {
+					if(!segmentFile(this._dir, this._base).exists()) {
+						return null;
+					}
+					this._buffer = map(this._dir, this._base, this._segmentSize, FileChannel.MapMode.READ_ONLY);
+				}
+				if(this._position + HEADER > this._segmentSize) {
+					return null;
+				}
+				int length = this._buffer.getInt(this._position);
+				if(length == 0) {
+					return null;
+				}
+				if(length == END_OF_SEGMENT) {
+					this._base += this._segmentSize;
+					this._position = 0;
+					this._buffer = null;
+					continue;
+				}
+				this._record.wrap(this._buffer, this._position + HEADER, this._base + this._position);
+				this._position += HEADER + length;
+				return this._record;
+			}
+		}
+	}
+
+	/**
+	 * View of one journal record. Fields are decoded straight from the
+	 * mapped segment when accessed.
+	 */
+	public static class Record {
+		private ByteBuffer _buffer;
+		private int _start;
+		private long _offset;
+
+		void wrap(ByteBuffer buffer, int start, long offset) {
+			this._buffer = buffer;
+			this._start = start;
+			this._offset = offset;
+		}
+
+		public long offset() { return this._offset; }
+		public int orderNumber() { return this._buffer.getInt(this._start); }
+		public int customerID() { return this._buffer.getInt(this._start + 4); }
+		public int storeID() { return this._buffer.getInt(this._start + 8); }
+		public int unitsOrdered() { return this._buffer.getInt(this._start + 12); }
+		public long orderTime() { return this._buffer.getLong(this._start + 16); }
+
+		public String productName() {
+			int length = this._buffer.getShort(this._start + 24);
+			byte[] name = new byte[length];
+			ByteBuffer view = this._buffer.duplicate();
+			view.position(this._start + FIXED);
+			view.get(name);
+			return new String(name, UTF8);
+		}
+	}
+
+	/**
+	 * Tails a journal and prints each order, e.g.
+	 *   java OrderJournal <dir> [segmentMB] [offset]
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1) {
+			System.err.println("Usage: java OrderJournal <dir> [segmentMB] [offset]");
+			return;
+		}
+		int segmentSize = (args.length > 1 ? Integer.parseInt(args[1]) : 64) * 1024 * 1024;
+		long offset = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		Reader reader = new Reader(new File(args[0]), segmentSize, offset);
+		while(true) {
+			Record record = reader.next();
+			if(record == null) {
+				Thread.sleep(100);
+				continue;
+			}
+			System.out.printf("%d\t%d\t%d\t%d\t%s\t%d\t%d\n", record.offset(), record.orderNumber(), record.customerID(), record.storeID(), record.productName(), record.unitsOrdered(), record.orderTime());
+		}
+	}
+}
@@ -0,0 +1,302 @@
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory search over product names across all stores.
+ *
+ * Distinct names are kept sorted for prefix lookups (binary search) and in
+ * a trigram inverted index for substring and typo tolerant lookups. Each
+ * name has a posting per store carrying it, with the stock and price, so a
+ * hit can be ranked without going back to the database.
+ *
+ * The callers keep the index in sync through adjustStock() and refresh()
+ * whenever they change a product row, and replace it with a freshly loaded
+ * one periodically for the changes made by other processes.
+ */
+public class ProductSearchIndex {
+
+	public enum Mode { PREFIX, SUBSTRING, FUZZY }
+
+	/**
+	 * A product at one store.
+	 */
+	public static class Hit {
+		public final int storeID;
+		public final String productName;
+		public int units;
+		public double price;
+		// edit distance to the query (FUZZY) and distance to the user, if known
+		int editDistance = 0;
+		double distance = -1;
+
+		Hit(int storeID, String productName, int units, double price) {
+			this.storeID = storeID;
+			this.productName = productName;
+			this.units = units;
+			this.price = price;
+		}
+
+		public double distance() {
+			return this.distance;
+		}
+	}
+
+	// normalized name -> postings
+	private final Map<String, List<Hit>> _postings = new HashMap<String, List<Hit>>();
+	// trigram -> normalized names containing it
+	private final Map<String, Set<String>> _trigrams = new HashMap<String, Set<String>>();
+	// sorted normalized names, rebuilt lazily after a name is added
+	private String[] _sorted = new String[0];
+	private boolean _sortedStale = false;
+	// storeID -> {latitude, longitude}
+	private final Map<Integer, double[]> _stores = new HashMap<Integer, double[]>();
+
+	private static String normalize(String name) {
+		return name.trim().toLowerCase();
+	}
+
+	/**
+	 * Loads every product and store location.
+	 */
+	public void load(Connection connection) throws SQLException {
+		loadStores(connection);
+		loadProducts(connection);
+	}
+
+	/**
+	 * Loads the store locations used to rank by distance.
+	 */
+	public synchronized void loadStores(Connection connection) throws SQLException {
+		Statement stmt = connection.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT storeID, latitude, longitude FROM Store;");
+		while(rs.next()) {
+			this._stores.put(rs.getInt(1), new double[] { rs.getDouble(2), rs.getDouble(3) });
+		}
+		stmt.close();
+	}
+
+	/**
+	 * Loads (or reloads) the products in one database, e.g. one shard.
+	 */
+	public synchronized void loadProducts(Connection connection) throws SQLException {
+		Statement stmt = connection.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT storeID, productName, numberOfUnits, pricePerUnit FROM Product;");
+		while(rs.next()) {
+			put(rs.getInt(1), rs.getString(2).trim(), rs.getInt(3), rs.getDouble(4));
+		}
+		stmt.close();
+	}
+
+	/**
+	 * Re-reads one product after it was changed. Removes it when it no
+	 * longer exists.
+	 */
+	public synchronized void refresh(Connection connection, int storeID, String productName) throws SQLException {
+		Statement stmt = connection.createStatement();
+		ResultSet rs = stmt.executeQuery(String.format("SELECT numberOfUnits, pricePerUnit FROM Product WHERE storeID = %d AND productName = '%s';", storeID, productName));
+		if(rs.next()) {
+			put(storeID, productName.trim(), rs.getInt(1), rs.getDouble(2));
+		} else {
+			remove(storeID, productName);
+		}
+		stmt.close();
+	}
+
+	/**
+	 * Applies a known stock change, e.g. units taken by an order.
+	 */
+	public synchronized void adjustStock(int storeID, String productName, int delta) {
+		Hit hit = find(storeID, productName);
+		if(hit != null) {
+			hit.units += delta;
+		}
+	}
+
+	private Hit find(int storeID, String productName) {
+		List<Hit> hits = this._postings.get(normalize(productName));
+		if(hits != null) {
+			for(Hit hit : hits) {
+				if(hit.storeID == storeID) return hit;
+			}
+		}
+		return null;
+	}
+
+	private void put(int storeID, String productName, int units, double price) {
+		Hit hit = find(storeID, productName);
+		if(hit != null) {
+			hit.units = units;
+			hit.price = price;
+			return;
+		}
+		String name = normalize(productName);
+		List<Hit> hits = this._postings.get(name);
+		if(hits == null) {
+			hits = new ArrayList<Hit>();
+			this._postings.put(name, hits);
+			for(String trigram : trigrams(name)) {
+				Set<String> names = this._trigrams.get(trigram);
+				if(names == null) {
+					names = new HashSet<String>();
+					this._trigrams.put(trigram, names);
+				}
+				names.add(name);
+			}
+			this._sortedStale = true;
+		}
+		hits.add(new Hit(storeID, productName, units, price));
+	}
+
+	private void remove(int storeID, String productName) {
+		String name = normalize(productName);
+		List<Hit> hits = this._postings.get(name);
+		if(hits == null) return;
+		for(int i = 0; i < hits.size(); i++) {
+			if(hits.get(i).storeID == storeID) {
+				hits.remove(i);
+				break;
+			}
+		}
+		if(!hits.isEmpty()) return;
+
+		// no store carries the name any more, so drop it from the indexes
+		this._postings.remove(name);
+		for(String trigram : trigrams(name)) {
+			Set<String> names = this._trigrams.get(trigram);
+			if(names == null) continue;
+			names.remove(name);
+			if(names.isEmpty()) {
+				this._trigrams.remove(trigram);
+			}
+		}
+		this._sortedStale = true;
+	}
+
+	// Trigrams of a name padded with spaces, so short names and word
+	// starts get trigrams of their own
+	private static Set<String> trigrams(String name) {
+		String padded = "  " + name + " ";
+		Set<String> result = new HashSet<String>();
+		for(int i = 0; i + 3 <= padded.length(); i++) {
+			result.add(padded.substring(i, i + 3));
+		}
+		return result;
+	}
+
+	/**
+	 * Searches product names.
+	 *
+	 * @param query text to search for
+	 * @param mode PREFIX, SUBSTRING or FUZZY (allows about one typo per four letters)
+	 * @param latitude user latitude used to rank by distance, or a negative value
+	 * @param longitude user longitude used to rank by distance
+	 * @param maxDistance only return stores this close, or a negative value for all
+	 * @return matching products, best match first, then in stock before out
+	 *         of stock, then nearest, then most stock
+	 */
+	public synchronized List<Hit> search(String query, Mode mode, double latitude, double longitude, double maxDistance) {
+		String q = normalize(query);
+		List<Hit> result = new ArrayList<Hit>();
+		if(q.isEmpty()) {
+			return result;
+		}
+
+		Map<String, Integer> names = new HashMap<String, Integer>();
+		if(mode == Mode.PREFIX) {
+			if(this._sortedStale) {
+				this._sorted = this._postings.keySet().toArray(new String[0]);
+				Arrays.sort(this._sorted);
+				this._sortedStale = false;
+			}
+			int i = Arrays.binarySearch(this._sorted, q);
+			if(i < 0) i = -i - 1;
+			for(; i < this._sorted.length && this._sorted[i].startsWith(q); i++) {
+				names.put(this._sorted[i], 0);
+			}
+		} else if(mode == Mode.SUBSTRING && q.length() < 3) {
+			// too short for a trigram of its own inside a word, so scan the names
+			for(String name : this._postings.keySet()) {
+				if(name.contains(q)) names.put(name, 0);
+			}
+		} else {
+			// candidate names share trigrams with the query
+			Map<String, Integer> shared = new HashMap<String, Integer>();
+			Set<String> grams = trigrams(q);
+			for(String trigram : grams) {
+				Set<String> containing = this._trigrams.get(trigram);
+				if(containing == null) continue;
+				for(String name : containing) {
+					Integer count = shared.get(name);
+					shared.put(name, count == null ? 1 : count + 1);
+				}
+			}
+			int maxEdits = Math.max(1, q.length() / 4);
+			for(Map.Entry<String, Integer> candidate : shared.entrySet()) {
+				String name = candidate.getKey();
+				if(mode == Mode.SUBSTRING) {
+					if(name.contains(q)) names.put(name, 0);
+				} else {
+					// each edit destroys at most three trigrams
+					if(candidate.getValue() < grams.size() - 3 * maxEdits) continue;
+					int edits = editDistance(q, name);
+					if(edits <= maxEdits) names.put(name, edits);
+				}
+			}
+		}
+
+		for(Map.Entry<String, Integer> name : names.entrySet()) {
+			for(Hit posting : this._postings.get(name.getKey())) {
+				Hit hit = new Hit(posting.storeID, posting.productName, posting.units, posting.price);
+				hit.editDistance = name.getValue();
+				double[] store = this._stores.get(hit.storeID);
+				if(latitude >= 0 && store != null) {
+					double dLat = store[0] - latitude;
+					double dLon = store[1] - longitude;
+					hit.distance = Math.sqrt(dLat * dLat + dLon * dLon);
+					if(maxDistance >= 0 && hit.distance > maxDistance) continue;
+				}
+				result.add(hit);
+			}
+		}
+
+		Collections.sort(result, new Comparator<Hit>() {
+			public int compare(Hit a, Hit b) {
+				if(a.editDistance != b.editDistance) return a.editDistance - b.editDistance;
+				// a nearer store is no use when it has none left
+				if((a.units > 0) != (b.units > 0)) return a.units > 0 ? -1 : 1;
+				if(a.distance != b.distance) return Double.compare(a.distance, b.distance);
+				return b.units - a.units;
+			}
+		});
+		return result;
+	}
+
+	// Levenshtein distance with two rolling rows
+	private static int editDistance(String a, String b) {
+		int[] prev = new int[b.length() + 1];
+		int[] curr = new int[b.length() + 1];
+		for(int j = 0; j <= b.length(); j++) prev[j] = j;
+		for(int i = 1; i <= a.length(); i++) {
+			curr[0] = i;
+			for(int j = 1; j <= b.length(); j++) {
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				curr[j] = Math.min(Math.min(curr[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+			}
+			int[] swap = prev;
+			prev = curr;
+			curr = swap;
+		}
+		return prev[b.length()];
+	}
+}
@@ -0,0 +1,143 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Latest orders of recently active customers, so "View 5 recent orders"
+ * is served from memory.
+ *
+ * Each cached customer has a fixed size ring buffer of orders, newest
+ * overwriting oldest, with the store name already resolved. A customer's
+ * ring is filled from the database at login and appended to when they
+ * place an order. Customers are evicted least recently used first once
+ * the configured number is cached, so memory is bounded by
+ * customers x orders per customer.
+ *
+ * Orders placed for a customer by another client are not seen until the
+ * ring expires after the configured time to live.
+ */
+public class RecentOrdersCache {
+
+	// one order: store name, store id, product name, units, order time
+	private static class Ring {
+		final String[][] orders;
+		final long loadedAt;
+		int next = 0;
+		int size = 0;
+
+		Ring(int capacity, long loadedAt) {
+			this.orders = new String[capacity][];
+			this.loadedAt = loadedAt;
+		}
+
+		void add(String[] order) {
+			this.orders[this.next] = order;
+			this.next = (this.next + 1) % this.orders.length;
+			if(this.size < this.orders.length) {
+				this.size++;
+			}
+		}
+	}
+
+	private final int _perCustomer;
+	private final long _ttlMillis;
+	private final LinkedHashMap<Integer, Ring> _rings;
+	private final Map<Integer, String> _storeNames = new HashMap<Integer, String>();
+
+	/**
+	 * @param customers max number of customers cached
+	 * @param perCustomer orders kept per customer
+	 * @param ttlMillis how long a ring is used before it is read again
+	 */
+	public RecentOrdersCache(final int customers, int perCustomer, long ttlMillis) {
+		this._perCustomer = perCustomer;
+		this._ttlMillis = ttlMillis;
+		this._rings = new LinkedHashMap<Integer, Ring>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Integer, Ring> eldest) {
+				return size() > customers;
+			}
+		};
+	}
+
+	/**
+	 * Returns a cache sized by recentOrders.customers (default 1000),
+	 * recentOrders.perCustomer (default 5) and recentOrders.ttlSeconds
+	 * (default 300), or null when recentOrders.customers is 0.
+	 */
+	public static RecentOrdersCache fromSystemProperties() {
+		int customers = Integer.parseInt(System.getProperty("recentOrders.customers", "1000"));
+		int perCustomer = Integer.parseInt(System.getProperty("recentOrders.perCustomer", "5"));
+		long ttlSeconds = Long.parseLong(System.getProperty("recentOrders.ttlSeconds", "300"));
+		if(customers <= 0 || perCustomer <= 0) {
+			return null;
+		}
+		return new RecentOrdersCache(customers, perCustomer, ttlSeconds * 1000);
+	}
+
+	public int perCustomer() {
+		return this._perCustomer;
+	}
+
+	/**
+	 * Replaces a customer's ring with orders read from the database.
+	 *
+	 * @param orders rows of store name, store id, product name, units and
+	 *        order time, newest first
+	 */
+	public synchronized void fill(int customerID, List<List<String>> orders) {
+		Ring ring = new Ring(this._perCustomer, System.currentTimeMillis());
+		for(int i = Math.min(orders.size(), this._perCustomer) - 1; i >= 0; i--) {
+			List<String> order = orders.get(i);
+			ring.add(order.toArray(new String[order.size()]));
+			this._storeNames.put(Integer.parseInt(order.get(1).trim()), order.get(0));
+		}
+		this._rings.put(customerID, ring);
+	}
+
+	/**
+	 * Adds a new order to a cached customer's ring. Customers not cached
+	 * are left alone, their ring is read in full when next needed.
+	 *
+	 * @return false when the name of the store is not known yet; call
+	 *         storeName() and try again
+	 */
+	public synchronized boolean append(int customerID, int storeID, String productName, int units, String orderTime) {
+		Ring ring = this._rings.get(customerID);
+		if(ring == null) {
+			return true;
+		}
+		String storeName = this._storeNames.get(storeID);
+		if(storeName == null) {
+			return false;
+		}
+		ring.add(new String[] { storeName, String.valueOf(storeID), productName, String.valueOf(units), orderTime });
+		return true;
+	}
+
+	/**
+	 * Records the name of a store for append().
+	 */
+	public synchronized void storeName(int storeID, String name) {
+		this._storeNames.put(storeID, name);
+	}
+
+	/**
+	 * Returns a customer's orders, newest first, or null when the customer
+	 * is not cached or the ring expired.
+	 */
+	public synchronized List<List<String>> recent(int customerID) {
+		Ring ring = this._rings.get(customerID);
+		if(ring == null || System.currentTimeMillis() - ring.loadedAt > this._ttlMillis) {
+			return null;
+		}
+		List<List<String>> orders = new ArrayList<List<String>>(ring.size);
+		for(int i = 1; i <= ring.size; i++) {
+			String[] order = ring.orders[(ring.next - i + ring.orders.length) % ring.orders.length];
+			orders.add(new ArrayList<String>(Arrays.asList(order)));
+		}
+		return orders;
+	}
+}
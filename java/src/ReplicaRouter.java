@@ -0,0 +1,217 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Picks the connection for reads that can tolerate some staleness. Such
+ * reads go to a read-only replica while it is reachable, not lagging more
+ * than the configured limit and has replayed this session's last write.
+ * Everything else, and every read while the replica is unusable, goes to
+ * the primary.
+ *
+ * Read-your-writes compares WAL positions: after a write, the primary's
+ * current WAL position is read once, before the next replica read, and
+ * the replica is used again when its replayed position has passed it.
+ * Lag is measured on the replica as the age of the last replayed
+ * transaction by its own clock, and is zero when it has replayed all WAL
+ * it received. A server that is not in recovery reports no lag and no
+ * replay position, so a plain second Postgres instance can stand in for
+ * a replica when testing.
+ */
+public class ReplicaRouter {
+
+	private final Connection _primary;
+	private Connection _replica;
+	private final long _maxLagMillis;
+	private final long _lagCheckMillis;
+	private final long _retryMillis;
+
+	// WAL functions were renamed in Postgres 10
+	private String _currentLsn = null;
+	private String _receiveLsn;
+	private String _replayLsn;
+
+	// last time the replica lag was measured and its replay position
+	private long _lagCheckedAt = 0;
+	private long _replayedLsn = 0;
+	private long _lagMillis = 0;
+
+	// primary WAL position after this session's last write, read lazily
+	private boolean _writePending = false;
+	private long _lastWriteLsn = 0;
+
+	// when the replica failed, it is not tried again for _retryMillis
+	private long _failedAt = 0;
+
+	public ReplicaRouter(Connection primary, Connection replica, long maxLagMillis, long lagCheckMillis, long retryMillis) {
+		this._primary = primary;
+		this._replica = replica;
+		this._maxLagMillis = maxLagMillis;
+		this._lagCheckMillis = lagCheckMillis;
+		this._retryMillis = retryMillis;
+	}
+
+	/**
+	 * Builds a router from the replica.* system properties. Without
+	 * replica.port every read is sent to the primary.
+	 *
+	 * @param primary the primary connection
+	 * @param dbname database name used when replica.db is not set
+	 */
+	public static ReplicaRouter fromSystemProperties(Connection primary, String dbname, String user, String passwd) {
+		long maxLag = Long.parseLong(System.getProperty("replica.maxLagMillis", "5000"));
+		long lagCheck = Long.parseLong(System.getProperty("replica.lagCheckMillis", "1000"));
+		long retry = Long.parseLong(System.getProperty("replica.retryMillis", "30000"));
+
+		Connection replica = null;
+		String port = System.getProperty("replica.port");
+		if(port != null) {
+			String host = System.getProperty("replica.host", "localhost");
+			String url = "jdbc:postgresql://" + host + ":" + port + "/" + System.getProperty("replica.db", dbname);
+			try {
+				replica = DriverManager.getConnection(url, user, passwd);
+				replica.setReadOnly(true);
+				System.out.println("Replica URL: " + url);
+			} catch(SQLException e) {
+				System.err.println("Replica unavailable, reading from primary: " + e.getMessage());
+			}
+		}
+		return new ReplicaRouter(primary, replica, maxLag, lagCheck, retry);
+	}
+
+	public Connection primary() {
+		return this._primary;
+	}
+
+	/**
+	 * Records that this session wrote to the primary. Replica reads are
+	 * held back until the replica has replayed past this point.
+	 */
+	public void noteWrite() {
+		if(this._replica != null) {
+			this._writePending = true;
+		}
+	}
+
+	/**
+	 * Returns the connection a stale-tolerant read should use.
+	 */
+	public Connection connectionForRead() {
+		if(this._replica == null) {
+			return this._primary;
+		}
+		long now = System.currentTimeMillis();
+		if(this._failedAt != 0 && now - this._failedAt < this._retryMillis) {
+			return this._primary;
+		}
+		try {
+			if(this._writePending) {
+				this._lastWriteLsn = primaryLsn();
+				this._writePending = false;
+			}
+		} catch(SQLException e) {
+			System.err.println("Could not read the primary WAL position: " + e.getMessage());
+			return this._primary;
+		}
+		if(now - this._lagCheckedAt >= this._lagCheckMillis || this._replayedLsn < this._lastWriteLsn) {
+			try {
+				checkLag(now);
+			} catch(SQLException e) {
+				replicaFailed(e);
+				return this._primary;
+			}
+		}
+		if(this._lagMillis > this._maxLagMillis || this._replayedLsn < this._lastWriteLsn) {
+			return this._primary;
+		}
+		return this._replica;
+	}
+
+	/**
+	 * Called when a read on the replica failed. Reads fall back to the
+	 * primary until the retry interval has passed.
+	 */
+	public void replicaFailed(SQLException e) {
+		System.err.println("Replica read failed, using primary: " + e.getMessage());
+		this._failedAt = System.currentTimeMillis();
+	}
+
+	public boolean isReplica(Connection connection) {
+		return connection != this._primary;
+	}
+
+	// Picks the WAL function names of the primary's version
+	private void functions() throws SQLException {
+		if(this._currentLsn != null) {
+			return;
+		}
+		Statement stmt = this._primary.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT current_setting('server_version_num')");
+			boolean wal = rs.next() && Integer.parseInt(rs.getString(1).trim()) >= 100000;
+			this._currentLsn = wal ? "pg_current_wal_lsn()" : "pg_current_xlog_location()";
+			this._receiveLsn = wal ? "pg_last_wal_receive_lsn()" : "pg_last_xlog_receive_location()";
+			this._replayLsn = wal ? "pg_last_wal_replay_lsn()" : "pg_last_xlog_replay_location()";
+		} finally {
+			stmt.close();
+		}
+	}
+
+	// Parses a WAL position such as 16/B374D848
+	private static long lsn(String value) {
+		int slash = value.indexOf('/');
+		return (Long.parseLong(value.substring(0, slash), 16) << 32) | Long.parseLong(value.substring(slash + 1).trim(), 16);
+	}
+
+	private long primaryLsn() throws SQLException {
+		functions();
+		Statement stmt = this._primary.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT " + this._currentLsn);
+			return rs.next() ? lsn(rs.getString(1)) : 0;
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private void checkLag(long now) throws SQLException {
+		functions();
+		Statement stmt = this._replica.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(String.format(
+				"SELECT %s, CASE WHEN %s = %s THEN 0 ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000 END",
+				this._replayLsn, this._receiveLsn, this._replayLsn));
+			long replayedLsn = Long.MAX_VALUE;
+			long lagMillis = 0;
+			if(rs.next()) {
+				String replayed = rs.getString(1);
+				String lag = rs.getString(2);
+				// null when the server is not a standby, it is then always current
+				if(replayed != null) {
+					replayedLsn = lsn(replayed);
+				}
+				if(lag != null) {
+					lagMillis = (long) Double.parseDouble(lag);
+				}
+			}
+			this._lagCheckedAt = now;
+			this._replayedLsn = replayedLsn;
+			this._lagMillis = Math.max(0, lagMillis);
+			this._failedAt = 0;
+		} finally {
+			stmt.close();
+		}
+	}
+
+	public void close() {
+		try {
+			if(this._replica != null) {
+				this._replica.close();
+			}
+		} catch(SQLException e) {
+			// ignored.
+		}
+	}
+}
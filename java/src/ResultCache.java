@@ -0,0 +1,250 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Results of read queries that many users run unchanged, such as the store
+ * scans, a store's product list and the popularity reports.
+ *
+ * Entries are keyed by the database they were read from and the query
+ * text with whitespace collapsed. Queries are built with their parameters
+ * formatted in, so the key covers them too. Each entry is tagged with the
+ * tables the query names and is dropped when a statement run through
+ * Retail writes one of them, when it is older than the time to live, or
+ * least recently used first once the cache is full. Writes name the
+ * tables they change explicitly. Only queries that ask for it are cached.
+ *
+ * The cache is shared by every Retail in the process. Writes made by
+ * other processes, or written back later by the audit writer and the
+ * inventory counters, show up after the time to live at the latest.
+ */
+public class ResultCache {
+
+	// table lists after the keywords that read or write them, each table
+	// with an optional alias: "FROM UserNearbyStores N, Store S"
+	private static final String TABLE = "[a-z_][a-z0-9_]*(?:\\s+(?:as\\s+)?[a-z_][a-z0-9_]*)?";
+	private static final Pattern TABLES = Pattern.compile("\\b(?:from|join|update|into)\\s+(" + TABLE + "(?:\\s*,\\s*" + TABLE + ")*)", Pattern.CASE_INSENSITIVE);
+
+	private static boolean _loaded = false;
+	private static ResultCache _shared = null;
+
+	private static class Cached {
+		final List<List<String>> rows;
+		final Set<String> tables;
+		final long loadedAt;
+
+		Cached(List<List<String>> rows, Set<String> tables, long loadedAt) {
+			this.rows = rows;
+			this.tables = tables;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	private final int _maxRows;
+	private final long _ttlMillis;
+	private final LinkedHashMap<String, Cached> _entries;
+	// bumped by every invalidation, so a result read before one is not stored after it
+	private long _version = 0;
+
+	private long _hits = 0;
+	private long _misses = 0;
+	private long _evictions = 0;
+	private long _invalidations = 0;
+
+	/**
+	 * @param entries max number of results cached
+	 * @param maxRows results with more rows are not cached
+	 * @param ttlMillis how long a result is used before it is read again
+	 */
+	public ResultCache(final int entries, int maxRows, long ttlMillis) {
+		this._maxRows = maxRows;
+		this._ttlMillis = ttlMillis;
+		this._entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+				if(size() > entries) {
+					_evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cache of this process, built on first use from
+	 * resultCache.entries (default 0, off), resultCache.maxRows (default
+	 * 1000) and resultCache.ttlSeconds (default 30), or null when it is off.
+	 */
+	public static synchronized ResultCache shared() {
+		if(!_loaded) {
+			int entries = Integer.parseInt(System.getProperty("resultCache.entries", "0"));
+			int maxRows = Integer.parseInt(System.getProperty("resultCache.maxRows", "1000"));
+			long ttlSeconds = Long.parseLong(System.getProperty("resultCache.ttlSeconds", "30"));
+			if(entries > 0) {
+				_shared = new ResultCache(entries, maxRows, ttlSeconds * 1000);
+			}
+			_loaded = true;
+		}
+		return _shared;
+	}
+
+	// Collapses whitespace outside quoted literals
+	static String normalize(String query) {
+		StringBuilder sql = new StringBuilder(query.length());
+		boolean quoted = false;
+		boolean space = false;
+		for(int i = 0; i < query.length(); i++) {
+			char c = query.charAt(i);
+			if(c == '\'') {
+				quoted = !quoted;
+			}
+			if(!quoted && Character.isWhitespace(c)) {
+				space = true;
+				continue;
+			}
+			if(space && sql.length() > 0) {
+				sql.append(' ');
+			}
+			space = false;
+			sql.append(c);
+		}
+		return sql.toString();
+	}
+
+	/**
+	 * Returns the lower case names of the tables a statement reads or
+	 * writes.
+	 */
+	static Set<String> tables(String sql) {
+		Set<String> tables = new HashSet<String>();
+		Matcher m = TABLES.matcher(sql);
+		while(m.find()) {
+			for(String table : m.group(1).split(",")) {
+				tables.add(table.trim().split("\\s+")[0].toLowerCase());
+			}
+		}
+		return tables;
+	}
+
+	private static List<List<String>> copy(List<List<String>> rows) {
+		List<List<String>> copy = new ArrayList<List<String>>(rows.size());
+		for(List<String> row : rows) {
+			copy.add(new ArrayList<String>(row));
+		}
+		return copy;
+	}
+
+	/**
+	 * Returns a copy of the cached result of query on database, or null
+	 * when it is not cached.
+	 *
+	 * @param database the database the query runs on, e.g. "shard 0"
+	 */
+	public synchronized List<List<String>> get(String database, String query) {
+		String key = database + '\n' + normalize(query);
+		Cached entry = this._entries.get(key);
+		if(entry != null && System.currentTimeMillis() - entry.loadedAt > this._ttlMillis) {
+			this._entries.remove(key);
+			this._evictions++;
+			entry = null;
+		}
+		if(entry == null) {
+			this._misses++;
+			return null;
+		}
+		this._hits++;
+		return copy(entry.rows);
+	}
+
+	/**
+	 * Returns the version to pass to put() for a result about to be read.
+	 */
+	public synchronized long version() {
+		return this._version;
+	}
+
+	/**
+	 * Caches a copy of a result, unless a table was written since version
+	 * was taken or the result is too large.
+	 */
+	public synchronized void put(String database, String query, List<List<String>> rows, long version) {
+		if(version != this._version || rows.size() > this._maxRows) {
+			return;
+		}
+		String sql = normalize(query);
+		this._entries.put(database + '\n' + sql, new Cached(copy(rows), tables(sql), System.currentTimeMillis()));
+	}
+
+	/**
+	 * Drops the results that read a table the statement writes, or every
+	 * result when it names no table, e.g. a function call. Writers that
+	 * know their tables should call invalidateTables() instead.
+	 */
+	public void invalidate(String sql) {
+		Set<String> tables = tables(sql);
+		if(tables.isEmpty()) {
+			clear();
+		} else {
+			invalidateTables(tables);
+		}
+	}
+
+	/**
+	 * Drops the results that read any of the given lower case table names.
+	 */
+	public synchronized void invalidateTables(Set<String> tables) {
+		this._version++;
+		Iterator<Cached> entries = this._entries.values().iterator();
+		while(entries.hasNext()) {
+			Cached entry = entries.next();
+			for(String table : entry.tables) {
+				if(tables.contains(table)) {
+					entries.remove();
+					this._invalidations++;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops every result, e.g. after rows moved between databases.
+	 */
+	public synchronized void clear() {
+		this._version++;
+		this._invalidations += this._entries.size();
+		this._entries.clear();
+	}
+
+	public synchronized long hits() {
+		return this._hits;
+	}
+
+	public synchronized long misses() {
+		return this._misses;
+	}
+
+	/**
+	 * Results dropped because the cache was full or they expired.
+	 */
+	public synchronized long evictions() {
+		return this._evictions;
+	}
+
+	/**
+	 * Results dropped because a table they read was written.
+	 */
+	public synchronized long invalidations() {
+		return this._invalidations;
+	}
+
+	public synchronized int size() {
+		return this._entries.size();
+	}
+}
@@ -0,0 +1,238 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.BufferedWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams a query result to a file or stdout as CSV or JSON.
+ *
+ * Rows are fetched from an explicitly declared cursor, FETCH_SIZE at a
+ * time (the driver would otherwise buffer the whole result), and written
+ * through one large buffer onto a file channel, optionally gzip
+ * compressed. Memory use does not depend on the size of the result,
+ * so whole tables can be exported whatever the heap size.
+ */
+public class ResultExporter {
+
+	public enum Format { CSV, JSON }
+
+	private static final int FETCH_SIZE = 5000;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Format _format;
+	private final boolean _gzip;
+
+	public ResultExporter(Format format, boolean gzip) {
+		this._format = format;
+		this._gzip = gzip;
+	}
+
+	/**
+	 * Runs the query and writes every row to path.
+	 *
+	 * @param connection connection to run the query on
+	 * @param query the input query string
+	 * @param path output file, or null for stdout
+	 * @return the number of rows written
+	 */
+	public long export(Connection connection, String query, String path) throws SQLException, IOException {
+		Statement stmt = connection.createStatement();
+		try {
+			return export(stmt, query, path);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Runs the query on a statement made by the caller, e.g. one it can
+	 * cancel, and writes every row to path. The statement is left open.
+	 *
+	 * @param stmt statement to run the query on
+	 * @param query the input query string
+	 * @param path output file, or null for stdout
+	 * @return the number of rows written
+	 */
+	public long export(Statement stmt, String query, String path) throws SQLException, IOException {
+		Connection connection = stmt.getConnection();
+		String select = query.trim();
+		if(select.endsWith(";")) {
+			select = select.substring(0, select.length() - 1);
+		}
+
+		boolean autoCommit = connection.getAutoCommit();
+		boolean committed = false;
+		OutputStream out = null;
+		Writer writer = null;
+		long rowCount = 0;
+		try {
+			// a cursor only lives inside a transaction
+			connection.setAutoCommit(false);
+			stmt.execute("DECLARE export_cursor NO SCROLL CURSOR FOR " + select);
+
+			WritableByteChannel channel;
+			if(path == null) {
+				channel = Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+			} else {
+				channel = new FileOutputStream(path).getChannel();
+			}
+			out = Channels.newOutputStream(channel);
+			if(this._gzip) {
+				out = new GZIPOutputStream(out, BUFFER_SIZE);
+			}
+			writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+
+			String[] names = null;
+			boolean[] numeric = null;
+			int numCol = 0;
+			int fetched;
+			do {
+				ResultSet rs = stmt.executeQuery("FETCH " + FETCH_SIZE + " FROM export_cursor");
+				if(names == null) {
+					ResultSetMetaData rsmd = rs.getMetaData();
+					numCol = rsmd.getColumnCount();
+					names = new String[numCol + 1];
+					numeric = new boolean[numCol + 1];
+					for(int i = 1; i <= numCol; i++) {
+						names[i] = rsmd.getColumnName(i);
+						numeric[i] = isNumeric(rsmd.getColumnType(i));
+					}
+					if(this._format == Format.CSV) {
+						for(int i = 1; i <= numCol; i++) {
+							if(i > 1) writer.write(',');
+							writeCsv(writer, names[i]);
+						}
+						writer.write('\n');
+					} else {
+						writer.write('[');
+					}
+				}
+
+				fetched = 0;
+				while(rs.next()) {
+					if(this._format == Format.CSV) {
+						for(int i = 1; i <= numCol; i++) {
+							if(i > 1) writer.write(',');
+							writeCsv(writer, rs.getString(i));
+						}
+						writer.write('\n');
+					} else {
+						writer.write(rowCount == 0 ? "\n{" : ",\n{");
+						for(int i = 1; i <= numCol; i++) {
+							if(i > 1) writer.write(',');
+							writeJsonString(writer, names[i]);
+							writer.write(':');
+							String value = rs.getString(i);
+							if(value == null) {
+								writer.write("null");
+							} else if(numeric[i]) {
+								writer.write(value);
+							} else {
+								writeJsonString(writer, value);
+							}
+						}
+						writer.write('}');
+					}
+					fetched++;
+					rowCount++;
+				}
+				rs.close();
+			} while(fetched == FETCH_SIZE);
+
+			if(this._format == Format.JSON) {
+				writer.write("\n]\n");
+			}
+			stmt.execute("CLOSE export_cursor");
+			connection.commit();
+			committed = true;
+		} finally {
+			try {
+				if(!committed) {
+					// also drops the cursor
+					connection.rollback();
+				}
+			} finally {
+				connection.setAutoCommit(autoCommit);
+				if(writer != null && path == null) {
+					// leave stdout open
+					writer.flush();
+					if(out instanceof GZIPOutputStream) {
+						((GZIPOutputStream) out).finish();
+					}
+					out.flush();
+				} else if(writer != null) {
+					writer.close();
+				} else if(out != null && path != null) {
+					out.close();
+				}
+			}
+		}
+		return rowCount;
+	}
+
+	private static boolean isNumeric(int type) {
+		switch(type) {
+			case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+			case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.NUMERIC: case Types.DECIMAL:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	// Quotes a CSV field only when it needs it
+	private static void writeCsv(Writer writer, String value) throws IOException {
+		if(value == null) {
+			return;
+		}
+		boolean quote = false;
+		for(int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if(!quote) {
+			writer.write(value);
+			return;
+		}
+		writer.write('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"') writer.write('"');
+			writer.write(c);
+		}
+		writer.write('"');
+	}
+
+	private static void writeJsonString(Writer writer, String value) throws IOException {
+		writer.write('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch(c) {
+				case '"': writer.write("\\\""); break;
+				case '\\': writer.write("\\\\"); break;
+				case '\n': writer.write("\\n"); break;
+				case '\r': writer.write("\\r"); break;
+				case '\t': writer.write("\\t"); break;
+				default:
+					if(c < 0x20) {
+						writer.write(String.format("\\u%04x", (int) c));
+					} else {
+						writer.write(c);
+					}
+			}
+		}
+		writer.write('"');
+	}
+}
@@ -23,6 +23,13 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.lang.Math;
 
 /**
@@ -36,13 +43,51 @@ public class Retail {
 	private Connection _connection = null;
 
 	// handling the keyboard inputs through a BufferedReader
-	// This variable can be global for convenience.
-	static BufferedReader in = new BufferedReader(
-			new InputStreamReader(System.in));
+	// This variable can be global for convenience. Each thread reads
+	// its own session, which lets Workload record and replay sessions.
+	static Workload.Input in = new Workload.Input(new BufferedReader(
+			new InputStreamReader(System.in)));
 
 	// Current signed in user
 	public User current_user = null;
 
+	// Writes ProductUpdates audit rows, possibly in the background
+	private AuditWriter _auditWriter = null;
+
+	// Optional journal of placed orders for downstream consumers
+	private OrderJournal _orderJournal = null;
+
+	// Sends stale-tolerant reads to a replica when one is configured
+	private ReplicaRouter _router = null;
+
+	// Column snapshots of Orders per shard for admin sales reports, loaded on first use
+	private OrderAnalytics[] _analytics = null;
+
+	// Sends store scoped statements to the shard holding the store
+	private ShardRouter _shards = null;
+
+	// Latest orders of recently signed in customers
+	private RecentOrdersCache _recentOrders = null;
+
+	// In-memory stock counters, only with inventory.mode=striped
+	private InventoryCounters _inventory = null;
+
+	// Order numbers reserved from orderNumber_seq in blocks
+	private IdAllocator _orderIds = null;
+
+	// Product name search index, loaded on first search and again every
+	// search.reloadSeconds (default 300, 0 for never) to pick up changes
+	// made by other processes
+	private ProductSearchIndex _searchIndex = null;
+	private long _searchIndexLoadedAt = 0;
+	private final long _searchReloadMillis = Long.parseLong (System.getProperty ("search.reloadSeconds", "300")) * 1000;
+
+	// Concurrency limits and timeouts of interactive and report queries
+	private AdmissionController _admission = AdmissionController.shared ();
+
+	// Results of queries run with cache = true, off unless resultCache.entries is set
+	private ResultCache _resultCache = ResultCache.shared ();
+
 	/**
 	 * Creates a new instance of Retail shop
 	 *
@@ -62,6 +107,19 @@ public class Retail {
 
 			// obtain a physical connection
 			this._connection = DriverManager.getConnection(url, user, passwd);
+			this._auditWriter = AuditWriter.fromSystemProperties(url, user, passwd, this._connection);
+			this._orderJournal = OrderJournal.fromSystemProperties();
+			this._router = ReplicaRouter.fromSystemProperties(this._connection, dbname, user, passwd);
+			this._inventory = InventoryCounters.fromSystemProperties(url, user, passwd);
+			this._shards = ShardRouter.fromSystemProperties(this._connection, dbname, user, passwd);
+			if (this._shards.count() > 1 && this._inventory != null){
+				// the counters write back to the home database only
+				this._inventory.close();
+				this._inventory = null;
+				throw new SQLException("inventory.mode=striped cannot be used with shard.ports");
+			}//end if
+			this._recentOrders = RecentOrdersCache.fromSystemProperties();
+			this._orderIds = new IdAllocator(this._connection, "orderNumber_seq", Integer.parseInt(System.getProperty("ids.blockSize", "16")));
 			System.out.println("Done");
 		}catch (Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -81,19 +139,114 @@ public class Retail {
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 *
 	 * @param sql the input SQL string
+	 * @param tables the tables the statement writes, their cached results
+	 *        are dropped; when none are given they are read from sql
 	 * @throws java.sql.SQLException when update failed
 	 */
-	public void executeUpdate (String sql) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public void executeUpdate (String sql, String... tables) throws SQLException {
+		AdmissionController.Operation op = this._admission.begin (AdmissionController.QueryClass.INTERACTIVE);
+		try{
+			// creates a statement object, closed when the operation ends
+			Statement stmt = op.statement (this._connection);
 
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+			// issues the update instruction
+			stmt.executeUpdate (sql);
+			this._router.noteWrite ();
+		}finally{
+			invalidateCachedResults (sql, tables);
+			op.end ();
+		}//end try
+	}//end executeUpdate
 
-		// close the instruction
-		stmt.close ();
+	/**
+	 * Method to execute an update SQL statement on the rows of one store,
+	 * on the shard holding that store.
+	 *
+	 * @param storeID the store the statement changes
+	 * @param sql the input SQL string
+	 * @param tables the tables the statement writes
+	 * @throws java.sql.SQLException when update failed
+	 */
+	public void executeUpdate (int storeID, String sql, String... tables) throws SQLException {
+		AdmissionController.Operation op = this._admission.begin (AdmissionController.QueryClass.INTERACTIVE);
+		try{
+			// waits while the store moves
+			op.use (this._connection);
+			Connection connection = this._shards.beginWrite (storeID);
+			try{
+				op.statement (connection).executeUpdate (sql);
+				if (connection == this._connection)
+					this._router.noteWrite ();
+			}finally{
+				this._shards.endWrite (storeID);
+			}//end try
+		}finally{
+			invalidateCachedResults (sql, tables);
+			op.end ();
+		}//end try
 	}//end executeUpdate
 
+	/**
+	 * Method to execute a statement that changes the rows of many stores
+	 * on every shard and returns one row per shard, such as an UPDATE ...
+	 * RETURNING in a WITH query. It runs as a heavy operation with the
+	 * heavy statement_timeout, holding the lock of bulk writes so no store
+	 * moves meanwhile. Each shard runs the statement in its own transaction,
+	 * so the statement should be safe to run again on a shard that failed.
+	 *
+	 * @param sql the input SQL string
+	 * @param tables the tables the statement writes
+	 * @return the row each shard returned, in shard order, null for the
+	 *         shards where the statement failed and nothing was changed
+	 * @throws java.sql.SQLException when the operation was not admitted or
+	 *         the stores could not be locked
+	 */
+	public List<List<String>> executeBulkUpdateOnAllShards (String sql, String... tables) throws SQLException {
+		AdmissionController.Operation op = beginBulkOperation ();
+		try{
+			this._shards.beginBulkWrite ();
+			try{
+				List<List<String>> result = new ArrayList<List<String>>();
+				for (int shard = 0; shard < this._shards.count (); shard++){
+					try{
+						result.add (executeInTransaction (op, this._shards.shard (shard), sql).get (0));
+					}catch (SQLException e){
+						System.err.println (String.format ("Shard %d not updated: %s", shard, e.getMessage ()));
+						result.add (null);
+					}//end try
+				}//end for
+				return result;
+			}finally{
+				this._shards.endBulkWrite ();
+			}//end try
+		}finally{
+			invalidateCachedResults (sql, tables);
+			op.end ();
+		}//end try
+	}//end executeBulkUpdateOnAllShards
+
+	// Runs a statement returning rows in a transaction of its own
+	private List<List<String>> executeInTransaction (AdmissionController.Operation op, Connection connection, String sql) throws SQLException {
+		boolean autoCommit = connection.getAutoCommit ();
+		boolean committed = false;
+		try{
+			connection.setAutoCommit (false);
+			List<List<String>> result = executeQueryAndReturnResult (op, connection, sql);
+			connection.commit ();
+			committed = true;
+			if (connection == this._connection)
+				this._router.noteWrite ();
+			return result;
+		}finally{
+			try{
+				if (!committed)
+					connection.rollback ();
+			}finally{
+				connection.setAutoCommit (autoCommit);
+			}//end try
+		}//end try
+	}//end executeInTransaction
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
@@ -119,18 +272,22 @@ public class Retail {
 		int rowCount = 0;
 
 		// iterates through the result set and output them to standard out.
+		// each line is built first and printed with a single call.
 		boolean outputHeader = true;
+		StringBuilder line = new StringBuilder ();
 		while (rs.next()){
 			if(outputHeader){
 				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
+					line.append (rsmd.getColumnName(i)).append ('\t');
 				}
-				System.out.println();
+				System.out.println(line);
+				line.setLength (0);
 				outputHeader = false;
 			}
 			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
+				line.append (rs.getString (i)).append ('\t');
+			System.out.println (line);
+			line.setLength (0);
 			++rowCount;
 		}//end while
 		stmt.close ();
@@ -147,8 +304,256 @@ public class Retail {
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		return executeQueryAndReturnResult (this._connection, query);
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute a query on the rows of one store, on the shard
+	 * holding that store.
+	 *
+	 * @param storeID the store the query reads
+	 * @param query the input query string
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (int storeID, String query) throws SQLException {
+		return executeQueryAndReturnResult (this._shards.forStore (storeID), query);
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute a query whose result may be served from, and
+	 * stored in, the result cache. Use it for queries many users run
+	 * unchanged on tables that are written rarely.
+	 *
+	 * @param query the input query string
+	 * @param cache whether the result cache may be used for this query
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query, boolean cache) throws SQLException {
+		if (!cache || this._resultCache == null)
+			return executeQueryAndReturnResult (query);
+		List<List<String>> result = this._resultCache.get ("shard 0", query);
+		if (result == null){
+			long version = this._resultCache.version ();
+			result = executeQueryAndReturnResult (query);
+			this._resultCache.put ("shard 0", query, result, version);
+		}//end if
+		return result;
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute a query on the rows of one store that may be
+	 * served from the result cache.
+	 *
+	 * @param storeID the store the query reads
+	 * @param query the input query string
+	 * @param cache whether the result cache may be used for this query
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (int storeID, String query, boolean cache) throws SQLException {
+		if (!cache || this._resultCache == null)
+			return executeQueryAndReturnResult (storeID, query);
+		String database = "shard " + this._shards.shardOf (storeID);
+		List<List<String>> result = this._resultCache.get (database, query);
+		if (result == null){
+			long version = this._resultCache.version ();
+			result = executeQueryAndReturnResult (storeID, query);
+			this._resultCache.put (database, query, result, version);
+		}//end if
+		return result;
+	}//end executeQueryAndReturnResult
+
+	private List<List<String>> executeQueryAndReturnResult (Connection connection, String query) throws SQLException {
+		AdmissionController.Operation op = this._admission.begin (AdmissionController.QueryClass.INTERACTIVE);
+		try{
+			return executeQueryAndReturnResult (op, connection, query);
+		}finally{
+			op.end ();
+		}//end try
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute a query on every shard and merge the results.
+	 * Each shard should order and limit its rows the same way as the
+	 * merge does.
+	 *
+	 * @param query the input query string
+	 * @param order order of the merged records, or null to keep shard order
+	 * @param limit max number of records, or -1 for all
+	 * @return the merged query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query on a shard
+	 */
+	public List<List<String>> executeQueryOnAllShards (String query, Comparator<List<String>> order, int limit) throws SQLException {
+		AdmissionController.Operation op = this._admission.begin (AdmissionController.QueryClass.INTERACTIVE);
+		try{
+			return this._shards.queryAll (op, query, order, limit);
+		}finally{
+			op.end ();
+		}//end try
+	}//end executeQueryOnAllShards
+
+	/**
+	 * Method to execute a report query on every shard and merge the
+	 * results. Runs as a heavy operation that the user can cancel.
+	 *
+	 * @see #executeQueryOnAllShards(String, Comparator, int)
+	 */
+	public List<List<String>> executeReportQueryOnAllShards (final String query, final Comparator<List<String>> order, final int limit) throws SQLException {
+		return runReport (new Report<List<List<String>>>() {
+			public List<List<String>> run (AdmissionController.Operation op) throws SQLException {
+				return _shards.queryAll (op, query, order, limit);
+			}
+		});
+	}//end executeReportQueryOnAllShards
+
+	/**
+	 * Method to execute a read-only report query that can tolerate slightly
+	 * stale data. The query runs on the replica when one is configured and
+	 * up to date with this session's writes, otherwise on the primary.
+	 * Runs as a heavy operation that the user can cancel.
+	 *
+	 * @param query the input query string
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeReportQueryAndReturnResult (final String query) throws SQLException {
+		return runReport (new Report<List<List<String>>>() {
+			public List<List<String>> run (AdmissionController.Operation op) throws SQLException {
+				return executeReportQuery (op, query);
+			}
+		});
+	}//end executeReportQueryAndReturnResult
+
+	/**
+	 * Method to execute a report query on the rows of one store. Stores on
+	 * the home shard may be read from the replica, other stores are read
+	 * from their shard.
+	 *
+	 * @param storeID the store the query reads
+	 * @param query the input query string
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeReportQueryAndReturnResult (int storeID, final String query) throws SQLException {
+		if (this._shards.shardOf (storeID) == 0)
+			return executeReportQueryAndReturnResult (query);
+		final Connection connection = this._shards.forStore (storeID);
+		return runReport (new Report<List<List<String>>>() {
+			public List<List<String>> run (AdmissionController.Operation op) throws SQLException {
+				return executeQueryAndReturnResult (op, connection, query);
+			}
+		});
+	}//end executeReportQueryAndReturnResult
+
+	/**
+	 * Method to execute a report query on the rows of one store that may
+	 * be served from the result cache. A cached result is returned without
+	 * waiting for admission.
+	 *
+	 * @param storeID the store the query reads
+	 * @param query the input query string
+	 * @param cache whether the result cache may be used for this query
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeReportQueryAndReturnResult (int storeID, String query, boolean cache) throws SQLException {
+		if (!cache || this._resultCache == null)
+			return executeReportQueryAndReturnResult (storeID, query);
+		String database = "shard " + this._shards.shardOf (storeID);
+		List<List<String>> result = this._resultCache.get (database, query);
+		if (result == null){
+			long version = this._resultCache.version ();
+			result = executeReportQueryAndReturnResult (storeID, query);
+			this._resultCache.put (database, query, result, version);
+		}//end if
+		return result;
+	}//end executeReportQueryAndReturnResult
+
+	/**
+	 * Method to drop the cached results that read a table a statement
+	 * wrote. The executeUpdate and executeInsertAndReturn methods call it,
+	 * other writes must call it themselves.
+	 *
+	 * @param sql the statement that wrote
+	 * @param tables the tables it wrote; when none are given they are read
+	 *        from sql, and every result is dropped if that finds none
+	 */
+	public void invalidateCachedResults (String sql, String... tables) {
+		if (this._resultCache == null)
+			return;
+		if (tables.length == 0){
+			this._resultCache.invalidate (sql);
+			return;
+		}//end if
+		Set<String> written = new HashSet<String>();
+		for (String table : tables)
+			written.add (table.toLowerCase ());
+		this._resultCache.invalidateTables (written);
+	}//end invalidateCachedResults
+
+	private List<List<String>> executeReportQuery (AdmissionController.Operation op, String query) throws SQLException {
+		Connection connection = this._router.connectionForRead ();
+		if (!this._router.isReplica (connection))
+			return executeQueryAndReturnResult (op, connection, query);
+
+		try{
+			return executeQueryAndReturnResult (op, connection, query);
+		}catch (SQLException e){
+			if (op.cancelled ())
+				throw e;
+			// fall back to the primary
+			this._router.replicaFailed (e);
+			return executeQueryAndReturnResult (op, this._connection, query);
+		}//end try
+	}//end executeReportQuery
+
+	// Work done as one heavy operation
+	private interface Report<T> {
+		T run (AdmissionController.Operation op) throws Exception;
+	}
+
+	/*
+	 * Runs a report once admitted as a heavy operation, on a worker thread
+	 * so the user can press Enter to cancel it.
+	 */
+	private <T> T runReport (final Report<T> report) throws SQLException {
+		final AdmissionController.Operation op = this._admission.begin (AdmissionController.QueryClass.HEAVY, this._connection);
+		try{
+			return this._admission.watch (op, new Callable<T>() {
+				public T call () throws Exception {
+					return report.run (op);
+				}
+			}, in.unrecorded ());
+		}finally{
+			op.end ();
+		}//end try
+	}//end runReport
+
+	/*
+	 * Admits a heavy operation for components that run their own statements
+	 * on the shards and the report connection, such as loading the search
+	 * index or the analytics snapshots, or moving a store. End it with
+	 * op.end ().
+	 */
+	private AdmissionController.Operation beginBulkOperation () throws SQLException {
+		AdmissionController.Operation op = this._admission.begin (AdmissionController.QueryClass.HEAVY, this._connection);
+		try{
+			op.use (this._router.connectionForRead ());
+			for (int i = 0; i < this._shards.count (); i++){
+				op.use (this._shards.shard (i));
+			}//end for
+		}catch (SQLException e){
+			op.end ();
+			throw e;
+		}//end try
+		return op;
+	}//end beginBulkOperation
+
+	private List<List<String>> executeQueryAndReturnResult (AdmissionController.Operation op, Connection connection, String query) throws SQLException {
+		// creates a statement object, closed when the operation ends
+		Statement stmt = op.statement (connection);
 
 		// issues the query instruction
 		ResultSet rs = stmt.executeQuery (query);
@@ -170,7 +575,6 @@ public class Retail {
 				record.add(rs.getString (i));
 			result.add(record);
 		}//end while
-		stmt.close ();
 		return result;
 	}//end executeQueryAndReturnResult
 
@@ -183,22 +587,186 @@ public class Retail {
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQuery (String query) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		return executeQuery (this._connection, query);
+	}
 
-		// issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Method to execute a query on the rows of one store, on the shard
+	 * holding that store, and return the number of results
+	 *
+	 * @param storeID the store the query reads
+	 * @param query the input query string
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (int storeID, String query) throws SQLException {
+		return executeQuery (this._shards.forStore (storeID), query);
+	}
 
-		int rowCount = 0;
+	private int executeQuery (Connection connection, String query) throws SQLException {
+		AdmissionController.Operation op = this._admission.begin (AdmissionController.QueryClass.INTERACTIVE);
+		try{
+			// creates a statement object, closed when the operation ends
+			Statement stmt = op.statement (connection);
 
-		// iterates through the result set and count nuber of results.
-		while (rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			// issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
+
+			int rowCount = 0;
+
+			// iterates through the result set and count nuber of results.
+			while (rs.next()){
+				rowCount++;
+			}//end while
+			return rowCount;
+		}finally{
+			op.end ();
+		}//end try
 	}
 
+	/**
+	 * Method to stream the result of a query to a file or standard out
+	 * as CSV or JSON. Rows are fetched through a cursor, so the result
+	 * does not have to fit in memory. Runs on the report connection.
+	 *
+	 * @param query the input query string
+	 * @param format output format
+	 * @param path output file, or null for standard out
+	 * @param gzip whether to gzip the output
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when failed to execute the query
+	 * @throws java.io.IOException when failed to write the output
+	 */
+	public long exportQueryResult (String query, ResultExporter.Format format, String path, boolean gzip) throws SQLException, java.io.IOException {
+		return exportQueryResult (0, query, format, path, gzip);
+	}//end exportQueryResult
+
+	/**
+	 * Method to stream the result of a query on one shard. Shard 0 is the
+	 * home database, read through the report connection.
+	 *
+	 * @param shard the shard to run the query on
+	 * @see #exportQueryResult(String, ResultExporter.Format, String, boolean)
+	 */
+	public long exportQueryResult (int shard, final String query, ResultExporter.Format format, final String path, boolean gzip) throws SQLException, java.io.IOException {
+		final ResultExporter exporter = new ResultExporter (format, gzip);
+		final Connection connection = shard == 0 ? this._router.connectionForRead () : this._shards.shard (shard);
+		return runReport (new Report<Long>() {
+			public Long run (AdmissionController.Operation op) throws Exception {
+				return exporter.export (op.statement (connection), query, path);
+			}
+		});
+	}//end exportQueryResult
+
+	/**
+	 * Method to execute an INSERT ... RETURNING statement and return the
+	 * first column of the returned row, typically the generated key.
+	 *
+	 * @param sql the input SQL string, ending in a RETURNING clause
+	 * @param tables the tables the statement writes
+	 * @return the returned value, or -1 when no row was returned
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public int executeInsertAndReturnKey (String sql, String... tables) throws SQLException {
+		AdmissionController.Operation op = this._admission.begin (AdmissionController.QueryClass.INTERACTIVE);
+		try{
+			ResultSet rs = op.statement (this._connection).executeQuery (sql);
+			int key = -1;
+			if (rs.next ())
+				key = rs.getInt (1);
+			this._router.noteWrite ();
+			return key;
+		}finally{
+			invalidateCachedResults (sql, tables);
+			op.end ();
+		}//end try
+	}//end executeInsertAndReturnKey
+
+	/**
+	 * Method to execute an INSERT ... RETURNING statement on the rows of
+	 * one store, on the shard holding that store.
+	 *
+	 * @param storeID the store the statement inserts into
+	 * @param sql the input SQL string, ending in a RETURNING clause
+	 * @param tables the tables the statement writes
+	 * @return the returned value, or -1 when no row was returned
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public int executeInsertAndReturnKey (int storeID, String sql, String... tables) throws SQLException {
+		String key = executeInsertAndReturnValue (storeID, sql, tables);
+		return key == null ? -1 : Integer.parseInt (key);
+	}//end executeInsertAndReturnKey
+
+	/**
+	 * Method to execute an INSERT ... RETURNING statement on the rows of
+	 * one store and return the first column of the returned row as text,
+	 * e.g. a time the database set.
+	 *
+	 * @param storeID the store the statement inserts into
+	 * @param sql the input SQL string, ending in a RETURNING clause
+	 * @param tables the tables the statement writes
+	 * @return the returned value, or null when no row was returned
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public String executeInsertAndReturnValue (int storeID, String sql, String... tables) throws SQLException {
+		AdmissionController.Operation op = this._admission.begin (AdmissionController.QueryClass.INTERACTIVE);
+		try{
+			// waits while the store moves
+			op.use (this._connection);
+			Connection connection = this._shards.beginWrite (storeID);
+			try{
+				ResultSet rs = op.statement (connection).executeQuery (sql);
+				String value = null;
+				if (rs.next ())
+					value = rs.getString (1);
+				if (connection == this._connection)
+					this._router.noteWrite ();
+				return value;
+			}finally{
+				this._shards.endWrite (storeID);
+			}//end try
+		}finally{
+			invalidateCachedResults (sql, tables);
+			op.end ();
+		}//end try
+	}//end executeInsertAndReturnValue
+
+	/**
+	 * Method to look up a name column of a global table (Users or Store)
+	 * by id, for results read from shards that do not hold those tables.
+	 *
+	 * @param table the table to read
+	 * @param idColumn the id column
+	 * @param ids the ids to look up
+	 * @return name by id, trimmed
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public Map<String, String> lookupNames (String table, String idColumn, List<String> ids) throws SQLException {
+		Map<String, String> names = new HashMap<String, String>();
+		if (ids.isEmpty ())
+			return names;
+		StringBuilder list = new StringBuilder ();
+		for (String id : ids){
+			list.append (list.length () > 0 ? ", " : "").append (Integer.parseInt (id.trim ()));
+		}//end for
+		String query = String.format ("SELECT %s, name FROM %s WHERE %s IN (%s);", idColumn, table, idColumn, list);
+		for (List<String> row : executeQueryAndReturnResult (query)){
+			names.put (row.get (0).trim (), row.get (1).trim ());
+		}//end for
+		return names;
+	}//end lookupNames
+
+	/**
+	 * Method to reserve the next order number. Numbers are taken from
+	 * orderNumber_seq in blocks, so most calls need no round trip.
+	 *
+	 * @return an unused order number
+	 * @throws java.sql.SQLException when a new block could not be reserved
+	 */
+	public int nextOrderNumber () throws SQLException {
+		return this._orderIds.next ();
+	}//end nextOrderNumber
+
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current
@@ -217,10 +785,273 @@ public class Retail {
 		return -1;
 	}
 
+	/**
+	 * Method to record a product update in the ProductUpdates audit table.
+	 * Depending on audit.mode the row may be written after this returns.
+	 *
+	 * @param managerID user id of the manager making the update
+	 * @param storeID store of the updated product
+	 * @param productName name of the updated product
+	 * @throws java.sql.SQLException when the audit row could not be written
+	 */
+	public void logProductUpdate(int managerID, int storeID, String productName) throws SQLException {
+		if (this._shards.shardOf(storeID) != 0){
+			// the audit writer only writes to the home database
+			executeUpdate(storeID, String.format("INSERT INTO productupdates (managerid, storeid, productname, updatedon) VALUES (%d, %d, '%s', now());", managerID, storeID, productName), "productupdates");
+			return;
+		}//end if
+		this._auditWriter.recordProductUpdate(managerID, storeID, productName);
+		this._router.noteWrite();
+		if (this._resultCache != null)
+			this._resultCache.invalidateTables(Collections.singleton("productupdates"));
+	}
+
+	/**
+	 * Method to apply pending stock decrements before numberOfUnits of a
+	 * product is changed directly. Does nothing without inventory counters.
+	 *
+	 * @throws java.sql.SQLException when the pending decrements could not be applied
+	 */
+	public void beforeStockUpdate() throws SQLException {
+		if (this._inventory != null){
+			this._inventory.flush ();
+		}//end if
+	}
+
+	/**
+	 * Method to drop the cached stock of a product after numberOfUnits
+	 * was changed directly. Does nothing without inventory counters.
+	 */
+	public void afterStockUpdate(int storeID, String productName) {
+		if (this._inventory != null){
+			this._inventory.invalidate (storeID, productName);
+		}//end if
+	}
+
+	/**
+	 * Method to drop the cached stock of every product after a bulk
+	 * change of numberOfUnits. Does nothing without inventory counters.
+	 */
+	public void afterStockUpdate() {
+		if (this._inventory != null){
+			this._inventory.invalidateAll ();
+		}//end if
+	}
+
+	/**
+	 * Method to return the product search index, loading it on first use
+	 * and reloading it once it is older than search.reloadSeconds. A
+	 * failed reload keeps the old index.
+	 *
+	 * @throws java.sql.SQLException when the catalog could not be loaded
+	 */
+	public ProductSearchIndex productSearchIndex() throws SQLException {
+		long now = System.currentTimeMillis ();
+		if (this._searchIndex == null){
+			this._searchIndex = loadSearchIndex ();
+			this._searchIndexLoadedAt = now;
+		}else if (this._searchReloadMillis > 0 && now - this._searchIndexLoadedAt > this._searchReloadMillis){
+			// a fresh index also drops the products deleted meanwhile
+			this._searchIndexLoadedAt = now;
+			try{
+				this._searchIndex = loadSearchIndex ();
+			}catch (SQLException e){
+				System.err.println (e.getMessage ());
+			}//end try
+		}//end if
+		return this._searchIndex;
+	}
+
+	// Loads the store locations and the products of every shard
+	private ProductSearchIndex loadSearchIndex () throws SQLException {
+		ProductSearchIndex index = new ProductSearchIndex ();
+		AdmissionController.Operation op = beginBulkOperation ();
+		try{
+			index.loadStores (this._connection);
+			for (int i = 0; i < this._shards.count (); i++){
+				index.loadProducts (this._shards.shard (i));
+			}//end for
+		}finally{
+			op.end ();
+		}//end try
+		return index;
+	}
+
+	/**
+	 * Method to bring a product in the search index up to date after its
+	 * row was changed. Does nothing before the index is loaded.
+	 *
+	 * @param delta known change in stock, or null to re-read the row
+	 * @throws java.sql.SQLException when the product could not be re-read
+	 */
+	public void productChanged(int storeID, String productName, Integer delta) throws SQLException {
+		if (this._searchIndex == null){
+			return;
+		}//end if
+		if (delta != null){
+			this._searchIndex.adjustStock (storeID, productName, delta);
+		}else{
+			this._searchIndex.refresh (this._shards.forStore (storeID), storeID, productName);
+		}//end if
+	}
+
+	/**
+	 * Method to re-read every product in the search index after a bulk
+	 * change. Does nothing before the index is loaded.
+	 *
+	 * @throws java.sql.SQLException when the products could not be re-read
+	 */
+	public void productsChanged() throws SQLException {
+		if (this._searchIndex == null){
+			return;
+		}//end if
+		AdmissionController.Operation op = beginBulkOperation ();
+		try{
+			for (int i = 0; i < this._shards.count (); i++){
+				this._searchIndex.loadProducts (this._shards.shard (i));
+			}//end for
+		}finally{
+			op.end ();
+		}//end try
+	}
+
+	/**
+	 * Method to return the latest orders of the signed in customer, newest
+	 * first, from the recent orders cache when it holds them.
+	 *
+	 * @return rows of store name, store id, product name, units and order time
+	 * @throws java.sql.SQLException when the orders could not be read
+	 */
+	public List<List<String>> recentOrders() throws SQLException {
+		int customerID = this.current_user.userid ();
+		if (this._recentOrders != null){
+			List<List<String>> cached = this._recentOrders.recent (customerID);
+			if (cached != null)
+				return cached;
+		}//end if
+
+		// The customer's orders may be on any shard, store names are on the home shard
+		int limit = this._recentOrders != null ? this._recentOrders.perCustomer () : 5;
+		String query = String.format("SELECT O.storeid, O.storeid, O.productname, O.unitsordered, O.ordertime FROM orders O WHERE O.customerID = %d ORDER BY O.orderTime DESC LIMIT %d;", customerID, limit);
+		List<List<String>> result = executeQueryOnAllShards (query, new Comparator<List<String>>() {
+			public int compare(List<String> a, List<String> b) {
+				return b.get(4).compareTo(a.get(4));
+			}
+		}, limit);
+		List<String> store_ids = new ArrayList<String>();
+		for (List<String> order : result){
+			store_ids.add (order.get (1));
+		}//end for
+		Map<String, String> store_names = lookupNames ("store", "storeid", store_ids);
+		for (List<String> order : result){
+			order.set (0, store_names.get (order.get (1).trim ()));
+		}//end for
+
+		if (this._recentOrders != null){
+			this._recentOrders.fill (customerID, result);
+		}//end if
+		return result;
+	}
+
+	/**
+	 * Method to add an order the signed in customer just placed to the
+	 * recent orders cache, if the customer is cached.
+	 *
+	 * @param orderTime the orderTime the insert returned
+	 * @throws java.sql.SQLException when the store name could not be read
+	 */
+	public void rememberOrder(int storeID, String productName, int unitsOrdered, String orderTime) throws SQLException {
+		if (this._recentOrders == null){
+			return;
+		}//end if
+		int customerID = this.current_user.userid ();
+		if (!this._recentOrders.append (customerID, storeID, productName, unitsOrdered, orderTime)){
+			List<String> store_ids = new ArrayList<String>();
+			store_ids.add (String.valueOf (storeID));
+			this._recentOrders.storeName (storeID, lookupNames ("store", "storeid", store_ids).get (String.valueOf (storeID)));
+			this._recentOrders.append (customerID, storeID, productName, unitsOrdered, orderTime);
+		}//end if
+	}
+
+	/**
+	 * Method to append a placed order to the order journal, if one is
+	 * configured with journal.dir. Called once the order is written, so a
+	 * journal failure is reported but does not fail the order.
+	 */
+	public void journalOrder(int orderNumber, int customerID, int storeID, String productName, int unitsOrdered) {
+		if (this._orderJournal != null){
+			try{
+				this._orderJournal.append(orderNumber, customerID, storeID, productName, unitsOrdered, System.currentTimeMillis());
+			}catch (java.io.IOException e){
+				System.err.println("Order " + orderNumber + " was placed but not journaled: " + e.getMessage());
+			}//end try
+		}//end if
+	}
+
+	/**
+	 * Method to fold newly placed orders into the sales rollups of the
+	 * shard holding a store. Runs as a heavy operation, since a refresh
+	 * after many orders can outlast the interactive statement timeout.
+	 *
+	 * @param storeID the store whose shard is refreshed
+	 * @throws java.sql.SQLException when the refresh failed
+	 */
+	public void refreshSalesRollups (int storeID) throws SQLException {
+		AdmissionController.Operation op = beginBulkOperation ();
+		try{
+			Connection connection = this._shards.forStore (storeID);
+			op.statement (connection).executeQuery (SalesRollups.REFRESH);
+			if (connection == this._connection)
+				this._router.noteWrite ();
+		}finally{
+			op.end ();
+		}//end try
+	}//end refreshSalesRollups
+
+	/**
+	 * Method to move the rows of a store to another shard.
+	 *
+	 * @return number of rows moved
+	 * @throws java.sql.SQLException when the store could not be moved
+	 */
+	public int moveStore(int storeID, int shard) throws SQLException {
+		AdmissionController.Operation op = beginBulkOperation ();
+		try{
+			int moved = this._shards.moveStore (storeID, shard);
+			if (this._resultCache != null){
+				// cached results are keyed by shard
+				this._resultCache.clear ();
+			}//end if
+			if (this._searchIndex != null){
+				this._searchIndex.loadProducts (this._shards.forStore (storeID));
+			}//end if
+			return moved;
+		}finally{
+			op.end ();
+		}//end try
+	}
+
 	/**
 	 * Method to close the physical connection if it is open.
+	 * Pending audit rows and journal records are flushed first.
 	 */
 	public void cleanup(){
+		if (this._inventory != null){
+			this._inventory.close ();
+		}//end if
+		if (this._auditWriter != null){
+			this._auditWriter.close ();
+		}//end if
+		if (this._orderJournal != null){
+			// shared by every Retail in the process, so only flushed
+			this._orderJournal.flush ();
+		}//end if
+		if (this._router != null){
+			this._router.close ();
+		}//end if
+		if (this._shards != null){
+			this._shards.close ();
+		}//end if
 		try{
 			if (this._connection != null){
 				this._connection.close ();
@@ -258,22 +1089,12 @@ public class Retail {
 			String user = args[2];
 			esql = new Retail (dbname, dbport, user, "");
 
-			boolean keep_on = true;
-			while(keep_on) {
-				// Login
-				keep_on = login_menu(esql);
-
-				// While logged in, give users choices
-				while(esql.current_user != null) {
-					if(esql.current_user.type().equals("manager")) {
-						managerOptions(esql);
-					} else if(esql.current_user.type().equals("admin")) {
-						adminOptions(esql);
-					} else {
-						userOptions(esql);
-					}
-				}
-			}//end while
+			// record the session when asked to
+			String record = System.getProperty("record.file");
+			if(record != null) {
+				in.record(record);
+			}
+			runSession(esql);
 		}catch(Exception e) {
 			System.err.println (e.getMessage ());
 		}finally{
@@ -284,12 +1105,41 @@ public class Retail {
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
 				}//end if
+				in.close ();
 			}catch (Exception e) {
 				// ignored.
 			}//end try
 		}//end try
 	}//end main
 
+	/*
+	 * Runs menus until the user exits. Every menu round is timed as one
+	 * operation for session recording.
+	 **/
+	public static void runSession(Retail esql) {
+		boolean keep_on = true;
+		while(keep_on) {
+			// Login
+			long start = in.operationStart();
+			keep_on = login_menu(esql);
+			in.operationEnd("login", start);
+
+			// While logged in, give users choices
+			while(esql.current_user != null) {
+				start = in.operationStart();
+				String type = esql.current_user.type();
+				if(type.equals("manager")) {
+					managerOptions(esql);
+				} else if(type.equals("admin")) {
+					adminOptions(esql);
+				} else {
+					userOptions(esql);
+				}
+				in.operationEnd(type, start);
+			}
+		}//end while
+	}//end runSession
+
 	public static boolean login_menu(Retail esql) {
 		System.out.println("MAIN MENU");
 		System.out.println("---------");
@@ -318,6 +1168,8 @@ public class Retail {
 		System.out.println("8.  View 5 Popular Items");
 		System.out.println("9.  View 5 Popular Customers");
 		System.out.println("10. Place Product Supply Request to Warehouse");
+		System.out.println("11. View Sales Over a Time Range");
+		System.out.println("12. Search Products");
 		System.out.println(".........................");
 		System.out.println("20. Log out");
 
@@ -332,6 +1184,8 @@ public class Retail {
 			case 8: viewPopularProducts(esql); break;
 			case 9: viewPopularCustomers(esql); break;
 			case 10: placeProductSupplyRequests(esql); break;
+			case 11: viewSalesHistory(esql); break;
+			case 12: searchProducts(esql); break;
 			case 20: esql.current_user = null; break;
 			default : System.out.println("Unrecognized choice!"); break;
 		}
@@ -344,6 +1198,7 @@ public class Retail {
 		System.out.println("2. View Product List");
 		System.out.println("3. Place a Order");
 		System.out.println("4. View 5 recent orders");
+		System.out.println("5. Search Products");
 		System.out.println(".........................");
 		System.out.println("20. Log out");
 
@@ -352,6 +1207,7 @@ public class Retail {
 			case 2: viewProducts(esql); break;
 			case 3: placeOrder(esql); break;
 			case 4: viewRecentOrders(esql); break;
+			case 5: searchProducts(esql); break;
 			case 20: esql.current_user = null; break;
 			default : System.out.println("Unrecognized choice!"); break;
 		}
@@ -365,6 +1221,12 @@ public class Retail {
 		System.out.println("2. View Product Data");
 		System.out.println("3. Update User Data");
 		System.out.println("4. Update Product Data");
+		System.out.println("5. View Sales Analytics");
+		System.out.println("6. Export Table Data");
+		System.out.println("7. Rebuild Nearby Stores");
+		System.out.println("8. Move Store To Shard");
+		System.out.println("9. Bulk Update Products");
+		System.out.println("10. View Result Cache Stats");
 		System.out.println(".........................");
 		System.out.println("20. Log out");
 
@@ -373,6 +1235,12 @@ public class Retail {
 			case 2: viewProductData(esql); break;
 			case 3: updateUserData(esql); break;
 			case 4: updateProductData(esql); break;
+			case 5: viewSalesAnalytics(esql); break;
+			case 6: exportTableData(esql); break;
+			case 7: rebuildNearbyStores(esql); break;
+			case 8: moveStore(esql); break;
+			case 9: bulkUpdateProducts(esql); break;
+			case 10: viewResultCacheStats(esql); break;
 			case 20: esql.current_user = null; break;
 			default : System.out.println("Unrecognized choice!"); break;
 		}
@@ -396,6 +1264,7 @@ public class Retail {
 			System.out.print("Please make your choice: ");
 			try { // read the integer, parse it and break.
 				input = Integer.parseInt(in.readLine());
+				in.setChoice(input);
 				break;
 			}catch (Exception e) {
 				System.out.println("Your input is invalid!");
@@ -432,9 +1301,10 @@ public class Retail {
 				System.out.println("Username '" + name + "' already exists. Please login instead.");
 				return;
 			}
-			query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
+			query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s') RETURNING userid", name, password, latitude, longitude, type);
 
-			esql.executeUpdate(query);
+			int user_id = esql.executeInsertAndReturnKey(query, "users");
+			NearbyStores.refreshUser(esql._connection, user_id);
 			System.out.println ("User successfully created!");
 		}catch(Exception e){
 			System.err.println (e.getMessage ());
@@ -463,6 +1333,9 @@ public class Retail {
 				esql.current_user.setType(user_data.get(0).get(1));
 				esql.current_user.setLatitude(Double.parseDouble(user_data.get(0).get(2)));
 				esql.current_user.setLongitude(Double.parseDouble(user_data.get(0).get(3)));
+				if(esql._recentOrders != null && esql.current_user.type().equals("customer")) {
+					esql.recentOrders();
+				}
 			} else {
 				System.out.println("Username / Password login not found");
 			}
@@ -480,30 +1353,23 @@ public class Retail {
 	public static List<List<String>> getClosestStores(Retail esql)
 	{
 		try{
-			String query = String.format("SELECT * FROM Store");
+			// Precomputed by NearbyStores; users without rows are computed
+			// and stored now, so the next lookup finds them
+			NearbyStores.refreshQueuedStores(esql._connection);
+			String query = String.format("SELECT S.*, N.distance FROM UserNearbyStores N LEFT JOIN Store S ON N.storeID = S.storeID WHERE N.userID = %d ORDER BY N.distance;", esql.current_user.userid());
 			List<List<String>> result = esql.executeQueryAndReturnResult(query);
-			//System.out.print(result);
-			List<List<String>> in_range_result = new ArrayList<List<String>>(); 
+			if(result.size() == 0) {
+				NearbyStores.refreshUser(esql._connection, esql.current_user.userid());
+				result = esql.executeQueryAndReturnResult(query);
+			}
 
+			// the NONE row of a user with no store in range joins no store
+			List<List<String>> in_range_result = new ArrayList<List<String>>();
 			for(List<String> i:result)
 			{
-				double store_lat = Double.parseDouble(i.get(2));
-				double store_long = Double.parseDouble(i.get(3));
-				double user_lat = esql.current_user.latitude();
-				double user_long = esql.current_user.longitude();
-				double distance = esql.calculateDistance(store_lat, store_long, user_lat, user_long);
-				if(distance <= 30.0)
-				{
-					List<String> record = i;
-					record.add(String.valueOf(distance));
-					in_range_result.add(record);
-				}
+				if(i.get(0) != null)
+					in_range_result.add(i);
 			}
-			//System.out.print(in_range_result);
-			//maybe sort the distances before returning
-			/*Collections.sort(in_range_result, (result_1, result_2) -> {
-			  return Integer.parseInt(result_1.get(6)) - Integer.parseInt(result_2.get(6));
-			  });*/
 			return in_range_result;
 		}catch(Exception e){
 			System.err.println(e.getMessage());
@@ -532,7 +1398,7 @@ public class Retail {
 			System.out.print("Enter store id: ");
 			int storeID = Integer.parseInt(in.readLine());
 			String query = String.format("SELECT productname, numberofunits, priceperunit FROM Product WHERE storeID = %d;", storeID);
-			List<List<String>> result = esql.executeQueryAndReturnResult(query);
+			List<List<String>> result = esql.executeQueryAndReturnResult(storeID, query, true);
 			
 			// Show results
 			for(List<String> product : result) {
@@ -555,14 +1421,14 @@ public class Retail {
 		try
 		{
 			String check_query = String.format("SELECT * FROM Store WHERE storeID = %d", storeID);
-			List<List<String>> check_result = esql.executeQueryAndReturnResult(check_query);
+			List<List<String>> check_result = esql.executeQueryAndReturnResult(check_query, true);
 			if(check_result.size() > 0)
 			{
 				double store_lat = Double.parseDouble(check_result.get(0).get(2));
 				double store_long = Double.parseDouble(check_result.get(0).get(3));
 				double user_lat = esql.current_user.latitude();
 				double user_long = esql.current_user.longitude();
-				return esql.calculateDistance(store_lat, store_long, user_lat, user_long) <= 30.0;
+				return esql.calculateDistance(store_lat, store_long, user_lat, user_long) <= NearbyStores.RANGE;
 			}
 
 		} catch(Exception e){
@@ -592,9 +1458,38 @@ public class Retail {
 				return;
 			}
 
+			// Reserve from the stock this process leased instead of reading
+			// and writing the Product row
+			if(esql._inventory != null) {
+				int reserved = esql._inventory.reserve(storeID, productName, unitsOrdered);
+				if(reserved == InventoryCounters.NOT_FOUND) {
+					System.out.printf("Could not find product '%s' at store with id %d\n", productName, storeID);
+					return;
+				}
+				if(reserved == InventoryCounters.INSUFFICIENT) {
+					System.out.println("There is not enough quantity in store to fulfil the order request.");
+					return;
+				}
+				int orderNumber;
+				String orderTime;
+				try {
+					orderNumber = esql.nextOrderNumber();
+					orderTime = esql.executeInsertAndReturnValue(storeID, esql._inventory.orderStatement(orderNumber, esql.current_user.userid(), storeID, productName, unitsOrdered), "orders", "pendinginventory", "product");
+				} catch(SQLException e) {
+					esql._inventory.release(storeID, productName, unitsOrdered);
+					throw e;
+				}
+				esql._inventory.orderPlaced(storeID, productName, unitsOrdered);
+				esql.journalOrder(orderNumber, esql.current_user.userid(), storeID, productName, unitsOrdered);
+				esql.productChanged(storeID, productName, -unitsOrdered);
+				esql.rememberOrder(storeID, productName, unitsOrdered, orderTime);
+				System.out.println("Order was successfully added!");
+				return;
+			}
+
 			// Query product availability
 			String query = String.format("SELECT numberOfUnits FROM Product WHERE storeID = %d and productName = '%s';", storeID, productName);
-			List<List<String>> result = esql.executeQueryAndReturnResult(query);
+			List<List<String>> result = esql.executeQueryAndReturnResult(storeID, query);
 			if(result.size() < 1) {
 				System.out.printf("Could not find product '%s' at store with id %d\n", productName, storeID);
 				return;
@@ -609,12 +1504,16 @@ public class Retail {
 
 			// submit the order and update product quantity
 			quantity_available -= unitsOrdered;
-			query = String.format("INSERT INTO Orders(customerID, storeID, productName, unitsOrdered) VALUES (%d, %d, '%s', %d);", esql.current_user.userid(), storeID, productName, unitsOrdered);
-			esql.executeUpdate(query);
+			int orderNumber = esql.nextOrderNumber();
+			query = String.format("INSERT INTO Orders(orderNumber, customerID, storeID, productName, unitsOrdered) VALUES (%d, %d, %d, '%s', %d) RETURNING orderTime;", orderNumber, esql.current_user.userid(), storeID, productName, unitsOrdered);
+			String orderTime = esql.executeInsertAndReturnValue(storeID, query, "orders");
 			query = String.format("UPDATE Product SET numberOfUnits = %d WHERE storeID = %d AND productName = '%s';", quantity_available, storeID, productName);
-			esql.executeUpdate(query);
+			esql.executeUpdate(storeID, query, "product");
+			esql.journalOrder(orderNumber, esql.current_user.userid(), storeID, productName, unitsOrdered);
+			esql.productChanged(storeID, productName, -unitsOrdered);
 			query = String.format("SELECT numberOfUnits FROM Product WHERE storeID = %d and productName = '%s';", storeID, productName); // This doesn't do anything. Just left in from testing?
-			esql.executeQuery(query);
+			esql.executeQuery(storeID, query);
+			esql.rememberOrder(storeID, productName, unitsOrdered, orderTime);
 			System.out.println("Order was successfully added!");
 		} catch(Exception e) {
 			System.err.println(e.getMessage());
@@ -622,13 +1521,50 @@ public class Retail {
 	}
 
 
+	// Prints search results, nearest first when the user location is known
+	public static void printSearchResults(List<ProductSearchIndex.Hit> hits) {
+		for(ProductSearchIndex.Hit hit : hits) {
+			System.out.printf("Store #%d: %s, %d in stock, $%.2f", hit.storeID, hit.productName, hit.units, hit.price);
+			if(hit.distance() >= 0) {
+				System.out.printf(", %.2f miles away", hit.distance());
+			}
+			System.out.println();
+		}
+		if(hits.size() < 1) {
+			System.out.println("No Products Found");
+		}
+		System.out.println();
+	}
+
+	// Reads a search mode and query and searches the product index
+	public static List<ProductSearchIndex.Hit> readProductSearch(Retail esql, double latitude, double longitude, double maxDistance) throws Exception {
+		System.out.printf("1.) Name Starts With\n2.) Name Contains\n3.) Name Sounds Like (typos allowed)\n");
+		System.out.print("Choice: ");
+		int choice = Integer.parseInt(in.readLine());
+		if(choice < 1 || choice > 3) {
+			System.out.println("Unrecognized choice!");
+			return new ArrayList<ProductSearchIndex.Hit>();
+		}
+		System.out.print("Enter Product Name: ");
+		String name = in.readLine();
+		return esql.productSearchIndex().search(name, ProductSearchIndex.Mode.values()[choice - 1], latitude, longitude, maxDistance);
+	}
+
+	// Searches products at stores within range of the user
+	public static void searchProducts(Retail esql) {
+		try {
+			printSearchResults(readProductSearch(esql, esql.current_user.latitude(), esql.current_user.longitude(), NearbyStores.RANGE));
+		} catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
 	public static void viewRecentOrders(Retail esql) 
 	{
 		try{
-			String query = String.format("SELECT S.name, O.storeid, O.productname, O.unitsordered, O.ordertime FROM orders O, store S WHERE O.storeid = S.storeid AND O.customerID = %d ORDER BY O.orderTime DESC LIMIT 5;", esql.current_user.userid());
-			List<List<String>> result = esql.executeQueryAndReturnResult(query);
-
-			for(List<String> order : result) {
+			List<List<String>> result = esql.recentOrders();
+			for(int i = 0; i < result.size() && i < 5; i++) {
+				List<String> order = result.get(i);
 				System.out.printf("Store: #%s\n", order.get(0));
 				System.out.printf("Store id: #%s\n", order.get(1));
 				System.out.printf("Product: %s\n", order.get(2));
@@ -656,13 +1592,18 @@ public class Retail {
 			}
 
 			// List orders
-			query = String.format("SELECT O.ordernumber, O.storeid, O.ordertime, U.name, O.productname, O.unitsordered FROM orders O, store S, users U WHERE S.storeid = %d AND S.storeid = O.storeid AND O.customerid = U.userid;", store_id);
-			List<List<String>> result = esql.executeQueryAndReturnResult(query);
+			query = String.format("SELECT O.ordernumber, O.storeid, O.ordertime, O.customerid, O.productname, O.unitsordered FROM orders O WHERE O.storeid = %d;", store_id);
+			List<List<String>> result = esql.executeReportQueryAndReturnResult(store_id, query);
+			List<String> customer_ids = new ArrayList<String>();
+			for(List<String> order : result) {
+				customer_ids.add(order.get(3));
+			}
+			Map<String, String> customer_names = esql.lookupNames("users", "userid", customer_ids);
 			for(List<String> order : result) {
 				System.out.printf("Order: #%s\n", order.get(0));
 				System.out.printf("Store: #%s\n", order.get(1));
 				System.out.printf("Date: %s\n", order.get(2));
-				System.out.printf("Customer: %s\n", order.get(3));
+				System.out.printf("Customer: %s\n", customer_names.get(order.get(3).trim()));
 				System.out.printf("Product: %s\n", order.get(4));
 				System.out.printf("Quantity: %s\n\n", order.get(5));
 			}
@@ -706,11 +1647,13 @@ public class Retail {
 
 			// Update product table
 			query = String.format("UPDATE product %s WHERE storeid = %d AND productname = '%s';", updates, store_id, product_name);
-			esql.executeUpdate(query);
+			esql.beforeStockUpdate();
+			esql.executeUpdate(store_id, query, "product");
+			esql.afterStockUpdate(store_id, product_name);
+			esql.productChanged(store_id, product_name, null);
 
 			// Update productupdates table
-			query = String.format("INSERT INTO productupdates (managerid, storeid, productname, updatedon) VALUES (%d, %d, '%s', NOW());", esql.current_user.userid(), store_id, product_name);
-			esql.executeUpdate(query);
+			esql.logProductUpdate(esql.current_user.userid(), store_id, product_name);
 			System.out.println("Update Successful");
 		} catch(Exception e) {
 			System.err.println(e.getMessage());
@@ -729,7 +1672,7 @@ public class Retail {
 			}
 
 			query = String.format("SELECT updatenumber, managerid, productname, updatedon FROM productupdates WHERE storeid = %d ORDER BY updatedon DESC LIMIT 5;", store_id);
-			List<List<String>> result = esql.executeQueryAndReturnResult(query);
+			List<List<String>> result = esql.executeReportQueryAndReturnResult(store_id, query);
 
 			for(List<String> update : result) {
 				System.out.printf("Update: #%s\n", update.get(0));
@@ -758,7 +1701,7 @@ public class Retail {
 
 			// Print results
 			query = String.format("SELECT productname, COUNT(ordernumber) FROM orders WHERE storeid = %d GROUP BY productname ORDER BY COUNT(ordernumber) DESC LIMIT 5;", store_id);
-			List<List<String>> result = esql.executeQueryAndReturnResult(query);
+			List<List<String>> result = esql.executeReportQueryAndReturnResult(store_id, query, true);
 
 			for(List<String> product : result) {
 				System.out.printf("Product: %s\n", product.get(0));
@@ -783,9 +1726,22 @@ public class Retail {
 				return;
 			}
 
-			// Print results
-			query = String.format("SELECT O.customerid, U.name, COUNT(O.ordernumber) FROM orders O, users U WHERE O.customerid = U.userid GROUP BY O.customerid, U.name ORDER BY COUNT(ordernumber) DESC LIMIT 5;", store_id);
-			List<List<String>> result = esql.executeQueryAndReturnResult(query);
+			System.out.print("Enter number of days back (-1 for all time): ");
+			int days = Integer.parseInt(in.readLine());
+
+			// Count the store's orders on its shard, an index-only scan of
+			// (storeID, orderTime, customerID), then look up the names
+			String window = days >= 0 ? String.format(" AND ordertime >= now() - interval '%d days'", days) : "";
+			query = String.format("SELECT customerid, COUNT(*) FROM orders WHERE storeid = %d%s GROUP BY customerid ORDER BY COUNT(*) DESC, customerid LIMIT 5;", store_id, window);
+			List<List<String>> result = esql.executeReportQueryAndReturnResult(store_id, query, true);
+			List<String> customer_ids = new ArrayList<String>();
+			for(List<String> customer : result) {
+				customer_ids.add(customer.get(0));
+			}
+			Map<String, String> customer_names = esql.lookupNames("users", "userid", customer_ids);
+			for(List<String> customer : result) {
+				customer.add(1, customer_names.get(customer.get(0).trim()));
+			}
 
 			for(List<String> customer : result) {
 				System.out.printf("Customer id: #%s\n", customer.get(0));
@@ -799,6 +1755,48 @@ public class Retail {
 			System.err.println(e.getMessage());
 		}
 	}
+	public static void viewSalesHistory(Retail esql) {
+		try {
+			System.out.print("Enter store id: ");
+			int store_id = Integer.parseInt(in.readLine());
+
+			// Check if manages store
+			String query = String.format("SELECT * FROM store where storeid = %d AND managerid = %d;", store_id, esql.current_user.userid());
+			if(esql.executeQuery(query) == 0) {
+				System.out.printf("Manager #%d does not manage store #%d. You cannot view these sales, fool\n", esql.current_user.userid(), store_id);
+				return;
+			}
+
+			// Get product and range
+			System.out.print("Enter product name (empty string for all products): ");
+			String product_name = in.readLine().trim();
+			System.out.print("Enter start time (yyyy-mm-dd [hh:mm]): ");
+			java.sql.Timestamp from = SalesRollups.parseTime(in.readLine());
+			System.out.print("Enter end time (yyyy-mm-dd [hh:mm]): ");
+			java.sql.Timestamp to = SalesRollups.parseTime(in.readLine());
+
+			// Fold in new orders, then read the rollups
+			esql.refreshSalesRollups(store_id);
+			query = SalesRollups.rangeQuery(store_id, product_name.isEmpty() ? null : product_name, from, to);
+			List<List<String>> result = esql.executeReportQueryAndReturnResult(store_id, query);
+
+			long orders = 0, units = 0;
+			double revenue = 0;
+			for(List<String> bucket : result) {
+				System.out.printf("%-5s %s  %-20s orders: %s  units: %s  revenue: $%.2f\n", bucket.get(0), bucket.get(1), bucket.get(2), bucket.get(3), bucket.get(4), Double.parseDouble(bucket.get(5)));
+				orders += Long.parseLong(bucket.get(3));
+				units += Long.parseLong(bucket.get(4));
+				revenue += Double.parseDouble(bucket.get(5));
+			}
+			if(result.size() < 1) {
+				System.out.println("No sales found");
+			} else {
+				System.out.printf("\nTotal orders: %d  units: %d  revenue: $%.2f\n\n", orders, units, revenue);
+			}
+		} catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
 	public static void placeProductSupplyRequests(Retail esql) {
 		try {
 			// Read input
@@ -824,7 +1822,7 @@ public class Retail {
 			}
 
 			// Check if product exists in store
-			if(esql.executeQuery(String.format("SELECT * FROM product WHERE storeid = %d AND productname = '%s';", store_id, product_name)) == 0) {
+			if(esql.executeQuery(store_id, String.format("SELECT * FROM product WHERE storeid = %d AND productname = '%s';", store_id, product_name)) == 0) {
 				System.out.printf("Product '%s' is not carried at store #%d\n", product_name, store_id);
 				return;
 			}
@@ -842,15 +1840,17 @@ public class Retail {
 			}
 			
 			// Place supply request
-			String query = String.format("INSERT INTO productsupplyrequests (managerid, warehouseid, storeid, productname, unitsrequested) VALUES (%d, %d, %d, '%s', %d);", esql.current_user.userid(), warehouse_id, store_id, product_name, quantity);
-			esql.executeUpdate(query);
+			String query = String.format("INSERT INTO productsupplyrequests (managerid, warehouseid, storeid, productname, unitsrequested) VALUES (%d, %d, %d, '%s', %d) RETURNING requestnumber;", esql.current_user.userid(), warehouse_id, store_id, product_name, quantity);
+			int request_number = esql.executeInsertAndReturnKey(store_id, query, "productsupplyrequests");
 
 			// Update product info and product update table
 			query = String.format("UPDATE product SET numberofunits = numberofunits + %d WHERE storeid = %d AND productname = '%s';", quantity, store_id, product_name);
-			esql.executeUpdate(query);
-			query = String.format("INSERT INTO productupdates (managerid, storeid, productname, updatedon) VALUES (%d, %d, '%s', NOW());", esql.current_user.userid(), store_id, product_name);
-			esql.executeUpdate(query);
-			System.out.println("Supply request successfully placed");
+			esql.beforeStockUpdate();
+			esql.executeUpdate(store_id, query, "product");
+			esql.afterStockUpdate(store_id, product_name);
+			esql.productChanged(store_id, product_name, null);
+			esql.logProductUpdate(esql.current_user.userid(), store_id, product_name);
+			System.out.printf("Supply request #%d successfully placed\n", request_number);
 		} catch(Exception e) {
 			System.err.println(e.getMessage());
 		}
@@ -878,7 +1878,7 @@ public class Retail {
 			}
 
 			// Execute and display results
-			List<List<String>> result = esql.executeQueryAndReturnResult(query);
+			List<List<String>> result = esql.executeReportQueryAndReturnResult(query);
 			for(List<String> user : result) {
 				System.out.printf("userid: %s\n", user.get(0));
 				System.out.printf("name: %s\n", user.get(1));
@@ -898,32 +1898,35 @@ public class Retail {
 	public static void viewProductData(Retail esql) {
 		try {
 			// Get choice
-			System.out.printf("1.) View All Products\n2.) Search Product By Store ID\n3.) Search Product By Store ID / Name\n4.) Search Product By Name\n");
+			System.out.printf("1.) View All Products\n2.) Search Product By Store ID\n3.) Search Product By Store ID / Name\n4.) Search Product By Name\n5.) Search Product By Partial Name\n");
 			System.out.print("Choice: ");
 			int choice = Integer.parseInt(in.readLine());
+			if(choice == 5) {
+				printSearchResults(readProductSearch(esql, -1, -1, -1));
+				return;
+			}
 
-			// Construct query
-			String query = "";
+			// Construct and execute query, on one shard for a store and on all shards otherwise
+			List<List<String>> result = new ArrayList<List<String>>();
 			if(choice == 1) {
-				query = "SELECT * FROM product;";
+				result = esql.executeReportQueryOnAllShards("SELECT * FROM product;", null, -1);
 			} else if(choice == 2) {
 				System.out.print("Enter Store ID: ");
 				int store_id = Integer.parseInt(in.readLine());
-				query = String.format("SELECT * FROM product WHERE storeid = %d;", store_id);
+				result = esql.executeReportQueryAndReturnResult(store_id, String.format("SELECT * FROM product WHERE storeid = %d;", store_id));
 			} else if(choice == 3) {
 				System.out.print("Enter Store ID: ");
 				int store_id = Integer.parseInt(in.readLine());
 				System.out.print("Enter Product Name: ");
 				String name = in.readLine();
-				query = String.format("SELECT * FROM product WHERE storeid = %d AND productname = '%s';", store_id, name);
+				result = esql.executeReportQueryAndReturnResult(store_id, String.format("SELECT * FROM product WHERE storeid = %d AND productname = '%s';", store_id, name));
 			} else if(choice == 4) {
 				System.out.print("Enter Product Name: ");
 				String name = in.readLine();
-				query = String.format("SELECT * FROM product WHERE productname = '%s';", name);
+				result = esql.executeReportQueryOnAllShards(String.format("SELECT * FROM product WHERE productname = '%s';", name), null, -1);
 			}
 
-			// Execute and display results
-			List<List<String>> result = esql.executeQueryAndReturnResult(query);
+			// Display results
 			for(List<String> product : result) {
 				System.out.printf("storeid: %s\n", product.get(0));
 				System.out.printf("productname: %s\n", product.get(1));
@@ -999,7 +2002,10 @@ public class Retail {
 
 			// Update user
 			query = String.format("UPDATE users SET name='%s', password='%s', latitude=%f, longitude=%f, type='%s' WHERE userid=%d;", name, password, latitude, longitude, type, user_id);
-			esql.executeUpdate(query);
+			esql.executeUpdate(query, "users");
+			if(latitude != Double.parseDouble(user.get(3)) || longitude != Double.parseDouble(user.get(4))) {
+				NearbyStores.refreshUser(esql._connection, user_id);
+			}
 			System.out.println("Successfully Updated User\n");
 		} catch(Exception e) {
 			System.err.println("ERROR IN DATA INPUT: " + e.getMessage());
@@ -1013,9 +2019,10 @@ public class Retail {
 			System.out.print("Enter Product Name: ");
 			String product_name = in.readLine();
 
-			// Check if product exists
+			// Check if product exists, with pending stock decrements applied
+			esql.beforeStockUpdate();
 			String query = String.format("SELECT * FROM product WHERE storeid=%d AND productname='%s';", store_id, product_name);
-			List<List<String>> result = esql.executeQueryAndReturnResult(query);
+			List<List<String>> result = esql.executeQueryAndReturnResult(store_id, query);
 			if(result.size() < 1) {
 				System.out.printf("Product '%s' in store #%d not found\n", product_name, store_id);
 				return;
@@ -1044,11 +2051,270 @@ public class Retail {
 
 			// Update Product
 			query = String.format("UPDATE product SET numberofunits=%d, priceperunit=%f WHERE storeid=%d AND productname='%s';", number_of_units, price_per_unit, store_id, product_name);
-			esql.executeUpdate(query);
+			esql.executeUpdate(store_id, query, "product");
+			esql.afterStockUpdate(store_id, product_name);
+			esql.productChanged(store_id, product_name, null);
 			System.out.println("Successfully Updated Product\n");
 		} catch(Exception e) {
 			System.err.println("ERROR IN DATA INPUT: " + e.getMessage());
 		}
 	}
-}//end Retail
 
+	// SQL expression applying a bulk change to column: "=x" sets it, "+x" / "-x"
+	// adds or subtracts, "+x%" / "-x%" scales it. Returns null for no change.
+	public static String bulkChange(String column, String change, boolean integer) {
+		change = change.trim();
+		if(change.isEmpty()) {
+			return null;
+		}
+		String expression;
+		if(change.startsWith("=")) {
+			expression = String.valueOf(Double.parseDouble(change.substring(1)));
+		} else if(change.endsWith("%")) {
+			double percent = Double.parseDouble(change.substring(0, change.length() - 1));
+			expression = String.format("%s * %s", column, String.valueOf(1 + percent / 100));
+		} else {
+			double amount = Double.parseDouble(change);
+			expression = String.format("%s + (%s)", column, String.valueOf(amount));
+		}
+		if(integer) {
+			expression = String.format("ROUND(%s)::integer", expression);
+		}
+		return String.format("GREATEST(0, %s)", expression);
+	}
+
+	public static void bulkUpdateProducts(Retail esql) {
+		try {
+			// Get filter
+			System.out.print("Enter Store IDs separated by commas (empty string for all stores): ");
+			String stores = in.readLine().trim();
+			System.out.print("Enter Product Name pattern, % matches anything (empty string for all products): ");
+			String pattern = in.readLine().trim();
+			String filter = "TRUE";
+			if(!stores.isEmpty()) {
+				StringBuilder ids = new StringBuilder();
+				for(String id : stores.split(",")) {
+					ids.append(ids.length() > 0 ? ", " : "").append(Integer.parseInt(id.trim()));
+				}
+				filter += String.format(" AND storeid IN (%s)", ids);
+			}
+			if(!pattern.isEmpty()) {
+				filter += String.format(" AND rtrim(productname) LIKE '%s'", pattern);
+			}
+
+			// Get changes
+			System.out.print("Enter price change: =4.99 sets, +0.50 / -0.50 adds, +10% / -10% scales (empty string to keep): ");
+			String price = bulkChange("priceperunit", in.readLine(), false);
+			System.out.print("Enter stock change: =50 sets, +100 / -10 adds, +20% / -20% scales (empty string to keep): ");
+			String units = bulkChange("numberofunits", in.readLine(), true);
+			if(price == null && units == null) {
+				System.out.println("You gave no information to update");
+				return;
+			}
+			String updates = "SET ";
+			if(price != null && units != null) updates += String.format("priceperunit = %s, numberofunits = %s", price, units);
+			else if(price != null) updates += String.format("priceperunit = %s", price);
+			else updates += String.format("numberofunits = %s", units);
+
+			// Confirm
+			long matching = 0;
+			for(List<String> row : esql.executeReportQueryOnAllShards(String.format("SELECT COUNT(*) FROM product WHERE %s;", filter), null, -1)) {
+				matching += Long.parseLong(row.get(0));
+			}
+			System.out.printf("Update %d products (y/n): ", matching);
+			if(matching == 0 || !in.readLine().trim().equalsIgnoreCase("y")) {
+				System.out.println("Nothing updated\n");
+				return;
+			}
+
+			// Update the products and log them in one statement per shard.
+			// The log rows all carry the same updatedOn, and products already
+			// logged with it are skipped, so the statement can be run again on
+			// a shard that failed without applying the change twice.
+			String updated_on = esql.executeQueryAndReturnResult("SELECT CAST(now() AS timestamp);").get(0).get(0);
+			String query = String.format("WITH U AS (UPDATE product P %s WHERE %s AND NOT EXISTS (SELECT 1 FROM productupdates D WHERE D.storeid = P.storeid AND D.productname = P.productname AND D.managerid = %d AND D.updatedon = '%s') RETURNING storeid, productname), " +
+					"L AS (INSERT INTO productupdates (managerid, storeid, productname, updatedon) SELECT %d, storeid, productname, '%s' FROM U RETURNING storeid) " +
+					"SELECT (SELECT COUNT(*) FROM U), (SELECT COUNT(DISTINCT storeid) FROM U), (SELECT COUNT(*) FROM L);",
+					updates, filter, esql.current_user.userid(), updated_on, esql.current_user.userid(), updated_on);
+			long start = System.currentTimeMillis();
+			if(units != null) esql.beforeStockUpdate();
+			long products = 0, store_count = 0, logged = 0;
+			List<Integer> failed = new ArrayList<Integer>();
+			List<List<String>> result = esql.executeBulkUpdateOnAllShards(query, "product", "productupdates");
+			for(int shard = 0; shard < result.size(); shard++) {
+				List<String> row = result.get(shard);
+				if(row == null) {
+					failed.add(shard);
+					continue;
+				}
+				products += Long.parseLong(row.get(0));
+				store_count += Long.parseLong(row.get(1));
+				logged += Long.parseLong(row.get(2));
+			}
+			if(units != null) esql.afterStockUpdate();
+			esql.productsChanged();
+
+			System.out.printf("Updated %d products in %d stores, %d updates logged in %d ms\n", products, store_count, logged, System.currentTimeMillis() - start);
+			if(!failed.isEmpty()) {
+				System.out.printf("Shards %s failed and were not updated, the products of their stores are unchanged.\n", failed);
+				System.out.printf("To finish the update, run this on each of them; it skips the products already updated:\n%s\n", query);
+			}
+			System.out.println();
+		} catch(Exception e) {
+			System.err.println("ERROR IN DATA INPUT: " + e.getMessage());
+		}
+	}
+
+	public static void viewSalesAnalytics(Retail esql) {
+		try {
+			// Get grouping and filters
+			System.out.printf("1.) Units By Store\n2.) Units By Product\n3.) Units By Customer\n4.) Units By Hour Of Day\n");
+			System.out.print("Choice: ");
+			int choice = Integer.parseInt(in.readLine());
+			if(choice < 1 || choice > 4) {
+				System.out.println("Unrecognized choice!");
+				return;
+			}
+			OrderAnalytics.Dimension dim = OrderAnalytics.Dimension.values()[choice - 1];
+
+			OrderAnalytics.Filter filter = new OrderAnalytics.Filter();
+			System.out.print("Enter Store ID (-1 for all stores): ");
+			filter.storeID = Integer.parseInt(in.readLine());
+			System.out.print("Enter Product Name (empty string for all products): ");
+			String name = in.readLine().trim();
+			if(!name.isEmpty()) {
+				filter.productName = name;
+			}
+			System.out.print("Enter Customer ID (-1 for all customers): ");
+			filter.customerID = Integer.parseInt(in.readLine());
+			System.out.print("Enter number of days back (-1 for all time): ");
+			int days = Integer.parseInt(in.readLine());
+			if(days >= 0) {
+				filter.fromMillis = System.currentTimeMillis() - days * 24L * 60 * 60 * 1000;
+			}
+
+			// Load new orders into the snapshot and run the report
+			if(esql._analytics == null) {
+				esql._analytics = new OrderAnalytics[esql._shards.count()];
+				for(int i = 0; i < esql._analytics.length; i++) {
+					esql._analytics[i] = new OrderAnalytics();
+				}
+			}
+			long start = System.currentTimeMillis();
+			AdmissionController.Operation op = esql.beginBulkOperation();
+			try {
+				esql._analytics[0].refresh(esql._router.connectionForRead());
+				for(int i = 1; i < esql._analytics.length; i++) {
+					esql._analytics[i].refresh(esql._shards.shard(i));
+				}
+			} finally {
+				op.end();
+			}
+			long loaded = System.currentTimeMillis();
+			List<List<OrderAnalytics.Group>> partial = new ArrayList<List<OrderAnalytics.Group>>();
+			int scanned = 0;
+			for(OrderAnalytics analytics : esql._analytics) {
+				partial.add(analytics.query(dim, filter));
+				scanned += analytics.size();
+			}
+			List<OrderAnalytics.Group> result = partial.size() == 1 ? partial.get(0) : OrderAnalytics.merge(partial);
+			long done = System.currentTimeMillis();
+
+			for(int i = 0; i < result.size() && i < 20; i++) {
+				OrderAnalytics.Group group = result.get(i);
+				System.out.printf("%s: %d units in %d orders\n", group.key, group.units, group.orders);
+			}
+			if(result.size() < 1) {
+				System.out.println("No orders found");
+			}
+			System.out.printf("\n%d orders scanned in %d ms (refresh %d ms)\n\n", scanned, done - loaded, loaded - start);
+		} catch(Exception e) {
+			System.err.println("ERROR IN DATA INPUT: " + e.getMessage());
+		}
+	}
+
+	public static void exportTableData(Retail esql) {
+		try {
+			// Get table and output options
+			String[] tables = {"users", "store", "product", "warehouse", "orders", "productsupplyrequests", "productupdates"};
+			for(int i = 0; i < tables.length; i++) {
+				System.out.printf("%d.) %s\n", i + 1, tables[i]);
+			}
+			System.out.print("Choice: ");
+			int choice = Integer.parseInt(in.readLine());
+			if(choice < 1 || choice > tables.length) {
+				System.out.println("Unrecognized choice!");
+				return;
+			}
+			System.out.print("Enter format (csv or json): ");
+			ResultExporter.Format format = ResultExporter.Format.valueOf(in.readLine().trim().toUpperCase());
+			System.out.print("Enter output file (empty string for screen): ");
+			String path = in.readLine().trim();
+			System.out.print("Compress with gzip (y/n): ");
+			boolean gzip = in.readLine().trim().equalsIgnoreCase("y");
+			if(path.isEmpty() && gzip) {
+				System.out.println("Compressed output must go to a file");
+				return;
+			}
+
+			// Store scoped tables are exported one shard at a time
+			int shard = 0;
+			if(esql._shards.count() > 1 && choice >= 3 && choice != 4) {
+				System.out.printf("Enter shard (0-%d): ", esql._shards.count() - 1);
+				shard = Integer.parseInt(in.readLine());
+			}
+
+			// Stream the table
+			long start = System.currentTimeMillis();
+			long rows = esql.exportQueryResult(shard, String.format("SELECT * FROM %s;", tables[choice - 1]), format, path.isEmpty() ? null : path, gzip);
+			System.out.printf("\nExported %d rows in %d ms\n\n", rows, System.currentTimeMillis() - start);
+		} catch(Exception e) {
+			System.err.println("ERROR IN DATA INPUT: " + e.getMessage());
+		}
+	}
+
+	public static void moveStore(Retail esql) {
+		try {
+			System.out.print("Enter Store ID: ");
+			int store_id = Integer.parseInt(in.readLine());
+			System.out.printf("Store #%d is on shard %d\n", store_id, esql._shards.shardOf(store_id));
+			System.out.printf("Enter target shard (0-%d): ", esql._shards.count() - 1);
+			int shard = Integer.parseInt(in.readLine());
+
+			long start = System.currentTimeMillis();
+			int rows = esql.moveStore(store_id, shard);
+			System.out.printf("Moved %d rows of store #%d to shard %d in %d ms\n\n", rows, store_id, shard, System.currentTimeMillis() - start);
+		} catch(Exception e) {
+			System.err.println("ERROR IN DATA INPUT: " + e.getMessage());
+		}
+	}
+
+	public static void viewResultCacheStats(Retail esql) {
+		ResultCache cache = esql._resultCache;
+		if(cache == null) {
+			System.out.println("The result cache is off, set resultCache.entries to turn it on\n");
+			return;
+		}
+		long hits = cache.hits(), misses = cache.misses();
+		System.out.printf("Entries: %d\n", cache.size());
+		System.out.printf("Hits: %d  Misses: %d  Hit rate: %.1f%%\n", hits, misses, hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses));
+		System.out.printf("Evictions: %d  Invalidations: %d\n\n", cache.evictions(), cache.invalidations());
+	}
+
+	public static void rebuildNearbyStores(Retail esql) {
+		try {
+			long start = System.currentTimeMillis();
+			// gives the connection the heavy statement timeout
+			AdmissionController.Operation op = esql.beginBulkOperation();
+			int users;
+			try {
+				users = NearbyStores.rebuildAll(esql._connection);
+			} finally {
+				op.end();
+			}
+			System.out.printf("Computed nearby stores for %d users in %d ms\n\n", users, System.currentTimeMillis() - start);
+		} catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+}//end Retail
@@ -0,0 +1,71 @@
+import java.sql.Timestamp;
+
+/**
+ * Queries over the SalesHourly, SalesDaily and SalesMonthly rollups built
+ * by sql/src/create_rollups.sql.
+ *
+ * The tiers cover disjoint periods, so a time range is answered by reading
+ * each tier's buckets that lie wholly inside the range. A year long report
+ * reads at most twelve monthly rows, about ninety daily rows and a week of
+ * hourly rows per product. Orders in buckets that only partly overlap the
+ * range are read from Orders instead; they all lie in the months holding
+ * the start and the end of the range. Their revenue uses the current
+ * price, as the rollups keep no per order prices.
+ */
+public class SalesRollups {
+
+	// Folds newly placed orders into the rollups
+	public static final String REFRESH = "SELECT refresh_sales_rollups();";
+
+	/**
+	 * Parses 'yyyy-mm-dd' or 'yyyy-mm-dd hh:mm[:ss]'.
+	 *
+	 * @throws java.lang.IllegalArgumentException when the text is not a time
+	 */
+	public static Timestamp parseTime(String text) {
+		text = text.trim();
+		if(text.length() == 10) {
+			text += " 00:00:00";
+		} else if(text.length() == 16) {
+			text += ":00";
+		}
+		return Timestamp.valueOf(text);
+	}
+
+	/**
+	 * Rows of (tier, bucket, productName, orderCount, units, revenue) for
+	 * one store between from (inclusive) and to (exclusive), oldest first.
+	 * Tier 'order' rows add up the orders of partly covered buckets by
+	 * hour.
+	 *
+	 * @param productName product to report on, null for every product
+	 */
+	public static String rangeQuery(int storeID, String productName, Timestamp from, Timestamp to) {
+		String product = "";
+		if(productName != null) {
+			product = String.format(" AND productName = '%s'", productName.trim());
+		}
+		String inside = "storeID = %d AND bucket >= '%s' AND bucket + interval '1 %s' <= '%s'" + product;
+		// covered when the tier holding the order has its bucket wholly inside
+		String covered = "SELECT 1 FROM %s R WHERE R.storeID = O.storeID AND R.productName = trim(O.productName) " +
+			"AND R.bucket = date_trunc('%s', O.orderTime) AND R.bucket >= '%s' AND R.bucket + interval '1 %s' <= '%s'";
+		return String.format(
+			"SELECT 'month', bucket, productName, orderCount, units, revenue FROM SalesMonthly WHERE %s " +
+			"UNION ALL SELECT 'day', bucket, productName, orderCount, units, revenue FROM SalesDaily WHERE %s " +
+			"UNION ALL SELECT 'hour', bucket, productName, orderCount, units, revenue FROM SalesHourly WHERE %s " +
+			"UNION ALL SELECT 'order', date_trunc('hour', O.orderTime), trim(O.productName), COUNT(*), SUM(O.unitsOrdered), SUM(O.unitsOrdered * P.pricePerUnit) " +
+			"FROM Orders O, Product P WHERE O.storeID = P.storeID AND O.productName = P.productName " +
+			"AND O.storeID = %d AND O.orderTime >= '%s' AND O.orderTime < '%s'%s " +
+			"AND (O.orderTime < date_trunc('month', timestamp '%s') + interval '1 month' OR O.orderTime >= date_trunc('month', timestamp '%s')) " +
+			"AND NOT EXISTS (%s) AND NOT EXISTS (%s) AND NOT EXISTS (%s) " +
+			"GROUP BY 2, 3 " +
+			"ORDER BY 2, 3;",
+			String.format(inside, storeID, from, "month", to),
+			String.format(inside, storeID, from, "day", to),
+			String.format(inside, storeID, from, "hour", to),
+			storeID, from, to, product.replace("productName", "O.productName"), from, to,
+			String.format(covered, "SalesMonthly", "month", from, "month", to),
+			String.format(covered, "SalesDaily", "day", from, "day", to),
+			String.format(covered, "SalesHourly", "hour", from, "hour", to));
+	}
+}
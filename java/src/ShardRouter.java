@@ -0,0 +1,619 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Spreads the store scoped tables (Product, Orders, ProductSupplyRequests,
+ * ProductUpdates and the sales rollups) over several Postgres instances by
+ * storeID.
+ *
+ * Shard 0 is the home database Retail connects to. It keeps the global
+ * tables (Users, Store, Warehouse, UserNearbyStores) and the StoreShards
+ * directory, and holds the store scoped rows of the stores mapped to it.
+ * Every store gets a directory entry when it is created (a trigger that
+ * create_shard.sql installs on Store) or at the latest when it is first
+ * written, on shard storeID % shards, so adding a shard moves no store.
+ * Order numbers come from the home orderNumber_seq, so they are unique
+ * across shards; the other serial keys are interleaved per shard by
+ * create_shard.sql.
+ *
+ * Store scoped reads go to one shard through forStore(). The directory is
+ * cached and read again every shard.directoryRefreshMillis (default 5000).
+ * Store scoped writes go through beginWrite() and endWrite(), which hold a
+ * shared advisory lock on the store in the home database and read the
+ * store's shard from the directory under it. moveStore() takes the lock
+ * exclusively, so writes wait for a move and then go to the new shard.
+ * They wait up to shard.writeWaitMillis (default 120000), however short
+ * the statement_timeout of the connection is.
+ * Cross store queries are run on every shard in parallel and merged by
+ * queryAll(). moveStore() rebalances one store at a time.
+ *
+ * Without shard.ports there is a single shard and everything goes to the
+ * home connection.
+ */
+public class ShardRouter {
+
+	// store scoped tables, parents first
+	private static final String[] STORE_TABLES = {
+		"Product", "Orders", "ProductSupplyRequests", "ProductUpdates", "PendingInventory", "InventoryLeases",
+		"SalesHourly", "SalesDaily", "SalesMonthly", "SalesRollupQueue"
+	};
+
+	// compact schema base tables of the store scoped views
+	private static final String[][] BASE_TABLES = {
+		{ "Orders", "OrderData" },
+		{ "ProductSupplyRequests", "ProductSupplyRequestData" },
+		{ "ProductUpdates", "ProductUpdateData" },
+		{ "PendingInventory", "PendingInventoryData" },
+		{ "InventoryLeases", "InventoryLeaseData" }
+	};
+
+	// first key of the advisory locks on stores, the second is the storeID
+	private static final int STORE_LOCK = 0x53544f52;
+	// second key of the lock writes to every store take
+	private static final int ALL_STORES = -1;
+	// how often a write waiting for a move asks for the lock again
+	private static final long LOCK_POLL_MILLIS = 50;
+	// rows per FETCH and INSERT when a store is copied
+	private static final int COPY_BATCH = 1000;
+
+	private final Connection[] _shards;
+	private final Map<Integer, Integer> _directory = new HashMap<Integer, Integer>();
+	private final long _refreshMillis;
+	private final long _writeWaitMillis;
+	private long _loadedAt = 0;
+	private ExecutorService _pool = null;
+
+	/**
+	 * @param shards connections to every shard, the home connection first
+	 */
+	public ShardRouter(Connection[] shards) throws SQLException {
+		this(shards, 5000);
+	}
+
+	/**
+	 * @param shards connections to every shard, the home connection first
+	 * @param refreshMillis how long the cached directory is used by reads
+	 */
+	public ShardRouter(Connection[] shards, long refreshMillis) throws SQLException {
+		this(shards, refreshMillis, 120000);
+	}
+
+	/**
+	 * @param shards connections to every shard, the home connection first
+	 * @param refreshMillis how long the cached directory is used by reads
+	 * @param writeWaitMillis how long writes wait for a store to move
+	 */
+	public ShardRouter(Connection[] shards, long refreshMillis, long writeWaitMillis) throws SQLException {
+		this._shards = shards;
+		this._refreshMillis = refreshMillis;
+		this._writeWaitMillis = writeWaitMillis;
+		if(shards.length > 1) {
+			loadDirectory();
+			this._pool = Executors.newFixedThreadPool(shards.length, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "shard-query");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Builds a router from the shard.* system properties. shard.ports is a
+	 * comma separated list of the ports of shards 1 and up, on shard.host
+	 * (default localhost) with database shard.db (default dbname).
+	 *
+	 * @param home the home connection, shard 0
+	 */
+	public static ShardRouter fromSystemProperties(Connection home, String dbname, String user, String passwd) throws SQLException {
+		List<Connection> shards = new ArrayList<Connection>();
+		shards.add(home);
+		String ports = System.getProperty("shard.ports");
+		if(ports != null && !ports.trim().isEmpty()) {
+			String host = System.getProperty("shard.host", "localhost");
+			String db = System.getProperty("shard.db", dbname);
+			for(String port : ports.split(",")) {
+				String url = "jdbc:postgresql://" + host + ":" + port.trim() + "/" + db;
+				shards.add(DriverManager.getConnection(url, user, passwd));
+				System.out.println("Shard URL: " + url);
+			}
+		}
+		long refreshMillis = Long.parseLong(System.getProperty("shard.directoryRefreshMillis", "5000"));
+		long writeWaitMillis = Long.parseLong(System.getProperty("shard.writeWaitMillis", "120000"));
+		return new ShardRouter(shards.toArray(new Connection[shards.size()]), refreshMillis, writeWaitMillis);
+	}
+
+	private void loadDirectory() throws SQLException {
+		Statement stmt = this._shards[0].createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT storeID, shard FROM StoreShards;");
+			synchronized(this._directory) {
+				this._directory.clear();
+				while(rs.next()) {
+					this._directory.put(rs.getInt(1), rs.getInt(2));
+				}
+				this._loadedAt = System.currentTimeMillis();
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	public int count() {
+		return this._shards.length;
+	}
+
+	public Connection shard(int index) {
+		return this._shards[index];
+	}
+
+	public Connection home() {
+		return this._shards[0];
+	}
+
+	/**
+	 * Returns the index of the shard holding a store's rows, from the
+	 * cached directory. A store that just moved may still be read from its
+	 * old shard until the directory is read again. A store without an
+	 * entry has never been written, so it has no rows to find anywhere.
+	 */
+	public int shardOf(int storeID) {
+		if(this._shards.length == 1) {
+			return 0;
+		}
+		boolean stale;
+		synchronized(this._directory) {
+			stale = System.currentTimeMillis() - this._loadedAt > this._refreshMillis;
+		}
+		if(stale) {
+			try {
+				loadDirectory();
+			} catch(SQLException e) {
+				System.err.println("Could not read the shard directory: " + e.getMessage());
+			}
+		}
+		synchronized(this._directory) {
+			return shardOf(storeID, this._directory.get(storeID));
+		}
+	}
+
+	// shard of a store with the given directory entry, or its default one
+	private int shardOf(int storeID, Integer entry) {
+		if(entry != null && entry < this._shards.length) {
+			return entry;
+		}
+		return (storeID & Integer.MAX_VALUE) % this._shards.length;
+	}
+
+	/**
+	 * Returns the connection for statements on one store's rows.
+	 */
+	public Connection forStore(int storeID) {
+		return this._shards[shardOf(storeID)];
+	}
+
+	/**
+	 * Returns the connection for statements that change one store's rows.
+	 * Holds a shared lock on the store until endWrite(storeID), so the
+	 * store cannot move in between, and reads its shard from the directory
+	 * rather than the cache. A store without a directory entry gets one.
+	 * Every beginWrite() that returns must be followed by endWrite(); when
+	 * it throws, no lock is held.
+	 */
+	public Connection beginWrite(int storeID) throws SQLException {
+		if(this._shards.length == 1) {
+			return this._shards[0];
+		}
+		waitForLock("pg_try_advisory_lock_shared", storeID);
+		boolean routed = false;
+		try {
+			Statement stmt = this._shards[0].createStatement();
+			try {
+				String select = String.format("SELECT shard FROM StoreShards WHERE storeID = %d;", storeID);
+				ResultSet rs = stmt.executeQuery(select);
+				if(!rs.next()) {
+					// pinned before the first row is written, so a later shard
+					// count cannot move the store
+					stmt.executeUpdate(String.format("INSERT INTO StoreShards (storeID, shard) VALUES (%d, %d) ON CONFLICT (storeID) DO NOTHING;", storeID, shardOf(storeID, null)));
+					rs = stmt.executeQuery(select);
+					rs.next();
+				}
+				int entry = rs.getInt(1);
+				synchronized(this._directory) {
+					this._directory.put(storeID, entry);
+				}
+				routed = true;
+				return this._shards[shardOf(storeID, entry)];
+			} finally {
+				stmt.close();
+			}
+		} finally {
+			if(!routed) {
+				unlock("pg_advisory_unlock_shared", storeID);
+			}
+		}
+	}
+
+	/**
+	 * Releases the lock taken by beginWrite(storeID).
+	 */
+	public void endWrite(int storeID) {
+		if(this._shards.length > 1) {
+			unlock("pg_advisory_unlock_shared", storeID);
+		}
+	}
+
+	/**
+	 * Holds a shared lock on every store until endBulkWrite(), for
+	 * statements that change the rows of many stores on every shard.
+	 */
+	public void beginBulkWrite() throws SQLException {
+		if(this._shards.length > 1) {
+			waitForLock("pg_try_advisory_lock_shared", ALL_STORES);
+		}
+	}
+
+	public void endBulkWrite() {
+		if(this._shards.length > 1) {
+			unlock("pg_advisory_unlock_shared", ALL_STORES);
+		}
+	}
+
+	private void lock(String function, int key) throws SQLException {
+		Statement stmt = this._shards[0].createStatement();
+		try {
+			stmt.executeQuery(String.format("SELECT %s(%d, %d);", function, STORE_LOCK, key));
+		} finally {
+			stmt.close();
+		}
+	}
+
+	// Takes a lock with one of the pg_try_advisory_lock functions, asking
+	// again until shard.writeWaitMillis has passed. Waiting inside the lock
+	// function would be cancelled by the statement_timeout of the home
+	// connection long before a move is done. Try locks are not granted
+	// while moveStore() waits for the lock exclusively, so writes cannot
+	// keep a move from starting.
+	private void waitForLock(String function, int key) throws SQLException {
+		long deadline = System.currentTimeMillis() + this._writeWaitMillis;
+		Statement stmt = this._shards[0].createStatement();
+		try {
+			while(true) {
+				ResultSet rs = stmt.executeQuery(String.format("SELECT %s(%d, %d);", function, STORE_LOCK, key));
+				if(rs.next() && rs.getBoolean(1)) {
+					return;
+				}
+				if(System.currentTimeMillis() >= deadline) {
+					throw new SQLException(String.format("Stores still moving after %d ms", this._writeWaitMillis));
+				}
+				Thread.sleep(LOCK_POLL_MILLIS);
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a store move");
+		} finally {
+			stmt.close();
+		}
+	}
+
+	// a lock that cannot be released is held until the connection closes
+	private void unlock(String function, int key) {
+		try {
+			lock(function, key);
+		} catch(SQLException e) {
+			System.err.println("Could not release store lock: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Runs a query on every shard in parallel and returns all rows, in
+	 * shard order.
+	 */
+	public List<List<String>> queryAll(String query) throws SQLException {
+		return queryAll(query, null, -1);
+	}
+
+	/**
+	 * Runs a query on every shard in parallel, then sorts the combined rows
+	 * and keeps the first limit of them. Each shard should apply the same
+	 * ORDER BY and LIMIT, so only limit rows per shard are merged.
+	 *
+	 * @param order order of the merged rows, or null to keep shard order
+	 * @param limit max number of rows, or a negative value for all
+	 */
+	public List<List<String>> queryAll(String query, Comparator<List<String>> order, int limit) throws SQLException {
+		return queryAll(null, query, order, limit);
+	}
+
+	/**
+	 * Runs a query on every shard in parallel as part of an admitted
+	 * operation, so the shard statements get its timeout and are cancelled
+	 * with it.
+	 *
+	 * @param operation the operation, or null to run the query unmanaged
+	 * @see #queryAll(String, Comparator, int)
+	 */
+	public List<List<String>> queryAll(final AdmissionController.Operation operation, final String query, Comparator<List<String>> order, int limit) throws SQLException {
+		List<List<String>> rows = new ArrayList<List<String>>();
+		if(this._pool == null) {
+			rows.addAll(query(operation, this._shards[0], query));
+		} else {
+			List<Future<List<List<String>>>> results = new ArrayList<Future<List<List<String>>>>();
+			for(final Connection shard : this._shards) {
+				results.add(this._pool.submit(new Callable<List<List<String>>>() {
+					public List<List<String>> call() throws SQLException {
+						return query(operation, shard, query);
+					}
+				}));
+			}
+			for(Future<List<List<String>>> result : results) {
+				rows.addAll(get(result));
+			}
+		}
+		if(order != null) {
+			Collections.sort(rows, order);
+		}
+		if(limit >= 0 && rows.size() > limit) {
+			return new ArrayList<List<String>>(rows.subList(0, limit));
+		}
+		return rows;
+	}
+
+	private static <T> T get(Future<T> result) throws SQLException {
+		try {
+			return result.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while querying shards");
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw new SQLException(e.getCause().toString());
+		}
+	}
+
+	private static List<List<String>> query(AdmissionController.Operation operation, Connection connection, String query) throws SQLException {
+		// statements of an operation are closed when it ends
+		Statement stmt = operation == null ? connection.createStatement() : operation.statement(connection);
+		try {
+			ResultSet rs = stmt.executeQuery(query);
+			int numCol = rs.getMetaData().getColumnCount();
+			List<List<String>> rows = new ArrayList<List<String>>();
+			while(rs.next()) {
+				List<String> row = new ArrayList<String>(numCol);
+				for(int i = 1; i <= numCol; i++) {
+					row.add(rs.getString(i));
+				}
+				rows.add(row);
+			}
+			return rows;
+		} finally {
+			if(operation == null) {
+				stmt.close();
+			}
+		}
+	}
+
+	/**
+	 * Moves the rows of one store to another shard.
+	 *
+	 * Writes to the store, and bulk writes, wait until the move is done:
+	 * the store's advisory lock is held exclusively for the whole move.
+	 * The rows are read through a cursor and copied into the target in
+	 * batches of COPY_BATCH rows, all in one transaction, then the
+	 * directory is switched, then the rows are deleted from the source.
+	 * The target transaction runs with session_replication_role = replica,
+	 * which needs a superuser: no trigger fires, so order times and rollup
+	 * queues are copied as they are and the foreign keys, which held on
+	 * the source, are not checked again. Unlike disabling the triggers it
+	 * takes no lock on the tables, so the other stores of the target keep
+	 * being written. If the move is interrupted it can simply be run
+	 * again: a partial copy is replaced, and a store already switched only
+	 * has its leftover source rows removed.
+	 *
+	 * With the compact schema the base tables are copied, so every shard
+	 * must use the same schema.
+	 *
+	 * @return number of rows moved
+	 */
+	public int moveStore(int storeID, int target) throws SQLException {
+		if(target < 0 || target >= this._shards.length) {
+			throw new SQLException("No shard " + target);
+		}
+		lock("pg_advisory_lock", ALL_STORES);
+		try {
+			lock("pg_advisory_lock", storeID);
+			try {
+				return moveLocked(storeID, target);
+			} finally {
+				unlock("pg_advisory_unlock", storeID);
+			}
+		} finally {
+			unlock("pg_advisory_unlock", ALL_STORES);
+		}
+	}
+
+	private int moveLocked(int storeID, int target) throws SQLException {
+		loadDirectory();
+		int source;
+		synchronized(this._directory) {
+			source = shardOf(storeID, this._directory.get(storeID));
+		}
+		int moved = 0;
+		if(source != target) {
+			moved = copyStore(storeID, this._shards[source], this._shards[target]);
+			Statement stmt = this._shards[0].createStatement();
+			try {
+				stmt.executeUpdate(String.format("DELETE FROM StoreShards WHERE storeID = %d; INSERT INTO StoreShards (storeID, shard) VALUES (%d, %d);", storeID, storeID, target));
+			} finally {
+				stmt.close();
+			}
+			synchronized(this._directory) {
+				this._directory.put(storeID, target);
+			}
+		}
+
+		// leftovers of this or an earlier interrupted move
+		for(int i = 0; i < this._shards.length; i++) {
+			if(i != target) {
+				deleteStore(storeID, this._shards[i]);
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Returns the store scoped tables of a shard, parents first, with the
+	 * compact schema's views replaced by their base tables.
+	 */
+	private static String[] storeTables(Connection connection) throws SQLException {
+		String[] tables = STORE_TABLES.clone();
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT relname FROM pg_class WHERE relkind = 'r' AND relname IN ('orderdata', 'productsupplyrequestdata', 'productupdatedata', 'pendinginventorydata', 'inventoryleasedata');");
+			while(rs.next()) {
+				for(String[] base : BASE_TABLES) {
+					if(base[1].equalsIgnoreCase(rs.getString(1))) {
+						for(int i = 0; i < tables.length; i++) {
+							if(tables[i].equals(base[0])) {
+								tables[i] = base[1];
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			stmt.close();
+		}
+		return tables;
+	}
+
+	private static int copyStore(int storeID, Connection from, Connection to) throws SQLException {
+		String[] tables = storeTables(from);
+		if(!Arrays.equals(tables, storeTables(to))) {
+			throw new SQLException("Cannot move a store between shards with different schemas");
+		}
+		boolean fromAutoCommit = from.getAutoCommit();
+		boolean toAutoCommit = to.getAutoCommit();
+		boolean committed = false;
+		Statement read = from.createStatement();
+		Statement write = to.createStatement();
+		int copied = 0;
+		try {
+			// a cursor only lives inside a transaction
+			from.setAutoCommit(false);
+			to.setAutoCommit(false);
+			write.execute("SET LOCAL session_replication_role = replica;");
+			for(int i = tables.length - 1; i >= 0; i--) {
+				write.executeUpdate(String.format("DELETE FROM %s WHERE storeID = %d;", tables[i], storeID));
+			}
+			for(String table : tables) {
+				read.execute(String.format("DECLARE store_cursor NO SCROLL CURSOR FOR SELECT * FROM %s WHERE storeID = %d;", table, storeID));
+				int fetched;
+				do {
+					ResultSet rs = read.executeQuery("FETCH " + COPY_BATCH + " FROM store_cursor;");
+					fetched = insertRows(write, table, rs);
+					rs.close();
+					copied += fetched;
+				} while(fetched == COPY_BATCH);
+				read.execute("CLOSE store_cursor;");
+			}
+			to.commit();
+			committed = true;
+		} finally {
+			try {
+				if(!committed) {
+					to.rollback();
+				}
+				// the source was only read, this also drops the cursor
+				from.rollback();
+			} finally {
+				read.close();
+				write.close();
+				from.setAutoCommit(fromAutoCommit);
+				to.setAutoCommit(toAutoCommit);
+			}
+		}
+		return copied;
+	}
+
+	// Inserts the rows of rs into table with one statement, returns how many
+	private static int insertRows(Statement write, String table, ResultSet rs) throws SQLException {
+		ResultSetMetaData meta = rs.getMetaData();
+		StringBuilder insert = new StringBuilder();
+		int rows = 0;
+		while(rs.next()) {
+			if(insert.length() == 0) {
+				insert.append("INSERT INTO ").append(table).append(" (");
+				for(int c = 1; c <= meta.getColumnCount(); c++) {
+					insert.append(c > 1 ? ", " : "").append(meta.getColumnName(c));
+				}
+				insert.append(") VALUES ");
+			} else {
+				insert.append(", ");
+			}
+			insert.append('(');
+			for(int c = 1; c <= meta.getColumnCount(); c++) {
+				String value = rs.getString(c);
+				insert.append(c > 1 ? ", " : "");
+				insert.append(value == null ? "NULL" : "'" + value.replace("'", "''") + "'");
+			}
+			insert.append(')');
+			rows++;
+		}
+		if(rows > 0) {
+			write.executeUpdate(insert.toString());
+		}
+		return rows;
+	}
+
+	private static void deleteStore(int storeID, Connection connection) throws SQLException {
+		String[] tables = storeTables(connection);
+		StringBuilder delete = new StringBuilder();
+		for(int i = tables.length - 1; i >= 0; i--) {
+			delete.append(String.format("DELETE FROM %s WHERE storeID = %d; ", tables[i], storeID));
+		}
+		Statement stmt = connection.createStatement();
+		try {
+			// one string, so Postgres runs it as a single transaction
+			stmt.executeUpdate(delete.toString());
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Closes the shard connections other than the home connection.
+	 */
+	public void close() {
+		if(this._pool != null) {
+			this._pool.shutdown();
+		}
+		for(int i = 1; i < this._shards.length; i++) {
+			try {
+				this._shards[i].close();
+			} catch(SQLException e) {
+				// ignored.
+			}
+		}
+	}
+}
@@ -25,6 +25,8 @@ public class User {
 		this._longitude = longitude;
 	}
 
+	// char(n) columns come back blank padded. The compact schema
+	// (migrate_compact_schema.sql) stores varchar, where trim is a no-op.
 	void setName(String name) {
 		this._name = name.trim();
 	}
@@ -0,0 +1,330 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records console sessions and replays them against a database.
+ *
+ * While recording (-Drecord.file=<log>) every input line and every
+ * completed menu operation is appended to the log as tab separated lines:
+ *
+ *   I  <ms since session start>  <input line>
+ *   O  <ms since session start>  <menu>  <choice>  <latency us>
+ *
+ * The operation latency excludes time spent waiting for input, so it is
+ * the time the application and database took.
+ *
+ * Replay feeds the recorded input lines to one or more sessions, each with
+ * its own connection, and prints recorded vs replayed latency per operation:
+ *
+ *   java Workload <log> <dbname> <port> <user> [speed] [sessions]
+ *
+ * speed 1 keeps the recorded pacing, 10 replays ten times faster and 0
+ * sends input as fast as the application consumes it.
+ */
+public class Workload {
+
+	/**
+	 * Thrown when a replayed session runs out of input. It is an Error so
+	 * that the menu code, which catches Exception, lets it through.
+	 */
+	public static class EndOfWorkload extends Error {
+		private static final long serialVersionUID = 1L;
+
+		public EndOfWorkload() {
+			super("End of recorded input");
+		}
+	}
+
+	// State of the session running on one thread
+	private static class Session {
+		BufferedReader source;
+		BufferedWriter log = null;
+		long startNanos = System.nanoTime();
+		long waitNanos = 0;
+		int choice = 0;
+		Map<String, List<Long>> latencies = null;
+		boolean endIsError = false;
+	}
+
+	/**
+	 * The console input used by Retail. Each thread reads from its own
+	 * session source, the main thread from stdin unless told otherwise.
+	 */
+	public static class Input extends BufferedReader {
+		private final BufferedReader _stdin;
+		private final ThreadLocal<Session> _session = new ThreadLocal<Session>() {
+			protected Session initialValue() {
+				Session session = new Session();
+				session.source = _stdin;
+				return session;
+			}
+		};
+
+		public Input(BufferedReader stdin) {
+			super(new StringReader(""));
+			this._stdin = stdin;
+		}
+
+		/**
+		 * Starts recording this thread's session to the given log file,
+		 * replacing any earlier recording in it.
+		 */
+		public void record(String path) throws IOException {
+			this._session.get().log = new BufferedWriter(new FileWriter(path));
+		}
+
+		/**
+		 * Makes this thread read from source and collect per operation
+		 * latencies into the given map instead of the console.
+		 */
+		void replay(BufferedReader source, Map<String, List<Long>> latencies) {
+			Session session = this._session.get();
+			session.source = source;
+			session.latencies = latencies;
+			session.endIsError = true;
+		}
+
+		public String readLine() throws IOException {
+			Session session = this._session.get();
+			long start = System.nanoTime();
+			String line = session.source.readLine();
+			long end = System.nanoTime();
+			session.waitNanos += end - start;
+			if(line == null && session.endIsError) {
+				throw new EndOfWorkload();
+			}
+			if(session.log != null && line != null) {
+				session.log.write(String.format("I\t%d\t%s\n", (end - session.startNanos) / 1000000, line.replace('\t', ' ')));
+			}
+			return line;
+		}
+
+		public boolean ready() throws IOException {
+			return this._session.get().source.ready();
+		}
+
+		/**
+		 * Returns this thread's input without recording, for keys that
+		 * control a running operation rather than answer a prompt, such as
+		 * the Enter that cancels a report. Replays never send them.
+		 */
+		public BufferedReader unrecorded() {
+			return new BufferedReader(new StringReader("")) {
+				public String readLine() throws IOException {
+					return _session.get().source.readLine();
+				}
+
+				public boolean ready() throws IOException {
+					return _session.get().source.ready();
+				}
+			};
+		}
+
+		/**
+		 * Notes the menu choice of the operation in progress.
+		 */
+		public void setChoice(int choice) {
+			this._session.get().choice = choice;
+		}
+
+		/**
+		 * Marks the start of a menu operation.
+		 */
+		public long operationStart() {
+			Session session = this._session.get();
+			session.waitNanos = 0;
+			return System.nanoTime();
+		}
+
+		/**
+		 * Marks the end of a menu operation and records its latency
+		 * without the time spent waiting for input.
+		 */
+		public void operationEnd(String menu, long start) {
+			Session session = this._session.get();
+			long end = System.nanoTime();
+			long latencyMicros = Math.max(0, end - start - session.waitNanos) / 1000;
+			String op = menu + "\t" + session.choice;
+			if(session.latencies != null) {
+				add(session.latencies, op, latencyMicros);
+			}
+			if(session.log != null) {
+				try {
+					session.log.write(String.format("O\t%d\t%s\t%d\n", (end - session.startNanos) / 1000000, op, latencyMicros));
+					session.log.flush();
+				} catch(IOException e) {
+					System.err.println("Recording failed: " + e.getMessage());
+					session.log = null;
+				}
+			}
+		}
+
+		public void close() throws IOException {
+			Session session = this._session.get();
+			if(session.log != null) {
+				session.log.close();
+				session.log = null;
+			}
+		}
+	}
+
+	/**
+	 * Plays back recorded input lines, waiting until each line is due.
+	 */
+	private static class ReplayReader extends BufferedReader {
+		private final List<Long> _times;
+		private final List<String> _lines;
+		private final double _speed;
+		private final long _startNanos = System.nanoTime();
+		private int _next = 0;
+
+		ReplayReader(List<Long> times, List<String> lines, double speed) {
+			super(new StringReader(""));
+			this._times = times;
+			this._lines = lines;
+			this._speed = speed;
+		}
+
+		public String readLine() throws IOException {
+			if(this._next >= this._lines.size()) {
+				return null;
+			}
+			if(this._speed > 0) {
+				long due = this._startNanos + (long) (this._times.get(this._next) * 1000000 / this._speed);
+				long wait = due - System.nanoTime();
+				if(wait > 0) {
+					try {
+						Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return null;
+					}
+				}
+			}
+			return this._lines.get(this._next++);
+		}
+
+		public boolean ready() {
+			return false;
+		}
+	}
+
+	private static synchronized void add(Map<String, List<Long>> latencies, String op, long latency) {
+		List<Long> list = latencies.get(op);
+		if(list == null) {
+			list = new ArrayList<Long>();
+			latencies.put(op, list);
+		}
+		list.add(latency);
+	}
+
+	private static long percentile(List<Long> sorted, double p) {
+		if(sorted.isEmpty()) return 0;
+		int index = (int) Math.ceil(p * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+	}
+
+	private static long mean(List<Long> values) {
+		if(values.isEmpty()) return 0;
+		long sum = 0;
+		for(long value : values) sum += value;
+		return sum / values.size();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 4) {
+			System.err.println("Usage: java Workload <log> <dbname> <port> <user> [speed] [sessions]");
+			return;
+		}
+		final String dbname = args[1];
+		final String dbport = args[2];
+		final String user = args[3];
+		double speed = args.length > 4 ? Double.parseDouble(args[4]) : 1.0;
+		int sessions = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+
+		// Read the log
+		final List<Long> times = new ArrayList<Long>();
+		final List<String> lines = new ArrayList<String>();
+		final Map<String, List<Long>> recorded = new TreeMap<String, List<Long>>();
+		BufferedReader reader = new BufferedReader(new FileReader(args[0]));
+		String line;
+		while((line = reader.readLine()) != null) {
+			String[] fields = line.split("\t", -1);
+			if(fields[0].equals("I")) {
+				times.add(Long.parseLong(fields[1]));
+				lines.add(fields.length > 2 ? fields[2] : "");
+			} else if(fields[0].equals("O")) {
+				add(recorded, fields[2] + "\t" + fields[3], Long.parseLong(fields[4]));
+			}
+		}
+		reader.close();
+
+		// Run the sessions with the application output discarded
+		Class.forName("org.postgresql.Driver");
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {}
+			public void write(byte[] b, int off, int len) {}
+		}));
+
+		final Map<String, List<Long>> replayed = new TreeMap<String, List<Long>>();
+		final double replaySpeed = speed;
+		List<Thread> threads = new ArrayList<Thread>();
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < sessions; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					Retail esql = null;
+					try {
+						Retail.in.replay(new ReplayReader(times, lines, replaySpeed), replayed);
+						esql = new Retail(dbname, dbport, user, "");
+						Retail.runSession(esql);
+					} catch(EndOfWorkload e) {
+						// done
+					} catch(Exception e) {
+						System.err.println("Replay session failed: " + e.getMessage());
+					} finally {
+						if(esql != null) {
+							esql.cleanup();
+						}
+					}
+				}
+			}, "replay-" + i);
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		System.setOut(console);
+
+		// Compare latencies
+		System.out.printf("Replayed %d session(s) at speed %s in %d ms\n\n", sessions, speed == 0 ? "max" : String.valueOf(speed), elapsed);
+		System.out.printf("%-10s %6s | %8s %8s %8s | %8s %8s %8s\n", "menu", "choice", "rec n", "rec p50", "rec p99", "rep n", "rep p50", "rep p99");
+		TreeMap<String, List<Long>> all = new TreeMap<String, List<Long>>(recorded);
+		all.putAll(replayed);
+		for(String op : all.keySet()) {
+			List<Long> rec = recorded.containsKey(op) ? recorded.get(op) : new ArrayList<Long>();
+			List<Long> rep = replayed.containsKey(op) ? replayed.get(op) : new ArrayList<Long>();
+			Collections.sort(rec);
+			Collections.sort(rep);
+			String[] key = op.split("\t");
+			System.out.printf("%-10s %6s | %8d %8d %8d | %8d %8d %8d   (mean us %d -> %d)\n", key[0], key[1],
+					rec.size(), percentile(rec, 0.5), percentile(rec, 0.99),
+					rep.size(), percentile(rep, 0.5), percentile(rep, 0.99),
+					mean(rec), mean(rep));
+		}
+	}
+}
@@ -5,4 +5,4 @@ psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_indexes.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/load_data.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_sequences.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_triggers.sql
-
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_rollups.sql
@@ -0,0 +1,48 @@
+#!/bin/bash
+# Usage: create_shard.sh <port of shard 1> [<port of shard 2> ...]
+# Shard 0 is the existing database made by create_db.sh, on $PGPORT. Pass
+# the ports of every other shard, in shard order, the same list as
+# -Dshard.ports. A shard without the schema gets it, without data; stores
+# are then moved to it from the admin menu. Run it again with the whole
+# list whenever a shard is added: every shard's sequences are interleaved
+# for the new count, starting above the largest key used on any shard.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+if [ $# -lt 1 ]; then
+	echo "Usage: $0 <port of shard 1> [<port of shard 2> ...]"
+	exit 1
+fi
+PORTS="$PGPORT $@"
+SHARDS=$(( $# + 1 ))
+for PORT in "$@"; do
+	if [ "$(psql -h localhost -p $PORT $USER"_DB" -tA -c "SELECT COUNT(*) FROM pg_class WHERE relname = 'product';")" = "0" ]; then
+		psql -h localhost -p $PORT $USER"_DB" < $DIR/../src/create_tables.sql
+		psql -h localhost -p $PORT $USER"_DB" < $DIR/../src/create_indexes.sql
+		psql -h localhost -p $PORT $USER"_DB" < $DIR/../src/create_sequences.sql
+		psql -h localhost -p $PORT $USER"_DB" < $DIR/../src/create_triggers.sql
+		psql -h localhost -p $PORT $USER"_DB" < $DIR/../src/create_rollups.sql
+	fi
+done
+# largest key handed out by any shard, plus room for the keys they hand
+# out until their sequences are interleaved again
+FLOOR=0
+for PORT in $PORTS; do
+	KEYS=$(psql -h localhost -p $PORT $USER"_DB" -tA -c "SELECT GREATEST(
+		(SELECT MAX(last_value) FROM pg_sequences WHERE sequencename IN
+			('productsupplyrequests_requestnumber_seq', 'productupdates_updatenumber_seq', 'ordernumber_seq', 'product_productid_seq')),
+		(SELECT COALESCE(MAX(requestNumber), 0) FROM ProductSupplyRequests),
+		(SELECT COALESCE(MAX(updateNumber), 0) FROM ProductUpdates),
+		(SELECT COALESCE(MAX(orderNumber), 0) FROM Orders));")
+	if [ -z "$KEYS" ]; then
+		echo "Could not read the largest key from the database on port $PORT"
+		exit 1
+	fi
+	if [ $KEYS -gt $FLOOR ]; then
+		FLOOR=$KEYS
+	fi
+done
+FLOOR=$(( FLOOR + 1000000 ))
+SHARD=0
+for PORT in $PORTS; do
+	psql -h localhost -p $PORT $USER"_DB" -v ON_ERROR_STOP=1 -v shard=$SHARD -v shards=$SHARDS -v floor=$FLOOR < $DIR/../src/create_shard.sql || exit 1
+	SHARD=$(( SHARD + 1 ))
+done
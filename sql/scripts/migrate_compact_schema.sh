@@ -0,0 +1,53 @@
+#!/bin/bash
+# Online: Retail and the workload keep running while the tables are copied,
+# see migrate_compact_schema.sql for the steps.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+DB="-h localhost -p $PGPORT ${USER}_DB"
+# rows (stores for copy_products) per backfill transaction
+BATCH=${BATCH:-5000}
+STORE_BATCH=${STORE_BATCH:-20}
+
+# Calls a copy_*() function batch after batch until it reports the table done
+backfill () {
+	NEXT=NULL
+	while [ -n "$NEXT" ]; do
+		NEXT=$(psql $DB -tA -v ON_ERROR_STOP=1 -c "SELECT $1($NEXT, $2);") || exit 1
+	done
+	echo "$1 done"
+}
+
+# Plain VACUUM does not lock out writers but leaves the old tables' dead
+# space in place, so the sizes before include their bloat while the copies
+# are written without any
+echo "Sizes before migration"
+psql $DB -c "VACUUM ANALYZE;"
+psql $DB < $DIR/../src/measure_sizes.sql
+
+psql $DB -v ON_ERROR_STOP=1 < $DIR/../src/migrate_compact_schema.sql || exit 1
+backfill copy_users $BATCH
+backfill copy_stores $BATCH
+backfill copy_products $STORE_BATCH
+
+psql $DB -v ON_ERROR_STOP=1 < $DIR/../src/migrate_compact_schema_data.sql || exit 1
+backfill copy_orders $BATCH
+backfill copy_supply_requests $BATCH
+backfill copy_product_updates $BATCH
+backfill copy_inventory $BATCH
+
+# the swap gives up rather than wait behind long queries, try it again
+for TRY in 1 2 3 4 5; do
+	psql $DB -v ON_ERROR_STOP=1 < $DIR/../src/migrate_compact_schema_swap.sql && break
+	if [ "$(psql $DB -tA -c "SELECT COUNT(*) FROM pg_class WHERE relname = 'compactproduct';")" = "0" ]; then
+		echo "Tables swapped but not every foreign key validated, see the error above"
+		exit 1
+	fi
+	if [ $TRY = 5 ]; then
+		echo "Could not swap the tables, run migrate_compact_schema_swap.sql again when the database is quieter"
+		exit 1
+	fi
+	sleep 10
+done
+
+echo "Sizes after migration"
+psql $DB -c "VACUUM ANALYZE;"
+psql $DB < $DIR/../src/measure_sizes.sql
@@ -0,0 +1,8 @@
+-- Popular customers of a store over a time window (viewPopularCustomers).
+-- storeID and orderTime bound the range scanned and customerID is carried
+-- in the index, so the count is an index-only scan once vacuum has marked
+-- the pages all-visible.
+CREATE INDEX orders_store_time_customer_idx ON Orders(storeID, orderTime, customerID);
+
+-- Orders placed since a time (OrderAnalytics.refresh)
+CREATE INDEX orders_time_idx ON Orders(orderTime);
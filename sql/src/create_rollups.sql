@@ -0,0 +1,188 @@
+-- Hourly, daily and monthly sales rollups
+--
+-- Every new order is queued with the product price at order time by an
+-- AFTER INSERT trigger. refresh_sales_rollups() folds the queue into
+-- SalesHourly and then compacts old hours into SalesDaily and old days into
+-- SalesMonthly. The tiers never overlap in time, so a time range report
+-- sums all three.
+--
+-- Safe to run again, e.g. after migrate_compact_schema.sql, existing
+-- rollups are kept.
+
+CREATE TABLE IF NOT EXISTS SalesHourly ( storeID integer NOT NULL,
+                           productName varchar(30) NOT NULL,
+                           bucket timestamp NOT NULL,
+                           orderCount integer NOT NULL,
+                           units integer NOT NULL,
+                           revenue float NOT NULL,
+                           PRIMARY KEY(storeID, productName, bucket)
+);
+
+CREATE TABLE IF NOT EXISTS SalesDaily ( storeID integer NOT NULL,
+                          productName varchar(30) NOT NULL,
+                          bucket timestamp NOT NULL,
+                          orderCount integer NOT NULL,
+                          units integer NOT NULL,
+                          revenue float NOT NULL,
+                          PRIMARY KEY(storeID, productName, bucket)
+);
+
+CREATE TABLE IF NOT EXISTS SalesMonthly ( storeID integer NOT NULL,
+                            productName varchar(30) NOT NULL,
+                            bucket timestamp NOT NULL,
+                            orderCount bigint NOT NULL,
+                            units bigint NOT NULL,
+                            revenue float NOT NULL,
+                            PRIMARY KEY(storeID, productName, bucket)
+);
+
+-- Orders not yet counted in SalesHourly
+CREATE TABLE IF NOT EXISTS SalesRollupQueue ( storeID integer NOT NULL,
+                                productName varchar(30) NOT NULL,
+                                orderTime timestamp NOT NULL,
+                                units integer NOT NULL,
+                                price float NOT NULL
+);
+
+-- Folds the queue into SalesHourly and compacts older tiers. Returns the
+-- number of hourly buckets touched.
+CREATE OR REPLACE FUNCTION refresh_sales_rollups()
+RETURNS integer AS
+$BODY$
+DECLARE
+    n integer;
+BEGIN
+    -- one refresh at a time, readers are not blocked
+    LOCK TABLE SalesHourly, SalesDaily, SalesMonthly IN SHARE ROW EXCLUSIVE MODE;
+
+    CREATE TEMP TABLE IF NOT EXISTS rollup_batch ( storeID integer, productName varchar(30),
+        bucket timestamp, orderCount integer, units integer, revenue float ) ON COMMIT DELETE ROWS;
+
+    -- taking the rows out of the queue and counting them happens atomically
+    WITH D AS (DELETE FROM SalesRollupQueue RETURNING storeID, productName, orderTime, units, price)
+    INSERT INTO rollup_batch
+        SELECT storeID, productName, date_trunc('hour', orderTime), COUNT(*), SUM(units), SUM(units * price)
+        FROM D GROUP BY storeID, productName, date_trunc('hour', orderTime);
+    GET DIAGNOSTICS n = ROW_COUNT;
+
+    UPDATE SalesHourly H
+    SET orderCount = H.orderCount + B.orderCount, units = H.units + B.units, revenue = H.revenue + B.revenue
+    FROM rollup_batch B
+    WHERE H.storeID = B.storeID AND H.productName = B.productName AND H.bucket = B.bucket;
+
+    INSERT INTO SalesHourly
+        SELECT B.storeID, B.productName, B.bucket, B.orderCount, B.units, B.revenue
+        FROM rollup_batch B
+        WHERE NOT EXISTS (SELECT 1 FROM SalesHourly H WHERE H.storeID = B.storeID AND H.productName = B.productName AND H.bucket = B.bucket);
+
+    PERFORM compact_sales_rollups(interval '7 days', interval '90 days');
+    RETURN n;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Moves hours older than hourly_keep into SalesDaily and days older than
+-- daily_keep into SalesMonthly. Cutoffs are whole days and months so a
+-- bucket is never split between tiers.
+CREATE OR REPLACE FUNCTION compact_sales_rollups(hourly_keep interval, daily_keep interval)
+RETURNS void AS
+$BODY$
+DECLARE
+    day_cutoff timestamp := date_trunc('day', now() - hourly_keep);
+    month_cutoff timestamp := date_trunc('month', now() - daily_keep);
+BEGIN
+    IF EXISTS (SELECT 1 FROM SalesHourly WHERE bucket < day_cutoff) THEN
+        UPDATE SalesDaily D
+        SET orderCount = D.orderCount + H.orderCount, units = D.units + H.units, revenue = D.revenue + H.revenue
+        FROM (SELECT storeID, productName, date_trunc('day', bucket) AS bucket, SUM(orderCount) AS orderCount, SUM(units) AS units, SUM(revenue) AS revenue
+              FROM SalesHourly WHERE bucket < day_cutoff GROUP BY storeID, productName, date_trunc('day', bucket)) H
+        WHERE D.storeID = H.storeID AND D.productName = H.productName AND D.bucket = H.bucket;
+
+        INSERT INTO SalesDaily
+            SELECT H.storeID, H.productName, H.bucket, H.orderCount, H.units, H.revenue
+            FROM (SELECT storeID, productName, date_trunc('day', bucket) AS bucket, SUM(orderCount) AS orderCount, SUM(units) AS units, SUM(revenue) AS revenue
+                  FROM SalesHourly WHERE bucket < day_cutoff GROUP BY storeID, productName, date_trunc('day', bucket)) H
+            WHERE NOT EXISTS (SELECT 1 FROM SalesDaily D WHERE D.storeID = H.storeID AND D.productName = H.productName AND D.bucket = H.bucket);
+
+        DELETE FROM SalesHourly WHERE bucket < day_cutoff;
+    END IF;
+
+    IF EXISTS (SELECT 1 FROM SalesDaily WHERE bucket < month_cutoff) THEN
+        UPDATE SalesMonthly M
+        SET orderCount = M.orderCount + D.orderCount, units = M.units + D.units, revenue = M.revenue + D.revenue
+        FROM (SELECT storeID, productName, date_trunc('month', bucket) AS bucket, SUM(orderCount) AS orderCount, SUM(units) AS units, SUM(revenue) AS revenue
+              FROM SalesDaily WHERE bucket < month_cutoff GROUP BY storeID, productName, date_trunc('month', bucket)) D
+        WHERE M.storeID = D.storeID AND M.productName = D.productName AND M.bucket = D.bucket;
+
+        INSERT INTO SalesMonthly
+            SELECT D.storeID, D.productName, D.bucket, D.orderCount, D.units, D.revenue
+            FROM (SELECT storeID, productName, date_trunc('month', bucket) AS bucket, SUM(orderCount) AS orderCount, SUM(units) AS units, SUM(revenue) AS revenue
+                  FROM SalesDaily WHERE bucket < month_cutoff GROUP BY storeID, productName, date_trunc('month', bucket)) D
+            WHERE NOT EXISTS (SELECT 1 FROM SalesMonthly M WHERE M.storeID = D.storeID AND M.productName = D.productName AND M.bucket = D.bucket);
+
+        DELETE FROM SalesDaily WHERE bucket < month_cutoff;
+    END IF;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Queue triggers, for the original Orders table and for OrderData after
+-- the compact schema migration
+CREATE OR REPLACE FUNCTION queue_order_for_rollup()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    INSERT INTO SalesRollupQueue (storeID, productName, orderTime, units, price)
+        SELECT NEW.storeID, trim(P.productName), NEW.orderTime, NEW.unitsOrdered, P.pricePerUnit
+        FROM Product P WHERE P.storeID = NEW.storeID AND P.productName = NEW.productName;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION queue_order_data_for_rollup()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    INSERT INTO SalesRollupQueue (storeID, productName, orderTime, units, price)
+        SELECT NEW.storeID, P.productName, NEW.orderTime, NEW.unitsOrdered, P.pricePerUnit
+        FROM Product P WHERE P.productID = NEW.productID;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DO $BODY$
+BEGIN
+    -- compaction looks tiers up by bucket alone
+    IF NOT EXISTS (SELECT 1 FROM pg_class WHERE relname = 'sales_hourly_bucket_idx') THEN
+        CREATE INDEX sales_hourly_bucket_idx ON SalesHourly(bucket);
+        CREATE INDEX sales_daily_bucket_idx ON SalesDaily(bucket);
+        CREATE INDEX sales_monthly_bucket_idx ON SalesMonthly(bucket);
+    END IF;
+
+    IF EXISTS (SELECT 1 FROM pg_class WHERE relname = 'orderdata' AND relkind = 'r') THEN
+        DROP TRIGGER IF EXISTS orders_rollup_trigger ON OrderData;
+        CREATE TRIGGER orders_rollup_trigger AFTER INSERT
+        ON OrderData FOR EACH ROW
+        EXECUTE PROCEDURE queue_order_data_for_rollup();
+    ELSE
+        DROP TRIGGER IF EXISTS orders_rollup_trigger ON Orders;
+        CREATE TRIGGER orders_rollup_trigger AFTER INSERT
+        ON Orders FOR EACH ROW
+        EXECUTE PROCEDURE queue_order_for_rollup();
+    END IF;
+END;
+$BODY$;
+
+-- First install: queue the orders that already exist, priced at today's price
+INSERT INTO SalesRollupQueue (storeID, productName, orderTime, units, price)
+    SELECT O.storeID, trim(O.productName), O.orderTime, O.unitsOrdered, P.pricePerUnit
+    FROM Orders O, Product P
+    WHERE O.storeID = P.storeID AND O.productName = P.productName
+      AND NOT EXISTS (SELECT 1 FROM SalesHourly)
+      AND NOT EXISTS (SELECT 1 FROM SalesDaily)
+      AND NOT EXISTS (SELECT 1 FROM SalesMonthly)
+      AND NOT EXISTS (SELECT 1 FROM SalesRollupQueue);
+
+SELECT refresh_sales_rollups();
@@ -0,0 +1,98 @@
+-- Store sharding (ShardRouter)
+--
+-- Run on every shard, again whenever the number of shards changes, with the
+-- shard number, the number of shards and a key floor above every key used
+-- on any shard (create_shard.sh works it out and runs it everywhere):
+--   psql -v shard=1 -v shards=3 -v floor=1000500 ... < create_shard.sql
+-- Shard 0 is the home database holding Users, Store, Warehouse and the
+-- StoreShards directory. The other shards only hold the store scoped rows,
+-- so their foreign keys to the global tables are dropped; Retail checks
+-- those against the home database before writing.
+--
+-- The stores already in the home database are pinned to shard 0, and a
+-- trigger pins every store created later to shard storeID % shards, so the
+-- directory has an entry for every store and a new shard count moves none
+-- of them. ShardRouter.moveStore() records where it moved a store.
+
+CREATE TABLE IF NOT EXISTS StoreShards ( storeID integer NOT NULL,
+                           shard integer NOT NULL,
+                           PRIMARY KEY(storeID)
+);
+
+-- Makes a serial sequence hand out only values equal to shard + 1 modulo
+-- shards, starting above floor and above anything it handed out before, so
+-- rows keep their keys when a store moves between shards. Every shard gets
+-- the same floor, above the largest key of any shard: with a new modulus a
+-- shard's values would otherwise meet those another shard handed out under
+-- the old one.
+DROP FUNCTION IF EXISTS interleave_sequence(text, integer, integer);
+CREATE OR REPLACE FUNCTION interleave_sequence(seq text, shard integer, shards integer, floor bigint)
+RETURNS void AS
+$BODY$
+DECLARE
+    base bigint;
+BEGIN
+    EXECUTE 'SELECT last_value + 1 FROM ' || seq INTO base;
+    base := GREATEST(base, floor);
+    EXECUTE 'ALTER SEQUENCE ' || seq || ' INCREMENT BY ' || shards;
+    PERFORM setval(seq, base + ((shard + 1 - base) % shards + shards) % shards, false);
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP FUNCTION IF EXISTS prepare_shard(integer, integer);
+CREATE OR REPLACE FUNCTION prepare_shard(shard integer, shards integer, floor bigint)
+RETURNS void AS
+$BODY$
+DECLARE
+    c record;
+BEGIN
+    PERFORM interleave_sequence('productsupplyrequests_requestnumber_seq', shard, shards, floor);
+    PERFORM interleave_sequence('productupdates_updatenumber_seq', shard, shards, floor);
+    -- Retail takes order numbers from the home shard, this only covers
+    -- orders inserted without one
+    PERFORM interleave_sequence('ordernumber_seq', shard, shards, floor);
+    -- productID of the compact schema, copied with the product when a
+    -- store moves
+    IF EXISTS (SELECT 1 FROM pg_class WHERE relkind = 'S' AND relname = 'product_productid_seq') THEN
+        PERFORM interleave_sequence('product_productid_seq', shard, shards, floor);
+    END IF;
+
+    IF shard = 0 THEN
+        INSERT INTO StoreShards (storeID, shard)
+            SELECT S.storeID, 0 FROM Store S
+            WHERE NOT EXISTS (SELECT 1 FROM StoreShards D WHERE D.storeID = S.storeID);
+        EXECUTE 'CREATE OR REPLACE FUNCTION store_shards() RETURNS integer AS ''SELECT ' || shards || ''' LANGUAGE sql STABLE';
+        DROP TRIGGER IF EXISTS store_shard_trigger ON Store;
+        CREATE TRIGGER store_shard_trigger AFTER INSERT
+        ON Store FOR EACH ROW
+        EXECUTE PROCEDURE pin_new_store();
+    ELSE
+        -- by name, with the compact schema they are on the base tables
+        FOR c IN SELECT conrelid::regclass AS tbl, conname FROM pg_constraint
+                 WHERE conname IN ('product_storeid_fkey', 'orders_customerid_fkey', 'orderdata_customerid_fkey',
+                                   'productsupplyrequests_managerid_fkey', 'productsupplyrequests_warehouseid_fkey',
+                                   'productsupplyrequestdata_managerid_fkey', 'productsupplyrequestdata_warehouseid_fkey',
+                                   'productupdates_managerid_fkey', 'productupdatedata_managerid_fkey') LOOP
+            EXECUTE format('ALTER TABLE %s DROP CONSTRAINT %I', c.tbl, c.conname);
+        END LOOP;
+    END IF;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Directory entry of a new store, on the shard ShardRouter picks for a
+-- store without one (store_shards() is set by prepare_shard)
+CREATE OR REPLACE FUNCTION pin_new_store()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    INSERT INTO StoreShards (storeID, shard)
+        VALUES (NEW.storeID, (NEW.storeID & 2147483647) % store_shards())
+        ON CONFLICT (storeID) DO NOTHING;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+SELECT prepare_shard(:shard, :shards, :floor);
@@ -1,3 +1,15 @@
+-- tables of the compact schema (migrate_compact_schema.sql), dropping
+-- them also drops the Orders, ProductSupplyRequests, ProductUpdates,
+-- PendingInventory and InventoryLeases views
+DROP TABLE IF EXISTS OrderData CASCADE;
+DROP TABLE IF EXISTS ProductSupplyRequestData CASCADE;
+DROP TABLE IF EXISTS ProductUpdateData CASCADE;
+DROP TABLE IF EXISTS PendingInventoryData CASCADE;
+DROP TABLE IF EXISTS InventoryLeaseData CASCADE;
+-- copies left by a migration that did not get to the swap
+DROP TABLE IF EXISTS CompactUsers CASCADE;
+DROP TABLE IF EXISTS CompactStore CASCADE;
+DROP TABLE IF EXISTS CompactProduct CASCADE;
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS Product CASCADE;
 DROP TABLE IF EXISTS Users CASCADE;
@@ -5,6 +17,15 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS PendingInventory CASCADE;
+DROP TABLE IF EXISTS InventoryLeases CASCADE;
+DROP TABLE IF EXISTS SalesHourly CASCADE;
+DROP TABLE IF EXISTS SalesDaily CASCADE;
+DROP TABLE IF EXISTS SalesMonthly CASCADE;
+DROP TABLE IF EXISTS SalesRollupQueue CASCADE;
+DROP TABLE IF EXISTS UserNearbyStores CASCADE;
+DROP TABLE IF EXISTS NearbyStoresQueue CASCADE;
+DROP TABLE IF EXISTS StoreShards CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -28,7 +49,7 @@ CREATE TABLE Store ( storeID integer,
 
 CREATE TABLE Product ( storeID integer NOT NULL, 
                        productName char(30) NOT NULL,
-                       numberOfUnits integer NOT NULL,
+                       numberOfUnits integer NOT NULL CHECK (numberOfUnits >= 0),
                        pricePerUnit float NOT NULL,
                        PRIMARY KEY(storeID, productName), 
                        FOREIGN KEY(storeID) REFERENCES Store(storeID)
@@ -42,7 +63,7 @@ CREATE TABLE Warehouse ( WarehouseID integer,
                          PRIMARY KEY(WarehouseID));
 
 CREATE TABLE Orders ( 
-					 orderNumber serial NOT NULL,       
+					 orderNumber integer NOT NULL,      -- client supplied or set by order_trigger
 					 customerID integer NOT NULL,
                      storeID integer NOT NULL,
                      productName char(30) NOT NULL, 
@@ -76,3 +97,41 @@ CREATE TABLE ProductUpdates (
                         	FOREIGN KEY(managerID) REFERENCES Users(userID),
                         	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
 );
+
+-- Stock decrements of orders placed through the in-memory inventory
+-- counters (inventory.mode=striped) not yet applied to Product
+CREATE TABLE PendingInventory (
+							orderNumber integer NOT NULL,
+                        	storeID integer NOT NULL,
+                       		productName char(30) NOT NULL,
+                            units integer NOT NULL,
+                            owner char(36) NOT NULL,    --InventoryLeases owner that placed the order
+                        	PRIMARY KEY(orderNumber)
+);
+
+-- Stock leased to the inventory counters of one process: the units of its
+-- pending orders, of its orders in flight and those it still holds
+CREATE TABLE InventoryLeases (
+                        	storeID integer NOT NULL,
+                       		productName char(30) NOT NULL,
+                            owner char(36) NOT NULL,
+                            units integer NOT NULL,
+                            expiresAt timestamp NOT NULL,
+                        	PRIMARY KEY(storeID, productName, owner)
+);
+
+-- Stores within 30 miles of each user, precomputed by NearbyStores; a user
+-- with none has a single row with storeID -1 (NearbyStores.NONE)
+CREATE TABLE UserNearbyStores (
+							userID integer NOT NULL,
+                        	storeID integer NOT NULL,
+                            distance float NOT NULL,
+                        	PRIMARY KEY(userID, storeID)
+);
+
+-- Stores added, moved or removed since NearbyStores last saw them, filled
+-- by store_nearby_trigger
+CREATE TABLE NearbyStoresQueue (
+                        	storeID integer NOT NULL,
+                        	PRIMARY KEY(storeID)
+);
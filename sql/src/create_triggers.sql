@@ -3,7 +3,10 @@ CREATE OR REPLACE FUNCTION set_order_num_and_time()
 RETURNS trigger AS
 $BODY$
 BEGIN
-    NEW.orderNumber := nextval('orderNumber_seq');
+    -- keep order numbers the client allocated from orderNumber_seq
+    IF NEW.orderNumber IS NULL THEN
+        NEW.orderNumber := nextval('orderNumber_seq');
+    END IF;
     NEW.orderTime := current_timestamp;
     RETURN NEW;
 END;
@@ -13,4 +16,70 @@ LANGUAGE plpgsql VOLATILE;
 DROP TRIGGER IF EXISTS order_trigger ON Orders;
 CREATE TRIGGER order_trigger BEFORE INSERT
 ON Orders FOR EACH ROW
-EXECUTE PROCEDURE set_order_num_and_time();
\ No newline at end of file
+EXECUTE PROCEDURE set_order_num_and_time();
+
+-- Queues the stores whose users in range change for
+-- NearbyStores.refreshQueuedStores()
+CREATE OR REPLACE FUNCTION queue_store_for_nearby()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    IF TG_OP <> 'INSERT' THEN
+        INSERT INTO NearbyStoresQueue (storeID) VALUES (OLD.storeID) ON CONFLICT (storeID) DO NOTHING;
+    END IF;
+    IF TG_OP <> 'DELETE' THEN
+        INSERT INTO NearbyStoresQueue (storeID) VALUES (NEW.storeID) ON CONFLICT (storeID) DO NOTHING;
+    END IF;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS store_nearby_trigger ON Store;
+CREATE TRIGGER store_nearby_trigger AFTER INSERT OR DELETE OR UPDATE OF storeID, latitude, longitude
+ON Store FOR EACH ROW
+EXECUTE PROCEDURE queue_store_for_nearby();
+
+-- Leases units of a product to the inventory counters of one process
+-- (inventory.mode=striped). The process then reserves orders from its
+-- lease in memory and inserts them without a stock check, so only leasing
+-- a block of units takes the Product row lock. The lease covers the
+-- process's pending orders, its orders in flight (reserved) and the units
+-- it holds; InventoryCounters.flush() shrinks it as the pending orders are
+-- applied. Expired leases are freed here, the pending orders of their
+-- owners keep counting against the stock until they are applied.
+-- Returns the units the process now holds, up to held + wanted and fewer
+-- than held when the stock went down, or -1 when there is no such product.
+DROP FUNCTION IF EXISTS place_pending_order(integer, integer, integer, varchar, integer);
+CREATE OR REPLACE FUNCTION lease_inventory(lessee char, store integer, name varchar, reserved integer, held integer, wanted integer, ttl integer)
+RETURNS integer AS
+$BODY$
+DECLARE
+    stock integer;
+    taken bigint;
+    mine bigint;
+    granted integer;
+BEGIN
+    SELECT numberOfUnits INTO stock FROM Product WHERE storeID = store AND productName = trim(name) FOR UPDATE;
+    IF NOT FOUND THEN
+        DELETE FROM InventoryLeases WHERE storeID = store AND productName = trim(name) AND owner = lessee;
+        RETURN -1;
+    END IF;
+    DELETE FROM InventoryLeases WHERE storeID = store AND productName = trim(name) AND expiresAt < now();
+    -- leased to other processes, plus pending orders no lease covers any more
+    SELECT COALESCE((SELECT SUM(L.units) FROM InventoryLeases L WHERE L.storeID = store AND L.productName = trim(name) AND L.owner <> lessee), 0)
+         + COALESCE((SELECT SUM(I.units) FROM PendingInventory I WHERE I.storeID = store AND I.productName = trim(name) AND I.owner <> lessee
+               AND NOT EXISTS (SELECT 1 FROM InventoryLeases L WHERE L.storeID = I.storeID AND L.productName = I.productName AND L.owner = I.owner)), 0)
+        INTO taken;
+    SELECT COALESCE(SUM(units), 0) INTO mine FROM PendingInventory WHERE storeID = store AND productName = trim(name) AND owner = lessee;
+    granted := GREATEST(LEAST(stock - taken - mine - reserved, held + wanted), 0);
+    UPDATE InventoryLeases SET units = mine + reserved + granted, expiresAt = now() + ttl * interval '1 millisecond'
+        WHERE storeID = store AND productName = trim(name) AND owner = lessee;
+    IF NOT FOUND THEN
+        INSERT INTO InventoryLeases(storeID, productName, owner, units, expiresAt)
+            VALUES (store, trim(name), lessee, mine + reserved + granted, now() + ttl * interval '1 millisecond');
+    END IF;
+    RETURN granted;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
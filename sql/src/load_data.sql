@@ -23,7 +23,6 @@ COPY Orders
 --FROM '/extra/shall016/project_2/data/orders.csv'
 FROM '/extra/hdye001/CS152_Database_Project/data/orders.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE orders_orderNumber_seq RESTART 501;
 
 
 COPY ProductSupplyRequests
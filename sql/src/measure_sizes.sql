@@ -0,0 +1,21 @@
+-- Reports heap, index and total size for every table in the current schema.
+-- Run before and after a schema change to compare the on-disk footprint.
+SELECT C.relname AS table_name,
+       C.reltuples::bigint AS row_estimate,
+       pg_size_pretty(pg_relation_size(C.oid)) AS table_size,
+       pg_size_pretty(pg_indexes_size(C.oid)) AS index_size,
+       pg_size_pretty(pg_total_relation_size(C.oid)) AS total_size,
+       pg_relation_size(C.oid) AS table_bytes,
+       pg_indexes_size(C.oid) AS index_bytes
+FROM pg_class C, pg_namespace N
+WHERE C.relnamespace = N.oid
+  AND N.nspname = current_schema()
+  AND C.relkind = 'r'
+ORDER BY pg_total_relation_size(C.oid) DESC;
+
+SELECT pg_size_pretty(SUM(pg_relation_size(C.oid))) AS all_tables,
+       pg_size_pretty(SUM(pg_indexes_size(C.oid))) AS all_indexes
+FROM pg_class C, pg_namespace N
+WHERE C.relnamespace = N.oid
+  AND N.nspname = current_schema()
+  AND C.relkind = 'r';
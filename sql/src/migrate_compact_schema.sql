@@ -0,0 +1,232 @@
+-- Compact schema migration, step 1 of 3: global tables
+--
+-- Moves an existing database created by create_tables.sql to a compact layout:
+--   * Product gets an integer surrogate key (productID). Orders,
+--     ProductSupplyRequests, ProductUpdates, PendingInventory and
+--     InventoryLeases reference it instead of carrying a copy of the
+--     char(30) productName.
+--   * Fixed width char columns become varchar, so rows and indexes no
+--     longer store trailing blanks.
+--   * Users.type becomes an enum (4 bytes) instead of char(10).
+--
+-- The migration runs online, driven by migrate_compact_schema.sh:
+--   1. this file creates compact copies of Users, Store and Product and
+--      triggers that write every change of the old tables into them; the
+--      script then backfills the copies in batches with copy_users(),
+--      copy_stores() and copy_products()
+--   2. migrate_compact_schema_data.sql does the same for the store scoped
+--      tables, rebuilt as OrderData, ProductSupplyRequestData,
+--      ProductUpdateData, PendingInventoryData and InventoryLeaseData
+--   3. migrate_compact_schema_swap.sql builds the new indexes CONCURRENTLY,
+--      then swaps the copies in and the old tables out in one short
+--      transaction, and validates the foreign keys afterwards
+-- Every statement commits on its own and each backfill batch is its own
+-- transaction, so readers and writers only wait for the brief locks DDL
+-- takes and for the final swap. Until the swap every write to the old
+-- tables also writes the copy. Old rows are locked FOR SHARE while a batch
+-- copies them, so a row updated or deleted during the backfill is copied
+-- in its latest state or not at all. TRUNCATE is not carried over; do not
+-- truncate the old tables during the migration.
+--
+-- Every step can be run again after a failure.
+
+SET lock_timeout = '5s';
+
+DO $BODY$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM pg_type WHERE typname = 'user_type') THEN
+        CREATE TYPE user_type AS ENUM ('customer', 'manager', 'admin');
+    END IF;
+END;
+$BODY$;
+
+-- The copies keep the column order of the old tables, Retail reads
+-- SELECT * results by position. Constraints are renamed and the foreign
+-- keys added by the swap.
+CREATE TABLE IF NOT EXISTS CompactUsers ( userID integer NOT NULL DEFAULT nextval('users_userid_seq'),
+                     name varchar(50) NOT NULL,
+                     password varchar(11) NOT NULL,
+					 latitude decimal(8,6) NOT NULL,
+                     longitude decimal(9,6) NOT NULL,
+                     type user_type NOT NULL,
+                     PRIMARY KEY(userID)
+);
+
+CREATE TABLE IF NOT EXISTS CompactStore ( storeID integer,
+                     name varchar(30) NOT NULL,
+                     latitude decimal(8, 6) NOT NULL,
+                     longitude decimal(9, 6) NOT NULL,
+                     managerID integer NOT NULL,
+					 dateEstablished date,
+		             PRIMARY KEY(storeID)
+);
+
+CREATE SEQUENCE IF NOT EXISTS product_productid_seq;
+
+CREATE TABLE IF NOT EXISTS CompactProduct ( storeID integer NOT NULL,
+                       productName varchar(30) NOT NULL,
+                       numberOfUnits integer NOT NULL CHECK (numberOfUnits >= 0),
+                       pricePerUnit float NOT NULL,
+                       productID integer NOT NULL DEFAULT nextval('product_productid_seq'),
+                       PRIMARY KEY(productID),
+                       UNIQUE(storeID, productName)
+);
+
+-- Dual writes: every insert, update and delete of an old table is applied
+-- to its copy. The upserts also cover rows the backfill has not reached.
+CREATE OR REPLACE FUNCTION sync_compact_users()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        DELETE FROM CompactUsers WHERE userID = OLD.userID;
+        RETURN NULL;
+    END IF;
+    IF TG_OP = 'UPDATE' THEN
+        IF OLD.userID <> NEW.userID THEN
+            DELETE FROM CompactUsers WHERE userID = OLD.userID;
+        END IF;
+    END IF;
+    INSERT INTO CompactUsers (userID, name, password, latitude, longitude, type)
+    VALUES (NEW.userID, trim(NEW.name), trim(NEW.password), NEW.latitude, NEW.longitude, trim(NEW.type)::user_type)
+    ON CONFLICT (userID) DO UPDATE
+    SET name = EXCLUDED.name, password = EXCLUDED.password, latitude = EXCLUDED.latitude,
+        longitude = EXCLUDED.longitude, type = EXCLUDED.type;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION sync_compact_store()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        DELETE FROM CompactStore WHERE storeID = OLD.storeID;
+        RETURN NULL;
+    END IF;
+    IF TG_OP = 'UPDATE' THEN
+        IF OLD.storeID <> NEW.storeID THEN
+            DELETE FROM CompactStore WHERE storeID = OLD.storeID;
+        END IF;
+    END IF;
+    INSERT INTO CompactStore (storeID, name, latitude, longitude, managerID, dateEstablished)
+    VALUES (NEW.storeID, trim(NEW.name), NEW.latitude, NEW.longitude, NEW.managerID, NEW.dateEstablished)
+    ON CONFLICT (storeID) DO UPDATE
+    SET name = EXCLUDED.name, latitude = EXCLUDED.latitude, longitude = EXCLUDED.longitude,
+        managerID = EXCLUDED.managerID, dateEstablished = EXCLUDED.dateEstablished;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Products are updated in place so they keep their productID
+CREATE OR REPLACE FUNCTION sync_compact_product()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        DELETE FROM CompactProduct WHERE storeID = OLD.storeID AND productName = trim(OLD.productName);
+        RETURN NULL;
+    END IF;
+    IF TG_OP = 'UPDATE' THEN
+        UPDATE CompactProduct
+        SET storeID = NEW.storeID, productName = trim(NEW.productName),
+            numberOfUnits = NEW.numberOfUnits, pricePerUnit = NEW.pricePerUnit
+        WHERE storeID = OLD.storeID AND productName = trim(OLD.productName);
+        IF FOUND THEN
+            RETURN NULL;
+        END IF;
+    END IF;
+    INSERT INTO CompactProduct (storeID, productName, numberOfUnits, pricePerUnit)
+    VALUES (NEW.storeID, trim(NEW.productName), NEW.numberOfUnits, NEW.pricePerUnit)
+    ON CONFLICT (storeID, productName) DO UPDATE
+    SET numberOfUnits = EXCLUDED.numberOfUnits, pricePerUnit = EXCLUDED.pricePerUnit;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS compact_sync ON Users;
+CREATE TRIGGER compact_sync AFTER INSERT OR UPDATE OR DELETE
+ON Users FOR EACH ROW
+EXECUTE PROCEDURE sync_compact_users();
+
+DROP TRIGGER IF EXISTS compact_sync ON Store;
+CREATE TRIGGER compact_sync AFTER INSERT OR UPDATE OR DELETE
+ON Store FOR EACH ROW
+EXECUTE PROCEDURE sync_compact_store();
+
+DROP TRIGGER IF EXISTS compact_sync ON Product;
+CREATE TRIGGER compact_sync AFTER INSERT OR UPDATE OR DELETE
+ON Product FOR EACH ROW
+EXECUTE PROCEDURE sync_compact_product();
+
+-- Backfill: each call copies the next batch of keys starting at start (the
+-- first key when NULL) and returns the key to start the next batch at, or
+-- NULL when the table is done. Rows the dual writes already copied are
+-- left alone.
+CREATE OR REPLACE FUNCTION copy_users(start integer, batch integer)
+RETURNS integer AS
+$BODY$
+DECLARE
+    first integer := COALESCE(start, (SELECT min(userID) FROM Users));
+    last integer;
+BEGIN
+    SELECT max(userID) INTO last FROM (SELECT userID FROM Users WHERE userID >= first ORDER BY userID LIMIT batch) B;
+    IF last IS NULL THEN
+        RETURN NULL;
+    END IF;
+    INSERT INTO CompactUsers (userID, name, password, latitude, longitude, type)
+        SELECT U.userID, trim(U.name), trim(U.password), U.latitude, U.longitude, trim(U.type)::user_type
+        FROM Users U WHERE U.userID BETWEEN first AND last
+        FOR SHARE
+    ON CONFLICT (userID) DO NOTHING;
+    RETURN last + 1;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION copy_stores(start integer, batch integer)
+RETURNS integer AS
+$BODY$
+DECLARE
+    first integer := COALESCE(start, (SELECT min(storeID) FROM Store));
+    last integer;
+BEGIN
+    SELECT max(storeID) INTO last FROM (SELECT storeID FROM Store WHERE storeID >= first ORDER BY storeID LIMIT batch) B;
+    IF last IS NULL THEN
+        RETURN NULL;
+    END IF;
+    INSERT INTO CompactStore (storeID, name, latitude, longitude, managerID, dateEstablished)
+        SELECT S.storeID, trim(S.name), S.latitude, S.longitude, S.managerID, S.dateEstablished
+        FROM Store S WHERE S.storeID BETWEEN first AND last
+        FOR SHARE
+    ON CONFLICT (storeID) DO NOTHING;
+    RETURN last + 1;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Batches of whole stores, along the (storeID, productName) primary key.
+-- Shards hold products of stores their Store table does not list.
+CREATE OR REPLACE FUNCTION copy_products(start integer, batch integer)
+RETURNS integer AS
+$BODY$
+DECLARE
+    first integer := COALESCE(start, (SELECT min(storeID) FROM Product));
+    last integer;
+BEGIN
+    SELECT max(storeID) INTO last FROM (SELECT DISTINCT storeID FROM Product WHERE storeID >= first ORDER BY storeID LIMIT batch) B;
+    IF last IS NULL THEN
+        RETURN NULL;
+    END IF;
+    INSERT INTO CompactProduct (storeID, productName, numberOfUnits, pricePerUnit)
+        SELECT P.storeID, trim(P.productName), P.numberOfUnits, P.pricePerUnit
+        FROM Product P WHERE P.storeID BETWEEN first AND last
+        FOR SHARE
+    ON CONFLICT (storeID, productName) DO NOTHING;
+    RETURN last + 1;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
@@ -0,0 +1,297 @@
+-- Compact schema migration, step 2 of 3: store scoped tables
+--
+-- Run by migrate_compact_schema.sh once CompactProduct is backfilled, so
+-- every product an order refers to already has its productID. Creates the
+-- productID based copies of Orders, ProductSupplyRequests, ProductUpdates,
+-- PendingInventory and InventoryLeases, the triggers that write every
+-- change of the old tables into them and the copy_*() batch functions the
+-- script backfills them with. See migrate_compact_schema.sql.
+
+SET lock_timeout = '5s';
+
+-- Order numbers and times come from the old table; order_trigger moves to
+-- OrderData with the swap
+CREATE TABLE IF NOT EXISTS OrderData (
+					 orderNumber integer NOT NULL,
+					 customerID integer NOT NULL,
+                     storeID integer NOT NULL,
+                     productID integer NOT NULL,
+                     unitsOrdered integer NOT NULL,
+                     orderTime timestamp NOT NULL,
+                     PRIMARY KEY(orderNumber)
+);
+
+CREATE TABLE IF NOT EXISTS ProductSupplyRequestData (
+							   requestNumber integer NOT NULL DEFAULT nextval('productsupplyrequests_requestnumber_seq'),
+							   managerID integer NOT NULL,
+							   warehouseID integer NOT NULL,
+                               storeID integer NOT NULL,
+                               productID integer NOT NULL,
+							   unitsRequested integer NOT NULL,
+                               PRIMARY KEY(requestNumber)
+);
+
+CREATE TABLE IF NOT EXISTS ProductUpdateData (
+	 						updateNumber integer NOT NULL DEFAULT nextval('productupdates_updatenumber_seq'),
+							managerID integer NOT NULL,
+                        	storeID integer NOT NULL,
+                       		productID integer NOT NULL,
+                            updatedOn timestamp NOT NULL,
+                        	PRIMARY KEY(updateNumber)
+);
+
+CREATE TABLE IF NOT EXISTS PendingInventoryData (
+							orderNumber integer NOT NULL,
+                        	storeID integer NOT NULL,
+                       		productID integer NOT NULL,
+                            units integer NOT NULL,
+                            owner char(36) NOT NULL,
+                        	PRIMARY KEY(orderNumber)
+);
+
+CREATE TABLE IF NOT EXISTS InventoryLeaseData (
+                        	storeID integer NOT NULL,
+                       		productID integer NOT NULL,
+                            owner char(36) NOT NULL,
+                            units integer NOT NULL,
+                            expiresAt timestamp NOT NULL,
+                        	PRIMARY KEY(storeID, productID, owner)
+);
+
+-- Dual writes, as for the global tables. Rows of products the copy does
+-- not have are skipped; only PendingInventory and InventoryLeases, which
+-- have no foreign key to Product, can hold such rows.
+CREATE OR REPLACE FUNCTION sync_order_data()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        DELETE FROM OrderData WHERE orderNumber = OLD.orderNumber;
+        RETURN NULL;
+    END IF;
+    IF TG_OP = 'UPDATE' THEN
+        IF OLD.orderNumber <> NEW.orderNumber THEN
+            DELETE FROM OrderData WHERE orderNumber = OLD.orderNumber;
+        END IF;
+    END IF;
+    INSERT INTO OrderData (orderNumber, customerID, storeID, productID, unitsOrdered, orderTime)
+        SELECT NEW.orderNumber, NEW.customerID, NEW.storeID, P.productID, NEW.unitsOrdered, NEW.orderTime
+        FROM CompactProduct P WHERE P.storeID = NEW.storeID AND P.productName = trim(NEW.productName)
+    ON CONFLICT (orderNumber) DO UPDATE
+    SET customerID = EXCLUDED.customerID, storeID = EXCLUDED.storeID, productID = EXCLUDED.productID,
+        unitsOrdered = EXCLUDED.unitsOrdered, orderTime = EXCLUDED.orderTime;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION sync_supply_request_data()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        DELETE FROM ProductSupplyRequestData WHERE requestNumber = OLD.requestNumber;
+        RETURN NULL;
+    END IF;
+    IF TG_OP = 'UPDATE' THEN
+        IF OLD.requestNumber <> NEW.requestNumber THEN
+            DELETE FROM ProductSupplyRequestData WHERE requestNumber = OLD.requestNumber;
+        END IF;
+    END IF;
+    INSERT INTO ProductSupplyRequestData (requestNumber, managerID, warehouseID, storeID, productID, unitsRequested)
+        SELECT NEW.requestNumber, NEW.managerID, NEW.warehouseID, NEW.storeID, P.productID, NEW.unitsRequested
+        FROM CompactProduct P WHERE P.storeID = NEW.storeID AND P.productName = trim(NEW.productName)
+    ON CONFLICT (requestNumber) DO UPDATE
+    SET managerID = EXCLUDED.managerID, warehouseID = EXCLUDED.warehouseID, storeID = EXCLUDED.storeID,
+        productID = EXCLUDED.productID, unitsRequested = EXCLUDED.unitsRequested;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION sync_product_update_data()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        DELETE FROM ProductUpdateData WHERE updateNumber = OLD.updateNumber;
+        RETURN NULL;
+    END IF;
+    IF TG_OP = 'UPDATE' THEN
+        IF OLD.updateNumber <> NEW.updateNumber THEN
+            DELETE FROM ProductUpdateData WHERE updateNumber = OLD.updateNumber;
+        END IF;
+    END IF;
+    INSERT INTO ProductUpdateData (updateNumber, managerID, storeID, productID, updatedOn)
+        SELECT NEW.updateNumber, NEW.managerID, NEW.storeID, P.productID, NEW.updatedOn
+        FROM CompactProduct P WHERE P.storeID = NEW.storeID AND P.productName = trim(NEW.productName)
+    ON CONFLICT (updateNumber) DO UPDATE
+    SET managerID = EXCLUDED.managerID, storeID = EXCLUDED.storeID, productID = EXCLUDED.productID,
+        updatedOn = EXCLUDED.updatedOn;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION sync_pending_inventory_data()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        DELETE FROM PendingInventoryData WHERE orderNumber = OLD.orderNumber;
+        RETURN NULL;
+    END IF;
+    IF TG_OP = 'UPDATE' THEN
+        IF OLD.orderNumber <> NEW.orderNumber THEN
+            DELETE FROM PendingInventoryData WHERE orderNumber = OLD.orderNumber;
+        END IF;
+    END IF;
+    INSERT INTO PendingInventoryData (orderNumber, storeID, productID, units, owner)
+        SELECT NEW.orderNumber, NEW.storeID, P.productID, NEW.units, NEW.owner
+        FROM CompactProduct P WHERE P.storeID = NEW.storeID AND P.productName = trim(NEW.productName)
+    ON CONFLICT (orderNumber) DO UPDATE
+    SET storeID = EXCLUDED.storeID, productID = EXCLUDED.productID, units = EXCLUDED.units, owner = EXCLUDED.owner;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION sync_inventory_lease_data()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    IF TG_OP <> 'INSERT' THEN
+        DELETE FROM InventoryLeaseData L USING CompactProduct P
+        WHERE L.storeID = OLD.storeID AND L.owner = OLD.owner
+          AND P.productID = L.productID AND P.productName = trim(OLD.productName);
+    END IF;
+    IF TG_OP = 'DELETE' THEN
+        RETURN NULL;
+    END IF;
+    INSERT INTO InventoryLeaseData (storeID, productID, owner, units, expiresAt)
+        SELECT NEW.storeID, P.productID, NEW.owner, NEW.units, NEW.expiresAt
+        FROM CompactProduct P WHERE P.storeID = NEW.storeID AND P.productName = trim(NEW.productName)
+    ON CONFLICT (storeID, productID, owner) DO UPDATE
+    SET units = EXCLUDED.units, expiresAt = EXCLUDED.expiresAt;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+DROP TRIGGER IF EXISTS compact_sync ON Orders;
+CREATE TRIGGER compact_sync AFTER INSERT OR UPDATE OR DELETE
+ON Orders FOR EACH ROW
+EXECUTE PROCEDURE sync_order_data();
+
+DROP TRIGGER IF EXISTS compact_sync ON ProductSupplyRequests;
+CREATE TRIGGER compact_sync AFTER INSERT OR UPDATE OR DELETE
+ON ProductSupplyRequests FOR EACH ROW
+EXECUTE PROCEDURE sync_supply_request_data();
+
+DROP TRIGGER IF EXISTS compact_sync ON ProductUpdates;
+CREATE TRIGGER compact_sync AFTER INSERT OR UPDATE OR DELETE
+ON ProductUpdates FOR EACH ROW
+EXECUTE PROCEDURE sync_product_update_data();
+
+DROP TRIGGER IF EXISTS compact_sync ON PendingInventory;
+CREATE TRIGGER compact_sync AFTER INSERT OR UPDATE OR DELETE
+ON PendingInventory FOR EACH ROW
+EXECUTE PROCEDURE sync_pending_inventory_data();
+
+DROP TRIGGER IF EXISTS compact_sync ON InventoryLeases;
+CREATE TRIGGER compact_sync AFTER INSERT OR UPDATE OR DELETE
+ON InventoryLeases FOR EACH ROW
+EXECUTE PROCEDURE sync_inventory_lease_data();
+
+-- Backfill batches, called like copy_users()
+CREATE OR REPLACE FUNCTION copy_orders(start integer, batch integer)
+RETURNS integer AS
+$BODY$
+DECLARE
+    first integer := COALESCE(start, (SELECT min(orderNumber) FROM Orders));
+    last integer;
+BEGIN
+    SELECT max(orderNumber) INTO last FROM (SELECT orderNumber FROM Orders WHERE orderNumber >= first ORDER BY orderNumber LIMIT batch) B;
+    IF last IS NULL THEN
+        RETURN NULL;
+    END IF;
+    INSERT INTO OrderData (orderNumber, customerID, storeID, productID, unitsOrdered, orderTime)
+        SELECT O.orderNumber, O.customerID, O.storeID, P.productID, O.unitsOrdered, O.orderTime
+        FROM Orders O, CompactProduct P
+        WHERE O.orderNumber BETWEEN first AND last
+          AND O.storeID = P.storeID AND trim(O.productName) = P.productName
+        FOR SHARE OF O
+    ON CONFLICT (orderNumber) DO NOTHING;
+    RETURN last + 1;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION copy_supply_requests(start integer, batch integer)
+RETURNS integer AS
+$BODY$
+DECLARE
+    first integer := COALESCE(start, (SELECT min(requestNumber) FROM ProductSupplyRequests));
+    last integer;
+BEGIN
+    SELECT max(requestNumber) INTO last FROM (SELECT requestNumber FROM ProductSupplyRequests WHERE requestNumber >= first ORDER BY requestNumber LIMIT batch) B;
+    IF last IS NULL THEN
+        RETURN NULL;
+    END IF;
+    INSERT INTO ProductSupplyRequestData (requestNumber, managerID, warehouseID, storeID, productID, unitsRequested)
+        SELECT R.requestNumber, R.managerID, R.warehouseID, R.storeID, P.productID, R.unitsRequested
+        FROM ProductSupplyRequests R, CompactProduct P
+        WHERE R.requestNumber BETWEEN first AND last
+          AND R.storeID = P.storeID AND trim(R.productName) = P.productName
+        FOR SHARE OF R
+    ON CONFLICT (requestNumber) DO NOTHING;
+    RETURN last + 1;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION copy_product_updates(start integer, batch integer)
+RETURNS integer AS
+$BODY$
+DECLARE
+    first integer := COALESCE(start, (SELECT min(updateNumber) FROM ProductUpdates));
+    last integer;
+BEGIN
+    SELECT max(updateNumber) INTO last FROM (SELECT updateNumber FROM ProductUpdates WHERE updateNumber >= first ORDER BY updateNumber LIMIT batch) B;
+    IF last IS NULL THEN
+        RETURN NULL;
+    END IF;
+    INSERT INTO ProductUpdateData (updateNumber, managerID, storeID, productID, updatedOn)
+        SELECT U.updateNumber, U.managerID, U.storeID, P.productID, U.updatedOn
+        FROM ProductUpdates U, CompactProduct P
+        WHERE U.updateNumber BETWEEN first AND last
+          AND U.storeID = P.storeID AND trim(U.productName) = P.productName
+        FOR SHARE OF U
+    ON CONFLICT (updateNumber) DO NOTHING;
+    RETURN last + 1;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- PendingInventory and InventoryLeases only hold the orders of the last
+-- flush and a lease per process and hot product, each is copied in one go
+CREATE OR REPLACE FUNCTION copy_inventory(start integer, batch integer)
+RETURNS integer AS
+$BODY$
+BEGIN
+    INSERT INTO PendingInventoryData (orderNumber, storeID, productID, units, owner)
+        SELECT I.orderNumber, I.storeID, P.productID, I.units, I.owner
+        FROM PendingInventory I, CompactProduct P
+        WHERE I.storeID = P.storeID AND trim(I.productName) = P.productName
+        FOR SHARE OF I
+    ON CONFLICT (orderNumber) DO NOTHING;
+    INSERT INTO InventoryLeaseData (storeID, productID, owner, units, expiresAt)
+        SELECT L.storeID, P.productID, L.owner, L.units, L.expiresAt
+        FROM InventoryLeases L, CompactProduct P
+        WHERE L.storeID = P.storeID AND trim(L.productName) = P.productName
+        FOR SHARE OF L
+    ON CONFLICT (storeID, productID, owner) DO NOTHING;
+    RETURN NULL;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
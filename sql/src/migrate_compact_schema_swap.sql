@@ -0,0 +1,431 @@
+-- Compact schema migration, step 3 of 3: swap
+--
+-- Run by migrate_compact_schema.sh once every copy is backfilled. Builds
+-- the secondary indexes of the copies CONCURRENTLY, then replaces the old
+-- tables in one short transaction: the old tables are dropped, the copies
+-- take their names and views with the old names of the store scoped tables
+-- expose productName again. INSTEAD OF triggers accept inserts, updates and
+-- deletes by productName, so Retail keeps working without any query
+-- changes. The views use a LEFT JOIN on the unique productID so the
+-- planner can drop the join when productName is not read.
+--
+-- The swap waits at most lock_timeout for its locks instead of queueing
+-- every reader behind a long running query; the script runs this file
+-- again when it gives up. Foreign keys are added NOT VALID inside the swap
+-- and validated after it, which does not block writes.
+
+-- Resolves (storeID, productName) to productID, raising the same kind of
+-- error the old foreign key did when the product does not exist
+CREATE OR REPLACE FUNCTION lookup_product_id(store integer, name varchar)
+RETURNS integer AS
+$BODY$
+DECLARE
+    id integer;
+BEGIN
+    SELECT productID INTO id FROM Product WHERE storeID = store AND productName = trim(name);
+    IF id IS NULL THEN
+        RAISE EXCEPTION 'product "%" does not exist in store %', trim(name), store
+            USING ERRCODE = 'foreign_key_violation';
+    END IF;
+    RETURN id;
+END;
+$BODY$
+LANGUAGE plpgsql STABLE;
+
+CREATE OR REPLACE FUNCTION insert_order_view()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    INSERT INTO OrderData (orderNumber, customerID, storeID, productID, unitsOrdered, orderTime)
+    VALUES (NEW.orderNumber, NEW.customerID, NEW.storeID, lookup_product_id(NEW.storeID, NEW.productName), NEW.unitsOrdered, NEW.orderTime)
+    RETURNING orderNumber, orderTime INTO NEW.orderNumber, NEW.orderTime;
+    RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION insert_supply_request_view()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    INSERT INTO ProductSupplyRequestData (requestNumber, managerID, warehouseID, storeID, productID, unitsRequested)
+    VALUES (COALESCE(NEW.requestNumber, nextval('productsupplyrequests_requestnumber_seq')), NEW.managerID, NEW.warehouseID, NEW.storeID, lookup_product_id(NEW.storeID, NEW.productName), NEW.unitsRequested)
+    RETURNING requestNumber INTO NEW.requestNumber;
+    RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION insert_product_update_view()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    INSERT INTO ProductUpdateData (updateNumber, managerID, storeID, productID, updatedOn)
+    VALUES (COALESCE(NEW.updateNumber, nextval('productupdates_updatenumber_seq')), NEW.managerID, NEW.storeID, lookup_product_id(NEW.storeID, NEW.productName), NEW.updatedOn)
+    RETURNING updateNumber INTO NEW.updateNumber;
+    RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION insert_pending_inventory_view()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    INSERT INTO PendingInventoryData (orderNumber, storeID, productID, units, owner)
+    VALUES (NEW.orderNumber, NEW.storeID, lookup_product_id(NEW.storeID, NEW.productName), NEW.units, NEW.owner);
+    RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION insert_inventory_lease_view()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    INSERT INTO InventoryLeaseData (storeID, productID, owner, units, expiresAt)
+    VALUES (NEW.storeID, lookup_product_id(NEW.storeID, NEW.productName), NEW.owner, NEW.units, NEW.expiresAt);
+    RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Updates and deletes through the views go to the row of the base table
+-- with the view row's key
+CREATE OR REPLACE FUNCTION update_order_view()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    UPDATE OrderData
+    SET orderNumber = NEW.orderNumber, customerID = NEW.customerID, storeID = NEW.storeID,
+        productID = lookup_product_id(NEW.storeID, NEW.productName), unitsOrdered = NEW.unitsOrdered, orderTime = NEW.orderTime
+    WHERE orderNumber = OLD.orderNumber;
+    RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION delete_order_view()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    DELETE FROM OrderData WHERE orderNumber = OLD.orderNumber;
+    RETURN OLD;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION update_supply_request_view()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    UPDATE ProductSupplyRequestData
+    SET requestNumber = NEW.requestNumber, managerID = NEW.managerID, warehouseID = NEW.warehouseID, storeID = NEW.storeID,
+        productID = lookup_product_id(NEW.storeID, NEW.productName), unitsRequested = NEW.unitsRequested
+    WHERE requestNumber = OLD.requestNumber;
+    RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION delete_supply_request_view()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    DELETE FROM ProductSupplyRequestData WHERE requestNumber = OLD.requestNumber;
+    RETURN OLD;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION update_product_update_view()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    UPDATE ProductUpdateData
+    SET updateNumber = NEW.updateNumber, managerID = NEW.managerID, storeID = NEW.storeID,
+        productID = lookup_product_id(NEW.storeID, NEW.productName), updatedOn = NEW.updatedOn
+    WHERE updateNumber = OLD.updateNumber;
+    RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION delete_product_update_view()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    DELETE FROM ProductUpdateData WHERE updateNumber = OLD.updateNumber;
+    RETURN OLD;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION update_pending_inventory_view()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    UPDATE PendingInventoryData
+    SET orderNumber = NEW.orderNumber, storeID = NEW.storeID,
+        productID = lookup_product_id(NEW.storeID, NEW.productName), units = NEW.units, owner = NEW.owner
+    WHERE orderNumber = OLD.orderNumber;
+    RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION delete_pending_inventory_view()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    DELETE FROM PendingInventoryData WHERE orderNumber = OLD.orderNumber;
+    RETURN OLD;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION update_inventory_lease_view()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    UPDATE InventoryLeaseData
+    SET storeID = NEW.storeID, productID = lookup_product_id(NEW.storeID, NEW.productName),
+        owner = NEW.owner, units = NEW.units, expiresAt = NEW.expiresAt
+    WHERE storeID = OLD.storeID AND productID = lookup_product_id(OLD.storeID, OLD.productName) AND owner = OLD.owner;
+    RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION delete_inventory_lease_view()
+RETURNS trigger AS
+$BODY$
+BEGIN
+    DELETE FROM InventoryLeaseData
+    WHERE storeID = OLD.storeID AND productID = lookup_product_id(OLD.storeID, OLD.productName) AND owner = OLD.owner;
+    RETURN OLD;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Replace orders_store_time_customer_idx and orders_time_idx, dropped
+-- with Orders. An interrupted build leaves an INVALID index behind that
+-- has to be dropped before running this file again.
+CREATE INDEX CONCURRENTLY IF NOT EXISTS orderdata_store_time_customer_idx ON OrderData(storeID, orderTime, customerID);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS orderdata_time_idx ON OrderData(orderTime);
+
+BEGIN;
+
+SET LOCAL lock_timeout = '2s';
+LOCK TABLE Users, Store, Product, Orders, ProductSupplyRequests, ProductUpdates, PendingInventory, InventoryLeases
+    IN ACCESS EXCLUSIVE MODE;
+
+-- The foreign keys of the old tables. Shards have none to the global
+-- tables (create_shard.sql), so those are only added where the old table
+-- had them.
+DO $BODY$
+BEGIN
+    IF EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'store_managerid_fkey') THEN
+        ALTER TABLE CompactStore ADD CONSTRAINT store_managerid_fkey
+            FOREIGN KEY(managerID) REFERENCES CompactUsers(userID) NOT VALID;
+    END IF;
+    IF EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'product_storeid_fkey') THEN
+        ALTER TABLE CompactProduct ADD CONSTRAINT product_storeid_fkey
+            FOREIGN KEY(storeID) REFERENCES CompactStore(storeID) ON DELETE CASCADE NOT VALID;
+    END IF;
+    IF EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'orders_customerid_fkey') THEN
+        ALTER TABLE OrderData ADD CONSTRAINT orderdata_customerid_fkey
+            FOREIGN KEY(customerID) REFERENCES CompactUsers(userID) NOT VALID;
+    END IF;
+    IF EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'productsupplyrequests_managerid_fkey') THEN
+        ALTER TABLE ProductSupplyRequestData ADD CONSTRAINT productsupplyrequestdata_managerid_fkey
+            FOREIGN KEY(managerID) REFERENCES CompactUsers(userID) NOT VALID;
+    END IF;
+    IF EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'productsupplyrequests_warehouseid_fkey') THEN
+        ALTER TABLE ProductSupplyRequestData ADD CONSTRAINT productsupplyrequestdata_warehouseid_fkey
+            FOREIGN KEY(warehouseID) REFERENCES Warehouse(warehouseID) NOT VALID;
+    END IF;
+    IF EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'productupdates_managerid_fkey') THEN
+        ALTER TABLE ProductUpdateData ADD CONSTRAINT productupdatedata_managerid_fkey
+            FOREIGN KEY(managerID) REFERENCES CompactUsers(userID) NOT VALID;
+    END IF;
+END;
+$BODY$;
+
+ALTER TABLE OrderData ADD CONSTRAINT orderdata_productid_fkey
+    FOREIGN KEY(productID) REFERENCES CompactProduct(productID) NOT VALID;
+ALTER TABLE ProductSupplyRequestData ADD CONSTRAINT productsupplyrequestdata_productid_fkey
+    FOREIGN KEY(productID) REFERENCES CompactProduct(productID) NOT VALID;
+ALTER TABLE ProductUpdateData ADD CONSTRAINT productupdatedata_productid_fkey
+    FOREIGN KEY(productID) REFERENCES CompactProduct(productID) NOT VALID;
+-- pending orders and leases of a deleted product go with it
+ALTER TABLE PendingInventoryData ADD CONSTRAINT pendinginventorydata_productid_fkey
+    FOREIGN KEY(productID) REFERENCES CompactProduct(productID) ON DELETE CASCADE NOT VALID;
+ALTER TABLE InventoryLeaseData ADD CONSTRAINT inventoryleasedata_productid_fkey
+    FOREIGN KEY(productID) REFERENCES CompactProduct(productID) ON DELETE CASCADE NOT VALID;
+
+-- Keep the existing sequences alive once the old tables are dropped
+ALTER SEQUENCE users_userid_seq OWNED BY CompactUsers.userID;
+ALTER SEQUENCE product_productid_seq OWNED BY CompactProduct.productID;
+ALTER SEQUENCE productsupplyrequests_requestnumber_seq OWNED BY ProductSupplyRequestData.requestNumber;
+ALTER SEQUENCE productupdates_updatenumber_seq OWNED BY ProductUpdateData.updateNumber;
+
+-- The dual write triggers go with the old tables
+DROP TABLE Orders;
+DROP TABLE ProductSupplyRequests;
+DROP TABLE ProductUpdates;
+DROP TABLE PendingInventory;
+DROP TABLE InventoryLeases;
+DROP TABLE Product;
+DROP TABLE Store;
+DROP TABLE Users;
+
+ALTER TABLE CompactUsers RENAME TO Users;
+ALTER TABLE Users RENAME CONSTRAINT compactusers_pkey TO users_pkey;
+ALTER TABLE CompactStore RENAME TO Store;
+ALTER TABLE Store RENAME CONSTRAINT compactstore_pkey TO store_pkey;
+ALTER TABLE CompactProduct RENAME TO Product;
+ALTER TABLE Product RENAME CONSTRAINT compactproduct_pkey TO product_pkey;
+ALTER TABLE Product RENAME CONSTRAINT compactproduct_storeid_productname_key TO product_storeid_productname_key;
+ALTER TABLE Product RENAME CONSTRAINT compactproduct_numberofunits_check TO product_numberofunits_check;
+
+-- Compatibility views with the original column layout
+CREATE VIEW Orders AS
+	SELECT O.orderNumber, O.customerID, O.storeID, P.productName, O.unitsOrdered, O.orderTime
+	FROM OrderData O LEFT JOIN Product P ON O.productID = P.productID;
+
+CREATE VIEW ProductSupplyRequests AS
+	SELECT R.requestNumber, R.managerID, R.warehouseID, R.storeID, P.productName, R.unitsRequested
+	FROM ProductSupplyRequestData R LEFT JOIN Product P ON R.productID = P.productID;
+
+CREATE VIEW ProductUpdates AS
+	SELECT U.updateNumber, U.managerID, U.storeID, P.productName, U.updatedOn
+	FROM ProductUpdateData U LEFT JOIN Product P ON U.productID = P.productID;
+
+CREATE VIEW PendingInventory AS
+	SELECT I.orderNumber, I.storeID, P.productName, I.units, I.owner
+	FROM PendingInventoryData I LEFT JOIN Product P ON I.productID = P.productID;
+
+CREATE VIEW InventoryLeases AS
+	SELECT L.storeID, P.productName, L.owner, L.units, L.expiresAt
+	FROM InventoryLeaseData L LEFT JOIN Product P ON L.productID = P.productID;
+
+CREATE TRIGGER orders_view_insert INSTEAD OF INSERT
+ON Orders FOR EACH ROW
+EXECUTE PROCEDURE insert_order_view();
+
+CREATE TRIGGER orders_view_update INSTEAD OF UPDATE
+ON Orders FOR EACH ROW
+EXECUTE PROCEDURE update_order_view();
+
+CREATE TRIGGER orders_view_delete INSTEAD OF DELETE
+ON Orders FOR EACH ROW
+EXECUTE PROCEDURE delete_order_view();
+
+CREATE TRIGGER supply_requests_view_insert INSTEAD OF INSERT
+ON ProductSupplyRequests FOR EACH ROW
+EXECUTE PROCEDURE insert_supply_request_view();
+
+CREATE TRIGGER supply_requests_view_update INSTEAD OF UPDATE
+ON ProductSupplyRequests FOR EACH ROW
+EXECUTE PROCEDURE update_supply_request_view();
+
+CREATE TRIGGER supply_requests_view_delete INSTEAD OF DELETE
+ON ProductSupplyRequests FOR EACH ROW
+EXECUTE PROCEDURE delete_supply_request_view();
+
+CREATE TRIGGER product_updates_view_insert INSTEAD OF INSERT
+ON ProductUpdates FOR EACH ROW
+EXECUTE PROCEDURE insert_product_update_view();
+
+CREATE TRIGGER product_updates_view_update INSTEAD OF UPDATE
+ON ProductUpdates FOR EACH ROW
+EXECUTE PROCEDURE update_product_update_view();
+
+CREATE TRIGGER product_updates_view_delete INSTEAD OF DELETE
+ON ProductUpdates FOR EACH ROW
+EXECUTE PROCEDURE delete_product_update_view();
+
+CREATE TRIGGER pending_inventory_view_insert INSTEAD OF INSERT
+ON PendingInventory FOR EACH ROW
+EXECUTE PROCEDURE insert_pending_inventory_view();
+
+CREATE TRIGGER pending_inventory_view_update INSTEAD OF UPDATE
+ON PendingInventory FOR EACH ROW
+EXECUTE PROCEDURE update_pending_inventory_view();
+
+CREATE TRIGGER pending_inventory_view_delete INSTEAD OF DELETE
+ON PendingInventory FOR EACH ROW
+EXECUTE PROCEDURE delete_pending_inventory_view();
+
+CREATE TRIGGER inventory_leases_view_insert INSTEAD OF INSERT
+ON InventoryLeases FOR EACH ROW
+EXECUTE PROCEDURE insert_inventory_lease_view();
+
+CREATE TRIGGER inventory_leases_view_update INSTEAD OF UPDATE
+ON InventoryLeases FOR EACH ROW
+EXECUTE PROCEDURE update_inventory_lease_view();
+
+CREATE TRIGGER inventory_leases_view_delete INSTEAD OF DELETE
+ON InventoryLeases FOR EACH ROW
+EXECUTE PROCEDURE delete_inventory_lease_view();
+
+-- Order numbers and times are still assigned by the original trigger
+-- function, now on the base table, new orders are still queued for the
+-- sales rollups (create_rollups.sql) and changed stores still get queued
+-- for NearbyStores and a shard directory entry (create_shard.sql)
+CREATE TRIGGER order_trigger BEFORE INSERT
+ON OrderData FOR EACH ROW
+EXECUTE PROCEDURE set_order_num_and_time();
+
+DO $BODY$
+BEGIN
+    IF EXISTS (SELECT 1 FROM pg_proc WHERE proname = 'queue_order_data_for_rollup') THEN
+        CREATE TRIGGER orders_rollup_trigger AFTER INSERT
+        ON OrderData FOR EACH ROW
+        EXECUTE PROCEDURE queue_order_data_for_rollup();
+    END IF;
+    IF EXISTS (SELECT 1 FROM pg_proc WHERE proname = 'queue_store_for_nearby') THEN
+        CREATE TRIGGER store_nearby_trigger AFTER INSERT OR DELETE OR UPDATE OF storeID, latitude, longitude
+        ON Store FOR EACH ROW
+        EXECUTE PROCEDURE queue_store_for_nearby();
+    END IF;
+    IF EXISTS (SELECT 1 FROM pg_proc WHERE proname = 'pin_new_store') THEN
+        CREATE TRIGGER store_shard_trigger AFTER INSERT
+        ON Store FOR EACH ROW
+        EXECUTE PROCEDURE pin_new_store();
+    END IF;
+END;
+$BODY$;
+
+DROP FUNCTION sync_compact_users();
+DROP FUNCTION sync_compact_store();
+DROP FUNCTION sync_compact_product();
+DROP FUNCTION sync_order_data();
+DROP FUNCTION sync_supply_request_data();
+DROP FUNCTION sync_product_update_data();
+DROP FUNCTION sync_pending_inventory_data();
+DROP FUNCTION sync_inventory_lease_data();
+DROP FUNCTION copy_users(integer, integer);
+DROP FUNCTION copy_stores(integer, integer);
+DROP FUNCTION copy_products(integer, integer);
+DROP FUNCTION copy_orders(integer, integer);
+DROP FUNCTION copy_supply_requests(integer, integer);
+DROP FUNCTION copy_product_updates(integer, integer);
+DROP FUNCTION copy_inventory(integer, integer);
+
+COMMIT;
+
+-- Validating only takes SHARE UPDATE EXCLUSIVE on the referencing table
+-- and ROW SHARE on the referenced one, so writes go on meanwhile
+DO $BODY$
+DECLARE
+    c record;
+BEGIN
+    FOR c IN SELECT conrelid::regclass AS tbl, conname FROM pg_constraint WHERE contype = 'f' AND NOT convalidated LOOP
+        EXECUTE format('ALTER TABLE %s VALIDATE CONSTRAINT %I', c.tbl, c.conname);
+    END LOOP;
+END;
+$BODY$;
+
+ANALYZE;